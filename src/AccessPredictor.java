@@ -0,0 +1,179 @@
+import java.io.*;
+import java.util.*;
+
+/*
+Learns which file a user tends to open after each file, so FileClient can fetch
+the likely next files before they are asked for. Counts of transitions are kept
+per previous file, saved between sessions, and turned into probabilities when
+predicting. Also counts how often the prefetched files were actually used.
+ */
+public class AccessPredictor
+{
+    //Where the transition counts are saved between sessions
+    private File modelFile = null;
+
+    //How many times each file was opened right after each other file
+    private Map<String, Map<String, Integer>> transitions = new HashMap<String, Map<String, Integer>>();
+
+    //Prefetch statistics, for tuning
+    private int readOpens = 0;
+    private int prefetchHits = 0;
+    private int prefetchedFiles = 0;
+
+    /*
+    Creates a predictor, loading the counts saved in the given file if there are any
+     */
+    public AccessPredictor(File modelFile)
+    {
+        this.modelFile = modelFile;
+
+        if (!modelFile.exists())
+        {
+            return;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(modelFile)))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                //Each line is "from<TAB>to<TAB>count"
+                String[] fields = line.split("\t");
+                if (fields.length == 3)
+                {
+                    count(fields[0], fields[1], Integer.parseInt(fields[2]));
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            System.out.println("Unable to load access history: " + e.getMessage());
+        }
+    }
+
+    /*
+    Records that a file was opened right after another one
+     */
+    public synchronized void recordTransition(String fromFileName, String toFileName)
+    {
+        if (fromFileName.equals("") || fromFileName.equals(toFileName))
+        {
+            return;
+        }
+
+        count(fromFileName, toFileName, 1);
+    }
+
+    /*
+    Gets the files likely to be opened after the given one, most likely first,
+    leaving out those less likely than the given probability
+     */
+    public synchronized List<String> predict(String fileName, double minProbability)
+    {
+        final Map<String, Integer> next = transitions.get(fileName);
+        if (next == null)
+        {
+            return new ArrayList<String>();
+        }
+
+        int total = 0;
+        for (int times : next.values())
+        {
+            total += times;
+        }
+
+        List<String> likely = new ArrayList<String>();
+        for (Map.Entry<String, Integer> entry : next.entrySet())
+        {
+            if (entry.getValue() >= minProbability * total)
+            {
+                likely.add(entry.getKey());
+            }
+        }
+
+        Collections.sort(likely, new Comparator<String>()
+        {
+            public int compare(String a, String b)
+            {
+                return next.get(b) - next.get(a);
+            }
+        });
+
+        return likely;
+    }
+
+    /*
+    Records an open in read mode, and whether it was served from a prefetched copy
+     */
+    public synchronized void recordReadOpen(boolean prefetchHit)
+    {
+        readOpens++;
+
+        if (prefetchHit)
+        {
+            prefetchHits++;
+        }
+    }
+
+    /*
+    Records that a file was prefetched
+     */
+    public synchronized void recordPrefetch()
+    {
+        prefetchedFiles++;
+    }
+
+    /*
+    Describes how well prefetching is working
+     */
+    public synchronized String getReport()
+    {
+        return "Prefetch hit ratio: " + prefetchHits + " of " + readOpens + " read opens (" + percent(prefetchHits, readOpens)
+            + "), " + prefetchHits + " of " + prefetchedFiles + " prefetched files used (" + percent(prefetchHits, prefetchedFiles) + ")";
+    }
+
+    /*
+    Saves the transition counts for the next session
+     */
+    public synchronized void save()
+    {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(modelFile)))
+        {
+            for (Map.Entry<String, Map<String, Integer>> from : transitions.entrySet())
+            {
+                for (Map.Entry<String, Integer> to : from.getValue().entrySet())
+                {
+                    writer.println(from.getKey() + "\t" + to.getKey() + "\t" + to.getValue());
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            System.out.println("Unable to save access history: " + e.getMessage());
+        }
+    }
+
+    /*
+    Adds to the count of a transition
+     */
+    private void count(String fromFileName, String toFileName, int times)
+    {
+        Map<String, Integer> next = transitions.get(fromFileName);
+        if (next == null)
+        {
+            next = new HashMap<String, Integer>();
+            transitions.put(fromFileName, next);
+        }
+
+        Integer previous = next.get(toFileName);
+        next.put(toFileName, (previous == null ? 0 : previous) + times);
+    }
+
+    /*
+    Formats a ratio as a percentage
+     */
+    private static String percent(int part, int whole)
+    {
+        return (whole == 0) ? "n/a" : (100 * part / whole) + "%";
+    }
+}
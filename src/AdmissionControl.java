@@ -0,0 +1,191 @@
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AdmissionControl bounds how many operations of each class a FileServer works on
+ * at once, so that a burst of requests (a login storm) queues briefly and is then
+ * turned away, instead of piling up threads inside the server until it stops
+ * answering at all. Each class has a concurrency limit and a queue limit: a request
+ * beyond the queue limit, or one that waits in the queue too long, is refused with a
+ * ServerBusyException telling the client when to retry.
+ *
+ * Write acquisitions get their own small limit because an ownership change can
+ * hold a thread until the current owner uploads. Callbacks to clients are limited
+ * too: liveness pings beyond the limit are refused, while invalidations and writebacks
+ * wait for a slot however long it takes (see await()), since dropping one would leave
+ * a client serving a stale copy, or a file stuck changing owner.
+ *
+ * The limits may be set with the system properties
+ * fileserver.admission.<class>.concurrency and fileserver.admission.<class>.queue,
+ * where <class> is read, write_acquire, upload or callback.
+ *
+ */
+public class AdmissionControl {
+
+	/**
+	 * The classes of operations, with their default limits
+	 */
+	public enum Operation {
+
+		READ(64, 256, 100),
+		WRITE_ACQUIRE(16, 32, 1000),
+		UPLOAD(16, 64, 200),
+		CALLBACK(32, 256, 100);
+
+		// operations in progress at once
+		private final int concurrency;
+
+		// operations waiting for one in progress to finish
+		private final int queue;
+
+		// suggested wait before a refused operation is retried, when the queue is empty
+		private final long retryAfterMillis;
+
+		private Operation(int concurrency, int queue, long retryAfterMillis) {
+			this.concurrency = concurrency;
+			this.queue = queue;
+			this.retryAfterMillis = retryAfterMillis;
+		}
+
+	}
+
+	// longest time an operation waits in the queue before it is refused
+	public static final long MAX_QUEUE_WAIT_MILLISECONDS = 2000;
+
+	// the limits shared by the whole process
+	private static final AdmissionControl SHARED = new AdmissionControl();
+
+	/**
+	 * Get the limits shared by the whole process
+	 * @return The shared admission control
+	 */
+	public static AdmissionControl getShared() {
+		return SHARED;
+	}
+
+	// the limits of one class of operations
+	private static class Gate {
+
+		private final Semaphore running;
+		private final AtomicInteger waiting = new AtomicInteger();
+		private final int queueLimit;
+
+		private Gate(int concurrency, int queueLimit) {
+			this.running = new Semaphore(concurrency, true);
+			this.queueLimit = queueLimit;
+		}
+
+	}
+
+	// the limits, by class of operation
+	private final Map<Operation, Gate> gates = new EnumMap<Operation, Gate>(Operation.class);
+
+	/**
+	 * Create admission control with the configured limits
+	 */
+	public AdmissionControl() {
+
+		for (Operation operation : Operation.values()) {
+
+			String prefix = "fileserver.admission." + operation.name().toLowerCase() + ".";
+			int concurrency = Integer.getInteger(prefix + "concurrency", operation.concurrency);
+			int queue = Integer.getInteger(prefix + "queue", operation.queue);
+
+			gates.put(operation, new Gate(concurrency, queue));
+
+		}
+
+	}
+
+	/**
+	 * Start an operation, waiting briefly if the limit of its class is reached.
+	 * Every successful call must be matched by a call to exit().
+	 * @param operation The class of the operation
+	 * @throws ServerBusyException If the operation is refused
+	 */
+	public void enter(Operation operation) throws ServerBusyException {
+
+		Gate gate = gates.get(operation);
+
+		// the usual case, below the limit
+		if (gate.running.tryAcquire()) return;
+
+		// a full queue is refused at once
+		int queued = gate.waiting.incrementAndGet();
+		try {
+
+			if (queued > gate.queueLimit) throw busy(operation, gate, queued);
+
+			if (gate.running.tryAcquire(MAX_QUEUE_WAIT_MILLISECONDS, TimeUnit.MILLISECONDS)) return;
+			throw busy(operation, gate, queued);
+
+		} catch (InterruptedException e) {
+
+			throw busy(operation, gate, queued);
+
+		} finally {
+
+			gate.waiting.decrementAndGet();
+
+		}
+
+	}
+
+	/**
+	 * Start an operation that must not be refused, waiting for as long as the limit of
+	 * its class is reached. Every call must be matched by a call to exit().
+	 * @param operation The class of the operation
+	 */
+	public void await(Operation operation) {
+
+		Gate gate = gates.get(operation);
+
+		// the usual case, below the limit
+		if (gate.running.tryAcquire()) return;
+
+		gate.waiting.incrementAndGet();
+		try {
+			gate.running.acquireUninterruptibly();
+		} finally {
+			gate.waiting.decrementAndGet();
+		}
+
+	}
+
+	/**
+	 * Finish an operation started with enter() or await()
+	 * @param operation The class of the operation
+	 */
+	public void exit(Operation operation) {
+		gates.get(operation).running.release();
+	}
+
+	/**
+	 * Get the number of operations of a class waiting to start
+	 * @param operation The class of operations
+	 * @return The length of its queue
+	 */
+	public int getWaiting(Operation operation) {
+		return gates.get(operation).waiting.get();
+	}
+
+	/**
+	 * Helper method that refuses an operation, suggesting a wait that grows with the queue
+	 * @param operation The class of the operation
+	 * @param gate The limits of the class
+	 * @param queued The operation's place in the queue
+	 * @return The answer to send the client
+	 */
+	private static ServerBusyException busy(Operation operation, Gate gate, int queued) {
+
+		long retryAfter = operation.retryAfterMillis * (1 + queued / Math.max(1, gate.queueLimit / 4));
+		if (FileServer.DEBUG_MODE) System.out.println("Too many " + operation + " operations, refusing with retry after " + retryAfter + " ms");
+
+		return new ServerBusyException("Server busy with " + operation + " operations", retryAfter);
+
+	}
+
+}
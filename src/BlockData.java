@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * BlockData holds the bytes of one stored block, either in an ordinary heap array
+ * or in a region of off-heap memory handed out by the SlabAllocator.
+ *
+ * Off-heap regions are freed explicitly and, after a quarantine period, reused for
+ * other blocks, so every read copies the bytes out first and then checks that the
+ * region was not reused in the meantime. A read that loses that race fails instead
+ * of returning another block's bytes.
+ *
+ */
+public final class BlockData {
+
+	// the memory holding the block, starting at position 0 (never read through directly)
+	private final ByteBuffer buffer;
+
+	// the number of bytes in the block
+	private final int length;
+
+	// the slab size class the memory belongs to, or -1 for heap memory
+	private final int sizeClass;
+
+	// set once off-heap memory has been reused by the allocator
+	private volatile boolean reused = false;
+
+	/**
+	 * Wrap a heap array as a block
+	 * @param data The block contents (not copied, must not be modified afterwards)
+	 * @return The block
+	 */
+	public static BlockData onHeap(byte[] data) {
+		return new BlockData(ByteBuffer.wrap(data), data.length, -1);
+	}
+
+	/**
+	 * Construct a block over existing memory
+	 * @param buffer The memory holding the block, starting at position 0
+	 * @param length The number of bytes in the block
+	 * @param sizeClass The slab size class of off-heap memory, or -1 for heap memory
+	 */
+	BlockData(ByteBuffer buffer, int length, int sizeClass) {
+		this.buffer = buffer;
+		this.length = length;
+		this.sizeClass = sizeClass;
+	}
+
+	/**
+	 * Get the number of bytes in the block
+	 * @return The block length
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Check whether the block is held in off-heap memory
+	 * @return TRUE for off-heap memory, FALSE for a heap array
+	 */
+	public boolean isOffHeap() {
+		return sizeClass >= 0;
+	}
+
+	/**
+	 * Copy the whole block into an array
+	 * @param destination The array to copy into
+	 * @param offset Where in the array the block starts
+	 * @throws IllegalStateException If the block's memory was reused
+	 */
+	public void copyTo(byte[] destination, int offset) {
+
+		read(0, destination, offset, length);
+
+	}
+
+	/**
+	 * Write the block to a stream, copying it through a staging array
+	 * @param out The stream to write to
+	 * @param staging A scratch array used for the copy (any size)
+	 * @throws IOException If writing fails, or the block's memory was reused
+	 */
+	public void writeTo(OutputStream out, byte[] staging) throws IOException {
+
+		// heap blocks need no staging
+		if (!isOffHeap()) {
+			out.write(buffer.array(), buffer.arrayOffset(), length);
+			return;
+		}
+
+		for (int position = 0; position < length; position += staging.length) {
+
+			int count = Math.min(staging.length, length - position);
+
+			try {
+				read(position, staging, 0, count);
+			} catch (IllegalStateException e) {
+				throw new IOException(e.getMessage());
+			}
+
+			out.write(staging, 0, count);
+
+		}
+
+	}
+
+	/**
+	 * Get the memory holding the block, for the allocator to recycle
+	 * @return The memory, starting at position 0
+	 */
+	ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Get the slab size class of the block's memory
+	 * @return The size class, or -1 for heap memory
+	 */
+	int getSizeClass() {
+		return sizeClass;
+	}
+
+	/**
+	 * Record that the block's memory is about to be reused for another block
+	 */
+	void markReused() {
+		reused = true;
+	}
+
+	/**
+	 * Helper method that copies part of the block, failing if the memory was reused
+	 * @param position Where in the block to start
+	 * @param destination The array to copy into
+	 * @param offset Where in the array to copy to
+	 * @param count The number of bytes to copy
+	 */
+	private void read(int position, byte[] destination, int offset, int count) {
+
+		ByteBuffer view = buffer.duplicate();
+		view.position(position);
+		view.get(destination, offset, count);
+
+		// the copy is only good if the memory still belonged to this block afterwards
+		if (reused) throw new IllegalStateException("Block memory was reused while being read");
+
+	}
+
+}
@@ -0,0 +1,462 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * BlockStore holds the contents of hosted files as content-defined blocks, addressed
+ * by their SHA-256 hash and shared by every file and version that contains them.
+ * Near-copies of a file (templates, generated configs, successive versions) therefore
+ * only cost the blocks that actually differ.
+ *
+ * Block boundaries are chosen with a rolling "gear" hash over the contents, so an
+ * insertion or deletion only changes the blocks around it rather than shifting every
+ * block that follows. Each block is reference counted and dropped when the last
+ * file version using it is released. The hash starts afresh at every boundary, so a
+ * version that differs from a stored one in a range of bytes (a range write or an
+ * append) is stored by re-chunking only the blocks from the one holding the range
+ * up to the first boundary after it that the stored version also has.
+ *
+ * Blocks are held on the Java heap unless the server is started with
+ * -Dfileserver.offheap.bytes=N, in which case up to N bytes of blocks are held
+ * in off-heap slabs (see SlabAllocator) and freed explicitly on release. Blocks
+ * that do not fit under that limit fall back on the heap.
+ *
+ */
+public class BlockStore {
+
+	// smallest block, except at the end of a file
+	public static final int MIN_BLOCK_SIZE = 2 * 1024;
+
+	// largest block, a boundary is forced here
+	public static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+	// a boundary is found when the rolling hash has these bits clear (about every 8 KB)
+	private static final long BOUNDARY_MASK = (1L << 13) - 1;
+
+	// random values mixed into the rolling hash, one per byte value (fixed seed, so
+	// every server chooses the same boundaries)
+	private static final long[] GEAR = new long[256];
+	static {
+		Random random = new Random(0x434L);
+		for (int i = 0; i < GEAR.length; i++) GEAR[i] = random.nextLong();
+	}
+
+	// system property giving the off-heap memory limit, off-heap storage is disabled if unset
+	public static final String OFF_HEAP_PROPERTY = "fileserver.offheap.bytes";
+
+	// the store shared by all hosted files of this server
+	private static final BlockStore SHARED = new BlockStore(Long.getLong(OFF_HEAP_PROPERTY, 0));
+
+	// a stored block and the number of file versions referencing it
+	private static class Block {
+
+		private final BlockData data;
+		private int references = 0;
+
+		private Block(BlockData data) {
+			this.data = data;
+		}
+
+	}
+
+	// off-heap memory for blocks, or null to keep blocks on the heap
+	private final SlabAllocator slabs;
+
+	// stored blocks, by hash
+	private final Map<String, Block> blocks = new HashMap<String, Block>();
+
+	// bytes referenced by all file versions, counting every reference
+	private long logicalBytes = 0;
+
+	// bytes actually held, counting each block once
+	private long storedBytes = 0;
+
+	/**
+	 * Create a block store
+	 * @param maxOffHeapBytes The most off-heap memory to use for blocks, or 0 to keep blocks on the heap
+	 */
+	public BlockStore(long maxOffHeapBytes) {
+		this.slabs = (maxOffHeapBytes > 0) ? new SlabAllocator(maxOffHeapBytes) : null;
+	}
+
+	/**
+	 * Get the block store shared by all hosted files
+	 * @return The shared block store
+	 */
+	public static BlockStore getShared() {
+		return SHARED;
+	}
+
+	/**
+	 * Store the contents of a file version, adding a reference to each of its blocks
+	 * @param contents The contents to store
+	 * @return The hashes of the blocks making up the contents, in order
+	 */
+	public List<String> store(byte[] contents) {
+
+		// split and hash outside the lock, it is the expensive part
+		List<String> ids = new ArrayList<String>();
+		List<byte[]> chunks = new ArrayList<byte[]>();
+		int start = 0;
+		for (int end : findBoundaries(contents)) {
+			byte[] chunk = new byte[end - start];
+			System.arraycopy(contents, start, chunk, 0, chunk.length);
+			chunks.add(chunk);
+			ids.add(hash(chunk));
+			start = end;
+		}
+
+		addReferences(ids, chunks);
+
+		return ids;
+
+	}
+
+	/**
+	 * Store a version of a file that differs from a stored version in one range of bytes,
+	 * adding a reference to each of its blocks. Only the blocks from the one holding the
+	 * range up to the next boundary both versions share are chunked and hashed again, the
+	 * others are reused, so the cost grows with the bytes changed rather than the file.
+	 * @param previousIds The blocks of the stored version, as returned by store()
+	 * @param offset The position of the first byte changed (at most the stored version's length)
+	 * @param data The bytes now at that position - the file grows if they run past its end
+	 * @return The hashes of the blocks making up the new contents, in order, or null if
+	 * the stored version's blocks have been released
+	 */
+	public List<String> storeUpdate(List<String> previousIds, int offset, byte[] data) {
+
+		// the stored version's blocks are held while the new version is built from them
+		List<BlockData> previous = retain(previousIds);
+		if (previous == null) return null;
+
+		try {
+
+			// re-chunk from the start of the block holding the offset (the last block for an
+			// append, as it may only have ended at the end of the file)
+			int first = 0;
+			int firstStart = 0;
+			while (first < previous.size() - 1 && firstStart + previous.get(first).length() <= offset) {
+				firstStart += previous.get(first).length();
+				first++;
+			}
+
+			int previousLength = firstStart;
+			for (int i = first; i < previous.size(); i++) previousLength += previous.get(i).length();
+			long changeEnd = (long) offset + data.length;
+
+			List<String> ids = new ArrayList<String>(previousIds.subList(0, first));
+			List<byte[]> chunks = new ArrayList<byte[]>();
+			for (int i = 0; i < first; i++) chunks.add(null);
+
+			// the new contents from firstStart on, pulled in a stored block at a time
+			byte[] window = new byte[0];
+			int windowLength = 0;
+			int chunkStart = 0;
+			int next = first;
+			int nextStart = firstStart;
+			boolean tailAdded = false;
+			List<Integer> pulledEnds = new ArrayList<Integer>();
+
+			while (true) {
+
+				int end = nextBoundary(window, chunkStart, windowLength);
+
+				if (end < 0) {
+
+					// no boundary yet - pull in more of the new contents, if there is more
+					byte[] pulled;
+					if (next < previous.size()) {
+						BlockData block = previous.get(next);
+						pulled = new byte[block.length()];
+						block.copyTo(pulled, 0);
+						overlay(pulled, nextStart, offset, data);
+						nextStart += pulled.length;
+						next++;
+						pulledEnds.add(nextStart);
+					} else if (!tailAdded && changeEnd > previousLength) {
+						pulled = Arrays.copyOfRange(data, previousLength - offset, data.length);
+						tailAdded = true;
+					} else {
+						end = windowLength;
+						if (chunkStart == end) break;
+						pulled = null;
+					}
+
+					if (pulled != null) {
+						if (windowLength + pulled.length > window.length) window = Arrays.copyOf(window, Math.max(window.length * 2, windowLength + pulled.length));
+						System.arraycopy(pulled, 0, window, windowLength, pulled.length);
+						windowLength += pulled.length;
+						continue;
+					}
+
+				}
+
+				byte[] chunk = Arrays.copyOfRange(window, chunkStart, end);
+				chunks.add(chunk);
+				ids.add(hash(chunk));
+				chunkStart = end;
+
+				// past the change, a boundary the stored version also has means every block
+				// after it is unchanged
+				int position = firstStart + end;
+				int shared = pulledEnds.indexOf(position);
+				if (position >= changeEnd && shared >= 0) {
+					int reused = first + shared + 1;
+					ids.addAll(previousIds.subList(reused, previousIds.size()));
+					for (int i = reused; i < previousIds.size(); i++) chunks.add(null);
+					break;
+				}
+
+				if (chunkStart == windowLength && next == previous.size() && (tailAdded || changeEnd <= previousLength)) break;
+
+			}
+
+			addReferences(ids, chunks);
+
+			return ids;
+
+		} finally {
+			release(previousIds);
+		}
+
+	}
+
+	/**
+	 * Get the blocks with the given hashes
+	 * @param ids The hashes of the blocks, as returned by store()
+	 * @return The blocks, in the same order
+	 */
+	public synchronized List<BlockData> getBlocks(List<String> ids) {
+
+		List<BlockData> data = new ArrayList<BlockData>(ids.size());
+		for (String id : ids) {
+			data.add(blocks.get(id).data);
+		}
+
+		return data;
+
+	}
+
+	/**
+	 * Release a file version's reference to each of its blocks, dropping blocks that are
+	 * no longer referenced
+	 * @param ids The hashes of the blocks, as returned by store()
+	 */
+	public synchronized void release(List<String> ids) {
+
+		for (String id : ids) {
+
+			Block block = blocks.get(id);
+			if (block == null) continue;
+
+			logicalBytes -= block.data.length();
+			if (--block.references == 0) {
+				blocks.remove(id);
+				storedBytes -= block.data.length();
+				if (block.data.isOffHeap()) slabs.free(block.data);
+			}
+
+		}
+
+	}
+
+	/**
+	 * Get the number of bytes referenced by all stored file versions
+	 * @return The logical size of the stored contents
+	 */
+	public synchronized long getLogicalBytes() {
+		return logicalBytes;
+	}
+
+	/**
+	 * Get the number of bytes actually held, with each block counted once
+	 * @return The stored size of the contents
+	 */
+	public synchronized long getStoredBytes() {
+		return storedBytes;
+	}
+
+	/**
+	 * Get the number of bytes saved by deduplication
+	 * @return Logical bytes minus stored bytes
+	 */
+	public synchronized long getSavedBytes() {
+		return logicalBytes - storedBytes;
+	}
+
+	/**
+	 * Get the deduplication ratio
+	 * @return Logical bytes divided by stored bytes (1.0 when nothing is shared)
+	 */
+	public synchronized double getDedupRatio() {
+		return (storedBytes == 0) ? 1.0 : (double) logicalBytes / storedBytes;
+	}
+
+	/**
+	 * Describe the store: its blocks, logical and stored bytes, and off-heap memory
+	 * @return A consistent snapshot of the store's totals
+	 */
+	public synchronized StoreStats getStats() {
+		return new StoreStats(blocks.size(), logicalBytes, storedBytes,
+				(slabs == null) ? 0 : slabs.getUsedBytes(), (slabs == null) ? 0 : slabs.getReservedBytes());
+	}
+
+	/**
+	 * Helper method that adds a reference to each block of a stored version, storing the
+	 * blocks that are new
+	 * @param ids The hashes of the blocks
+	 * @param chunks The contents of each block, or null for a block known to be stored
+	 */
+	private synchronized void addReferences(List<String> ids, List<byte[]> chunks) {
+
+		for (int i = 0; i < ids.size(); i++) {
+
+			Block block = blocks.get(ids.get(i));
+			if (block == null) {
+				block = new Block(allocate(chunks.get(i)));
+				blocks.put(ids.get(i), block);
+				storedBytes += block.data.length();
+			}
+
+			block.references++;
+			logicalBytes += block.data.length();
+
+		}
+
+	}
+
+	/**
+	 * Helper method that adds a reference to each block of a stored version, unless one
+	 * of them has already been dropped
+	 * @param ids The hashes of the blocks
+	 * @return The blocks, in order, or null if any of them is no longer stored
+	 */
+	private synchronized List<BlockData> retain(List<String> ids) {
+
+		for (String id : ids) {
+			if (!blocks.containsKey(id)) return null;
+		}
+
+		List<BlockData> data = new ArrayList<BlockData>(ids.size());
+		for (String id : ids) {
+			Block block = blocks.get(id);
+			block.references++;
+			logicalBytes += block.data.length();
+			data.add(block.data);
+		}
+
+		return data;
+
+	}
+
+	/**
+	 * Helper method that copies the changed bytes falling within a stored block over it
+	 * @param block The block's bytes, to change
+	 * @param blockStart The position of the block in the file
+	 * @param offset The position of the first byte changed
+	 * @param data The bytes now at that position
+	 */
+	private static void overlay(byte[] block, int blockStart, int offset, byte[] data) {
+
+		long from = Math.max(blockStart, offset);
+		long to = Math.min((long) blockStart + block.length, (long) offset + data.length);
+		if (from < to) System.arraycopy(data, (int) (from - offset), block, (int) (from - blockStart), (int) (to - from));
+
+	}
+
+	/**
+	 * Helper method that places a new block in off-heap memory if enabled and available,
+	 * otherwise on the heap
+	 * @param chunk The block contents
+	 * @return The stored block
+	 */
+	private BlockData allocate(byte[] chunk) {
+
+		if (slabs != null) {
+			BlockData offHeap = slabs.allocate(chunk);
+			if (offHeap != null) return offHeap;
+		}
+
+		return BlockData.onHeap(chunk);
+
+	}
+
+	/**
+	 * Helper method that chooses content-defined block boundaries
+	 * @param contents The contents to split
+	 * @return The end offset of each block
+	 */
+	private static List<Integer> findBoundaries(byte[] contents) {
+
+		List<Integer> boundaries = new ArrayList<Integer>();
+
+		int start = 0;
+		while (start < contents.length) {
+
+			// whatever is left is the last block
+			int end = nextBoundary(contents, start, contents.length);
+			if (end < 0) end = contents.length;
+
+			boundaries.add(end);
+			start = end;
+
+		}
+
+		return boundaries;
+
+	}
+
+	/**
+	 * Helper method that finds the end of the block starting at a boundary
+	 * @param contents The contents to split
+	 * @param start The position of the boundary the block starts at
+	 * @param end The end of the contents available
+	 * @return The end offset of the block, or -1 if it does not end before the end of the contents
+	 */
+	private static int nextBoundary(byte[] contents, int start, int end) {
+
+		long rolling = 0;
+		for (int i = start; i < end; i++) {
+
+			rolling = (rolling << 1) + GEAR[contents[i] & 0xFF];
+			int size = i + 1 - start;
+
+			if ((size >= MIN_BLOCK_SIZE && (rolling & BOUNDARY_MASK) == 0) || size >= MAX_BLOCK_SIZE) return i + 1;
+
+		}
+
+		return -1;
+
+	}
+
+	/**
+	 * Helper method that computes the address of a block
+	 * @param block The block contents
+	 * @return The SHA-256 hash of the block, in hex
+	 */
+	private static String hash(byte[] block) {
+
+		try {
+
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(block);
+
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (byte b : digest) hex.append(String.format("%02x", b));
+
+			return hex.toString();
+
+		} catch (NoSuchAlgorithmException e) {
+
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+
+		}
+
+	}
+
+}
@@ -0,0 +1,96 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * CallbackBreaker is a circuit breaker for the callbacks the server makes to one
+ * client. After several consecutive failed calls the breaker "opens" and further
+ * calls fail immediately, instead of each one waiting for a timeout. Once a
+ * cooldown has passed, a single trial call is let through; if it succeeds the
+ * breaker closes again.
+ *
+ * Breakers are shared per client address, so every file a client is registered
+ * with sees the same breaker.
+ *
+ */
+public class CallbackBreaker {
+
+	// consecutive failures that open the breaker
+	public static final int FAILURE_THRESHOLD = 3;
+
+	// how long an open breaker fails calls before allowing a trial call
+	public static final long COOLDOWN_MILLISECONDS = 30000;
+
+	// breakers, by client address
+	private static final ConcurrentMap<String, CallbackBreaker> BREAKERS = new ConcurrentHashMap<String, CallbackBreaker>();
+
+	// consecutive failed calls
+	private int failures = 0;
+
+	// when the breaker opened, or 0 if it is closed
+	private long openedAt = 0;
+
+	/**
+	 * Get the breaker for a client
+	 * @param clientAddress The client's address, as "host:port"
+	 * @return The breaker shared by all callbacks to that client
+	 */
+	public static CallbackBreaker forClient(String clientAddress) {
+
+		CallbackBreaker breaker = BREAKERS.get(clientAddress);
+		if (breaker == null) {
+			CallbackBreaker created = new CallbackBreaker();
+			breaker = BREAKERS.putIfAbsent(clientAddress, created);
+			if (breaker == null) breaker = created;
+		}
+
+		return breaker;
+
+	}
+
+	/**
+	 * Check whether a call may be attempted. An open breaker allows one trial call per cooldown.
+	 * @return TRUE if the call should be made, FALSE if it should fail immediately
+	 */
+	public synchronized boolean allowCall() {
+
+		if (openedAt == 0) return true;
+
+		long now = System.currentTimeMillis();
+		if (now - openedAt >= COOLDOWN_MILLISECONDS) {
+			openedAt = now;		// the next trial waits for another cooldown
+			return true;
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * Record a successful call, closing the breaker
+	 */
+	public synchronized void recordSuccess() {
+		failures = 0;
+		openedAt = 0;
+	}
+
+	/**
+	 * Record a failed call, opening the breaker once the threshold is reached
+	 */
+	public synchronized void recordFailure() {
+
+		failures++;
+		if (failures >= FAILURE_THRESHOLD && openedAt == 0) {
+			openedAt = System.currentTimeMillis();
+		}
+
+	}
+
+	/**
+	 * Check whether the breaker is open
+	 * @return TRUE if calls to the client are currently failing fast
+	 */
+	public synchronized boolean isOpen() {
+		return openedAt != 0;
+	}
+
+}
@@ -0,0 +1,79 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMISocketFactory;
+
+/**
+ * CallbackSocketFactory gives the RMI connections a FileServer opens (callbacks to
+ * clients, calls to other servers) a connect timeout and a read timeout, so that a
+ * host that vanished without closing its connections cannot hang a server thread
+ * until the operating system gives up. Incoming connections are unaffected.
+ *
+ * The timeouts are taken from the system properties fileserver.connectTimeoutMillis
+ * and fileserver.readTimeoutMillis.
+ *
+ */
+public class CallbackSocketFactory extends RMISocketFactory {
+
+	// system property for the connect timeout
+	public static final String CONNECT_TIMEOUT_PROPERTY = "fileserver.connectTimeoutMillis";
+
+	// system property for the read timeout
+	public static final String READ_TIMEOUT_PROPERTY = "fileserver.readTimeoutMillis";
+
+	// default time allowed to open a connection
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLISECONDS = 5000;
+
+	// default time allowed for a reply to arrive
+	public static final int DEFAULT_READ_TIMEOUT_MILLISECONDS = 10000;
+
+	// time allowed to open a connection
+	private final int connectTimeout;
+
+	// time allowed for a reply to arrive
+	private final int readTimeout;
+
+	/**
+	 * Install the factory for all RMI connections made by this process, using the
+	 * configured timeouts. Must be called before any remote object is exported.
+	 * @throws IOException If a socket factory has already been installed
+	 */
+	public static void install() throws IOException {
+
+		int connectTimeout = Integer.getInteger(CONNECT_TIMEOUT_PROPERTY, DEFAULT_CONNECT_TIMEOUT_MILLISECONDS);
+		int readTimeout = Integer.getInteger(READ_TIMEOUT_PROPERTY, DEFAULT_READ_TIMEOUT_MILLISECONDS);
+
+		if (FileServer.DEBUG_MODE) System.out.println("RMI connect timeout " + connectTimeout + " ms, read timeout " + readTimeout + " ms");
+
+		RMISocketFactory.setSocketFactory(new CallbackSocketFactory(connectTimeout, readTimeout));
+
+	}
+
+	/**
+	 * Create a factory with specific timeouts
+	 * @param connectTimeout Time allowed to open a connection, in milliseconds
+	 * @param readTimeout Time allowed for a reply to arrive, in milliseconds
+	 */
+	public CallbackSocketFactory(int connectTimeout, int readTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException {
+
+		Socket socket = new Socket();
+		socket.connect(new InetSocketAddress(host, port), connectTimeout);
+		socket.setSoTimeout(readTimeout);
+
+		return socket;
+
+	}
+
+	@Override
+	public ServerSocket createServerSocket(int port) throws IOException {
+		return new ServerSocket(port);
+	}
+
+}
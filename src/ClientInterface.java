@@ -1,6 +1,9 @@
 import java.rmi.*;
+import java.util.List;
 
 public interface ClientInterface extends Remote {
-    public boolean invalidate( ) throws RemoteException;
+    public boolean[] invalidate( List<Invalidation> invalidations ) throws RemoteException;
     public boolean writeback( ) throws 	RemoteException;
+    public FileContents fetch( String filename, long version ) throws RemoteException;
+    public boolean ping( ) throws RemoteException;
 }
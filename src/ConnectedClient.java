@@ -1,19 +1,43 @@
-import java.rmi.Naming;
-import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Connected Client is a container for information related to a client that
  * is being tracked by the Server, and also serves as an RMI proxy to the
  * client.
  *
+ * Callbacks go through the client's CallbackBreaker, so a client that has
+ * stopped responding is failed fast rather than waited on for every call.
+ *
  */
 public class ConnectedClient {
 
-	private static final String RMI_URL_PREFIX = "rmi://";
-	
 	private String clientIPName;
+	private int port;
 	private ServerFileState fileAccessMode;
-	private ClientInterface client;
+	private volatile ClientInterface client;
+	private CallbackBreaker breaker;
+	
+	// whether the most recent callback reached the client
+	private volatile boolean responsive = true;
+	
+	// the version of the file last given to this client (0 if unknown)
+	private volatile long heldVersion = 0;
+	
+	// the part of the file the client holds a copy of (all of it, unless it read a range)
+	private volatile long heldOffset = 0;
+	private volatile long heldLength = Long.MAX_VALUE;
+	
+	/**
+	 * Restore a client registered before the server restarted. The RMI proxy is looked
+	 * up on the first callback, so restoring many clients does not delay startup.
+	 * @param clientIPName The hostname/IP address of the client
+	 * @param port The port number the client is receiving RMI requests on
+	 * @return The restored client
+	 */
+	public static ConnectedClient restore(String clientIPName, int port) {
+		return new ConnectedClient(clientIPName, port, false);
+	}
 	
 	/**
 	 * Constructor for ConnectedClient, used to instantiate and init the client RMI proxy
@@ -21,26 +45,34 @@ public class ConnectedClient {
 	 * @param port The port number the client is receiving RMI requests on
 	 */
 	public ConnectedClient(String clientIPName, int port) {
+		this(clientIPName, port, true);
+	}
+	
+	/**
+	 * Internal constructor, optionally connecting to the client immediately
+	 * @param clientIPName The hostname/IP address of the client
+	 * @param port The port number the client is receiving RMI requests on
+	 * @param connectNow Whether to look up the client RMI proxy now
+	 */
+	private ConnectedClient(String clientIPName, int port, boolean connectNow) {
 		
 		this.clientIPName = clientIPName;
+		this.port = port;
+		this.breaker = CallbackBreaker.forClient(getClientAddress());
+		
+		if (!connectNow) return;
 		
 		// connect to the remote client
 		try {
 			
-			String RMIUrl = RMI_URL_PREFIX + clientIPName + ":" + port + "/" + FileServer.CLIENT_RMI_SERVICE_NAME;
-			
-			if (FileServer.DEBUG_MODE) System.out.println("Attempting to connect to client at: " + RMIUrl);
-
-			client = (ClientInterface) Naming.lookup(RMIUrl);
-
-			if (FileServer.DEBUG_MODE) System.out.println("Client connection made!");
+			connect();
 			
 		} catch (Exception e) {
 
+			// the server carries on, callbacks to this client will fail until it can be reached
 			System.err.println("Exception connecting to client (" + clientIPName + "," + port + "): " + e.getMessage());
-			
-			// negative return code is an error in execution
-			System.exit(-1);		
+			breaker.recordFailure();
+			responsive = false;
 			
 		}
 		
@@ -54,6 +86,66 @@ public class ConnectedClient {
 		return clientIPName;
 	}
 
+	/**
+	 * Get the port number the client is receiving RMI requests on
+	 * @return The client's port
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Get the address other clients use to reach this client's RMI service
+	 * @return The client's address, as "host:port"
+	 */
+	public String getClientAddress() {
+		return clientIPName + ":" + port;
+	}
+
+	/**
+	 * Get the version of the file last given to this client
+	 * @return The version held by the client, or 0 if unknown
+	 */
+	public long getHeldVersion() {
+		return heldVersion;
+	}
+
+	/**
+	 * Record the version of the file given to this client
+	 * @param heldVersion The version held by the client
+	 */
+	public void setHeldVersion(long heldVersion) {
+		this.heldVersion = heldVersion;
+	}
+
+	/**
+	 * Record the part of the file the client holds a copy of
+	 * @param heldOffset The position of the first byte held
+	 * @param heldLength The number of bytes held (Long.MAX_VALUE for the whole file)
+	 */
+	public void setHeldRange(long heldOffset, long heldLength) {
+		this.heldOffset = heldOffset;
+		this.heldLength = heldLength;
+	}
+
+	/**
+	 * Check whether the client holds a copy of the whole file
+	 * @return TRUE unless the client read only a range of the file
+	 */
+	public boolean holdsWholeFile() {
+		return heldOffset == 0 && heldLength == Long.MAX_VALUE;
+	}
+
+	/**
+	 * Check whether a change to part of the file affects the client's copy
+	 * @param offset The position of the first byte changed
+	 * @param length The number of bytes changed
+	 * @return TRUE if the client holds any of the changed bytes
+	 */
+	public boolean holdsAnyOf(long offset, long length) {
+		return RangeLease.overlaps(heldOffset, heldLength, offset, length);
+	}
+
 	/**
 	 * For the file this client is working with, the access mode
 	 * @return The access mode of the file the client is using
@@ -63,26 +155,36 @@ public class ConnectedClient {
 	}
 
 	/**
-	 * Instruct the client to mark it's copy of the file as invalid
-	 * @return Operation success (TRUE) or failure (FALSE)
+	 * Instruct the client to mark it's copies of the specified files as invalid, in one call
+	 * @param invalidations The files and the versions the server has committed
+	 * @return For each invalidation, whether the client's copy was invalidated (or was already
+	 * current), or null if the call failed
 	 */
-	public boolean invalidate() {
+	public boolean[] invalidate(List<Invalidation> invalidations) {
 
-		if (FileServer.DEBUG_MODE) System.out.println("Attempting to invalidate cache on client: " + clientIPName);
+		if (FileServer.DEBUG_MODE) System.out.println("Attempting to invalidate " + invalidations.size() + " cached file(s) on client: " + clientIPName);
 
+		// a dropped invalidation would leave the client's stale copy in use, so it is never shed
+		if (!allowCall(false)) return null;
+		
 		try {
 			
-			boolean success = client.invalidate();
+			connect();
+			boolean[] results = client.invalidate(invalidations);
+			recordSuccess();
 			
-			if (FileServer.DEBUG_MODE) System.out.println("Client cache invalidation attempt returned " + success);
+			if (FileServer.DEBUG_MODE) System.out.println("Client cache invalidation attempt returned " + Arrays.toString(results));
 
-			return success;
+			return results;
 			
-		} catch (RemoteException e) {
+		} catch (Exception e) {
 
 			if (FileServer.DEBUG_MODE) System.out.println("Exception caught trying to invalidate client cache:" + e.getMessage());
-			return false;
-			
+			recordFailure();
+			return null;
+		
+		} finally {
+			endCall();
 		}
 
 	}
@@ -103,21 +205,144 @@ public class ConnectedClient {
 
 		if (FileServer.DEBUG_MODE) System.out.println("Sending writeback request to client: " + clientIPName);
 
+		// a dropped writeback would leave the file changing owner, so it is never shed
+		if (!allowCall(false)) return false;
+		
 		try {
 			
+			connect();
 			boolean success = client.writeback();
+			recordSuccess();
 			
 			if (FileServer.DEBUG_MODE) System.out.println("Writeback request returned " + success);
 
 			return success;
 			
-		} catch (RemoteException e) {
+		} catch (Exception e) {
 
 			if (FileServer.DEBUG_MODE) System.out.println("Exception caught trying to request client writeback:" + e.getMessage());
+			recordFailure();
 			return false;
 		
+		} finally {
+			endCall();
 		}
 		
 	}
 	
+	/**
+	 * Check that the client is still alive
+	 * @return TRUE if the client answered, FALSE if it could not be reached
+	 */
+	public boolean ping() {
+
+		if (!allowCall(true)) return false;
+		
+		try {
+			
+			connect();
+			boolean alive = client.ping();
+			recordSuccess();
+			
+			return alive;
+			
+		} catch (Exception e) {
+
+			if (FileServer.DEBUG_MODE) System.out.println("Liveness ping to " + clientIPName + " failed: " + e.getMessage());
+			recordFailure();
+			return false;
+		
+		} finally {
+			endCall();
+		}
+		
+	}
+	
+	/**
+	 * Check whether the client can currently be reached. A FALSE result from a callback
+	 * made while the client is responsive is the client's own answer.
+	 * @return TRUE if the most recent callback reached the client and its breaker is closed
+	 */
+	public boolean isResponsive() {
+		return responsive && !breaker.isOpen();
+	}
+	
+	/**
+	 * Check whether callbacks to this client have failed repeatedly and are being failed fast
+	 * @return TRUE if the client's breaker is open
+	 */
+	public boolean isCircuitOpen() {
+		return breaker.isOpen();
+	}
+	
+	/**
+	 * Helper method that looks up the client's RMI proxy, if not already connected
+	 * @throws Exception If the client cannot be reached
+	 */
+	private void connect() throws Exception {
+		
+		if (client != null) return;
+		
+		if (FileServer.DEBUG_MODE) System.out.println("Attempting to connect to client at: " + getClientAddress());
+
+		client = (ClientInterface) Transport.getShared().lookup(getClientAddress(), FileServer.CLIENT_RMI_SERVICE_NAME);
+
+		if (FileServer.DEBUG_MODE) System.out.println("Client connection made!");
+		
+	}
+	
+	/**
+	 * Helper method that fails a callback immediately while the client's breaker is open,
+	 * and waits for (or, if it may be shed, fails) a callback while the server has too many
+	 * callbacks in progress. A callback that is allowed must be followed by endCall().
+	 * @param mayShed Whether the callback may be refused when the server is overloaded
+	 * @return TRUE if the callback should be attempted
+	 */
+	private boolean allowCall(boolean mayShed) {
+		
+		if (!breaker.allowCall()) {
+			if (FileServer.DEBUG_MODE) System.out.println("Callbacks to " + getClientAddress() + " are failing fast (circuit open)");
+			responsive = false;
+			return false;
+		}
+		
+		if (!mayShed) {
+			AdmissionControl.getShared().await(AdmissionControl.Operation.CALLBACK);
+			return true;
+		}
+		
+		// an overloaded server fails the callback without blaming the client
+		try {
+			AdmissionControl.getShared().enter(AdmissionControl.Operation.CALLBACK);
+			return true;
+		} catch (ServerBusyException e) {
+			if (FileServer.DEBUG_MODE) System.out.println("Callback to " + getClientAddress() + " refused: " + e.getMessage());
+			return false;
+		}
+		
+	}
+	
+	/**
+	 * Helper method that ends a callback allowed by allowCall()
+	 */
+	private void endCall() {
+		AdmissionControl.getShared().exit(AdmissionControl.Operation.CALLBACK);
+	}
+	
+	/**
+	 * Helper method that records a callback reaching the client
+	 */
+	private void recordSuccess() {
+		breaker.recordSuccess();
+		responsive = true;
+	}
+	
+	/**
+	 * Helper method that records a callback failing to reach the client
+	 */
+	private void recordFailure() {
+		breaker.recordFailure();
+		responsive = false;
+	}
+	
 }
\ No newline at end of file
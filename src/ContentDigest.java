@@ -0,0 +1,241 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+
+/**
+ * ContentDigest identifies the contents of one version of a file, so that an
+ * upload of byte-identical contents can be recognized without touching the disk.
+ *
+ * The digest holds the length, a CRC32C checksum (computed with hardware support
+ * on current JVMs) and a SHA-256 hash. Comparing new contents checks the length
+ * and the checksum first, so changed contents are almost always rejected after a
+ * single cheap pass; the hash is only computed for contents that are likely equal.
+ *
+ * A digest can be extended with bytes appended to its contents without passing
+ * over the contents again: the checksums are combined and the hash continues
+ * from the state it was left in.
+ *
+ */
+public final class ContentDigest {
+
+	// length of the contents in bytes
+	private final int length;
+
+	// CRC32C checksum of the contents
+	private final long checksum;
+
+	// SHA-256 hash of the contents
+	private final byte[] hash;
+
+	// SHA-256 state after the contents, to continue from when extending (null if it cannot be copied)
+	private final MessageDigest state;
+
+	// reversed CRC32C polynomial
+	private static final int POLYNOMIAL = 0x82F63B78;
+
+	/**
+	 * Compute the digest of some contents
+	 * @param contents The contents
+	 * @return The digest
+	 */
+	public static ContentDigest of(byte[] contents) {
+
+		MessageDigest sha = newHash();
+		sha.update(contents);
+
+		return finish(contents.length, checksum(contents), sha);
+
+	}
+
+	/**
+	 * Construct a digest
+	 * @param length Length of the contents in bytes
+	 * @param checksum CRC32C checksum of the contents
+	 * @param hash SHA-256 hash of the contents
+	 * @param state SHA-256 state after the contents, or null
+	 */
+	private ContentDigest(int length, long checksum, byte[] hash, MessageDigest state) {
+		this.length = length;
+		this.checksum = checksum;
+		this.hash = hash;
+		this.state = state;
+	}
+
+	/**
+	 * Compute the digest of these contents followed by some appended bytes, in time
+	 * proportional to the appended bytes
+	 * @param appended The bytes appended to the contents
+	 * @return The digest of the longer contents, or null if the hash state could not be kept
+	 */
+	public ContentDigest extend(byte[] appended) {
+
+		if (state == null) return null;
+
+		MessageDigest sha = copy(state);
+		if (sha == null) return null;
+		sha.update(appended);
+
+		return finish(length + appended.length, combine(checksum, checksum(appended), appended.length), sha);
+
+	}
+
+	/**
+	 * Check whether some contents are identical to the ones this digest was computed from
+	 * @param contents The contents to compare
+	 * @return TRUE if the length, checksum and hash all match
+	 */
+	public boolean matches(byte[] contents) {
+
+		if (contents == null || contents.length != length) return false;
+		if (checksum(contents) != checksum) return false;
+
+		return MessageDigest.isEqual(hash(contents), hash);
+
+	}
+
+	/**
+	 * Helper method that computes the CRC32C checksum of some contents
+	 * @param contents The contents
+	 * @return The checksum
+	 */
+	private static long checksum(byte[] contents) {
+
+		CRC32C crc = new CRC32C();
+		crc.update(contents, 0, contents.length);
+
+		return crc.getValue();
+
+	}
+
+	/**
+	 * Helper method that computes the SHA-256 hash of some contents
+	 * @param contents The contents
+	 * @return The hash
+	 */
+	private static byte[] hash(byte[] contents) {
+		return newHash().digest(contents);
+	}
+
+	/**
+	 * Helper method that builds a digest from a hash that has been fed all the contents,
+	 * keeping a copy of its state for extending the digest later
+	 * @param length Length of the contents in bytes
+	 * @param checksum CRC32C checksum of the contents
+	 * @param sha The hash, which is finished by this call
+	 * @return The digest
+	 */
+	private static ContentDigest finish(int length, long checksum, MessageDigest sha) {
+
+		MessageDigest state = copy(sha);
+
+		return new ContentDigest(length, checksum, sha.digest(), state);
+
+	}
+
+	/**
+	 * Helper method that creates a SHA-256 hash
+	 * @return The hash, with nothing fed to it
+	 */
+	private static MessageDigest newHash() {
+
+		try {
+
+			return MessageDigest.getInstance("SHA-256");
+
+		} catch (NoSuchAlgorithmException e) {
+
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+
+		}
+
+	}
+
+	/**
+	 * Helper method that copies the state of a hash
+	 * @param sha The hash
+	 * @return An independent copy, or null if the provider does not support copying
+	 */
+	private static MessageDigest copy(MessageDigest sha) {
+
+		try {
+
+			return (MessageDigest) sha.clone();
+
+		} catch (CloneNotSupportedException e) {
+
+			return null;
+
+		}
+
+	}
+
+	/**
+	 * Helper method that combines the CRC32C checksums of two byte sequences into the
+	 * checksum of their concatenation (as zlib's crc32_combine does for CRC-32)
+	 * @param first The checksum of the first sequence
+	 * @param second The checksum of the second sequence
+	 * @param secondLength The length of the second sequence
+	 * @return The checksum of the first sequence followed by the second
+	 */
+	private static long combine(long first, long second, long secondLength) {
+
+		if (secondLength <= 0) return first;
+
+		// operator for one zero bit, then for two and four zero bits
+		int[] odd = new int[32];
+		int[] even = new int[32];
+		odd[0] = POLYNOMIAL;
+		for (int i = 1, row = 1; i < 32; i++, row <<= 1) odd[i] = row;
+		square(even, odd);
+		square(odd, even);
+
+		// apply the operator for secondLength zero bytes to the first checksum
+		int crc = (int) first;
+		long remaining = secondLength;
+		do {
+
+			square(even, odd);
+			if ((remaining & 1) != 0) crc = times(even, crc);
+			remaining >>>= 1;
+			if (remaining == 0) break;
+
+			square(odd, even);
+			if ((remaining & 1) != 0) crc = times(odd, crc);
+			remaining >>>= 1;
+
+		} while (remaining != 0);
+
+		return (crc ^ (int) second) & 0xFFFFFFFFL;
+
+	}
+
+	/**
+	 * Helper method that multiplies a vector by a matrix over GF(2)
+	 * @param matrix The matrix, one column per bit
+	 * @param vector The vector
+	 * @return The product
+	 */
+	private static int times(int[] matrix, int vector) {
+
+		int sum = 0;
+		for (int i = 0; vector != 0; i++, vector >>>= 1) {
+			if ((vector & 1) != 0) sum ^= matrix[i];
+		}
+
+		return sum;
+
+	}
+
+	/**
+	 * Helper method that squares a matrix over GF(2)
+	 * @param square Where to place the square
+	 * @param matrix The matrix
+	 */
+	private static void square(int[] square, int[] matrix) {
+
+		for (int i = 0; i < 32; i++) square[i] = times(matrix, matrix[i]);
+
+	}
+
+}
@@ -4,12 +4,28 @@ import java.net.*;
 import java.rmi.*;
 import java.rmi.server.*;
 import java.rmi.registry.*;
+import java.util.concurrent.*;
 
 public class FileClient extends UnicastRemoteObject implements  ClientInterface
 {
     private ServerInterface server = null;
     private BufferedReader input = null;
 
+    //Cluster stuff, ring is null when talking to a single server
+    private RingConfig ringConfig = null;
+    private Map<String, ServerInterface> shardServers = new HashMap<String, ServerInterface>();
+
+    //Read replica stuff, reads go to one replica picked for this client
+    private List<String> replicaNames = new ArrayList<String>();
+    private ServerInterface replica = null;
+
+    //The server holding this client's registration for the current file
+    private ServerInterface currentServer = null;
+
+    //Busy server stuff, how often to retry before giving up
+    private static final int MAX_BUSY_RETRIES = 5;
+    private Random backoffJitter = new Random();
+
     //File stuff
     public String clientIP = "";
     public FileState currentFileState = FileState.Invalid;
@@ -17,6 +33,34 @@ public class FileClient extends UnicastRemoteObject implements  ClientInterface
     private String currentFileName = "";
     private FileContents fileContents = null;
 
+    //Prefetch stuff, files likely to be opened next are fetched in the background
+    private static final double PREFETCH_MIN_PROBABILITY = 0.2;
+    private static final long PREFETCH_BUDGET_BYTES = Long.getLong("fileclient.prefetch.bytes", 4L * 1024 * 1024);
+    private AccessPredictor predictor = new AccessPredictor(new File("tmp/transitions.txt"));
+    private Map<String, FileContents> prefetched = new ConcurrentHashMap<String, FileContents>();
+    private ExecutorService prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory()
+    {
+        public Thread newThread(Runnable task)
+        {
+            Thread thread = new Thread(task, "prefetcher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    //Downloads make the server forget this client's other files, so prefetches never overlap them
+    private final Object downloadLock = new Object();
+    private int downloadGeneration = 0;
+
+    //Host cache stuff, shared with the other clients on this host using the same server, null if not used
+    private static final long HOST_CACHE_CHECK_MILLISECONDS = 5000;
+    private HostCache hostCache = null;
+    private int hostCachePort = 0;
+    private String hostCacheBinding = "fileclient-" + UUID.randomUUID();
+
+    //Set while the file is open in emacs for writing, a writeback then waits for emacs to close
+    private boolean editing = false;
+
     /*
     Initializes the file client with a server ip and port
      */
@@ -26,7 +70,18 @@ public class FileClient extends UnicastRemoteObject implements  ClientInterface
         {
             //Tries to access the server object
             System.out.println("rmi://" + serverIP + ":" + port + "/fileserver");
-            server = (ServerInterface)Naming.lookup("rmi://" + serverIP + ":" + port + "/fileserver");
+            server = (ServerInterface)Transport.getShared().lookup(serverIP + ":" + port, ServerInterface.RMI_SERVICE_NAME);
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+
+        try
+        {
+            InetAddress addr = InetAddress.getLocalHost();
+            clientIP = addr.getHostAddress();
         }
         catch (Exception e)
         {
@@ -34,6 +89,16 @@ public class FileClient extends UnicastRemoteObject implements  ClientInterface
             System.exit(-1);
         }
 
+        input = new BufferedReader(new InputStreamReader(System.in));
+    }
+
+    /*
+    Initializes the file client for a cluster of servers described by a ring config
+     */
+    public FileClient(RingConfig ringConfig) throws RemoteException
+    {
+        this.ringConfig = ringConfig;
+
         try
         {
             InetAddress addr = InetAddress.getLocalHost();
@@ -48,6 +113,290 @@ public class FileClient extends UnicastRemoteObject implements  ClientInterface
         input = new BufferedReader(new InputStreamReader(System.in));
     }
 
+    /*
+    Finds the server responsible for a file, connecting to its shard if needed
+     */
+    public ServerInterface getServer(String fileName) throws RemoteException
+    {
+        if (ringConfig == null)
+        {
+            return server;
+        }
+
+        String shard = ringConfig.get().getShard(fileName);
+        ServerInterface shardServer = shardServers.get(shard);
+
+        if (shardServer == null)
+        {
+            try
+            {
+                //Servers call back on their own port, so listen there too
+                exportTo(HashRing.getPort(shard));
+
+                System.out.println("rmi://" + shard + "/fileserver");
+                shardServer = (ServerInterface)Transport.getShared().lookup(shard, ServerInterface.RMI_SERVICE_NAME);
+                shardServers.put(shard, shardServer);
+            }
+            catch (RemoteException e)
+            {
+                throw e;
+            }
+            catch (Exception e)
+            {
+                throw new RemoteException("Unable to connect to shard " + shard, e);
+            }
+        }
+
+        return shardServer;
+    }
+
+    /*
+    Sets the read replicas that read-mode downloads are sent to
+     */
+    public void setReplicas(List<String> replicaNames)
+    {
+        this.replicaNames = new ArrayList<String>(replicaNames);
+        this.replica = null;
+    }
+
+    /*
+    Finds the server for a read-mode download, preferring this client's replica
+     */
+    public ServerInterface getReadServer(String fileName) throws RemoteException
+    {
+        if (replicaNames.isEmpty())
+        {
+            return getServer(fileName);
+        }
+
+        if (replica == null)
+        {
+            //Each client sticks to one replica, spreading clients over all of them
+            String replicaName = replicaNames.get(Math.abs(clientIP.hashCode() % replicaNames.size()));
+
+            try
+            {
+                //Replicas call back on their own port, so listen there too
+                exportTo(HashRing.getPort(replicaName));
+
+                System.out.println("rmi://" + replicaName + "/fileserver");
+                replica = (ServerInterface)Transport.getShared().lookup(replicaName, ServerInterface.RMI_SERVICE_NAME);
+            }
+            catch (Exception e)
+            {
+                //Fall back on the primary when the replica can't be reached
+                e.printStackTrace();
+
+                return getServer(fileName);
+            }
+        }
+
+        return replica;
+    }
+
+    /*
+    Makes this client reachable for callbacks from servers using the given port
+     */
+    public void exportTo(int port) throws Exception
+    {
+        Transport.getShared().bind(clientIP, port, FileServer.CLIENT_RMI_SERVICE_NAME, this);
+    }
+
+    /*
+    Shares downloaded files with the other clients on this host that use the server on the
+    given port. Only one of them, the leader, is registered for callbacks as "fileclient";
+    the others register under their own names, and one takes over if the leader exits.
+     */
+    public void useHostCache(int port) throws Exception
+    {
+        hostCache = new HostCache(port);
+        hostCachePort = port;
+
+        this.checkHostLeader();
+
+        ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable task)
+            {
+                Thread thread = new Thread(task, "host-cache");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        checker.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                checkHostLeader();
+            }
+        }, HOST_CACHE_CHECK_MILLISECONDS, HOST_CACHE_CHECK_MILLISECONDS, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+    Keeps this client bound for callbacks, taking over as leader if there is none. The
+    registry lives in whichever client started it, so it may have to be started again.
+     */
+    private void checkHostLeader()
+    {
+        try
+        {
+            startRegistry(hostCachePort);
+            Registry registry = LocateRegistry.getRegistry(hostCachePort);
+
+            if (!hostCache.tryLead())
+            {
+                registry.rebind(hostCacheBinding, this);
+
+                return;
+            }
+
+            Remote bound = null;
+            try
+            {
+                bound = registry.lookup("fileclient");
+            }
+            catch (NotBoundException e)
+            {
+                //Nobody is bound yet
+            }
+
+            if (!RemoteObject.toStub(this).equals(bound))
+            {
+                registry.rebind("fileclient", this);
+
+                try
+                {
+                    registry.unbind(hostCacheBinding);
+                }
+                catch (NotBoundException e)
+                {
+                    //Was never a follower
+                }
+
+                //Callbacks may have been missed while no leader was bound
+                hostCache.clear();
+
+                System.out.println("Holding the host registration for the shared cache");
+            }
+        }
+        catch (Exception e)
+        {
+            System.out.println("Host cache check failed: " + e.getMessage());
+        }
+    }
+
+    /*
+    Stops sharing files with the other clients on this host
+     */
+    private void leaveHostCache()
+    {
+        if (hostCache == null)
+        {
+            return;
+        }
+
+        try
+        {
+            Registry registry = LocateRegistry.getRegistry(hostCachePort);
+            registry.unbind(hostCache.isLeader() ? "fileclient" : hostCacheBinding);
+        }
+        catch (Exception e)
+        {
+            //Already gone along with the registry
+        }
+
+        try
+        {
+            hostCache.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+    Checks the other clients on this host have not dropped the host's copy of a file
+     */
+    private boolean isCurrentOnHost(String fileName)
+    {
+        if (hostCache == null)
+        {
+            return true;
+        }
+
+        try
+        {
+            return fileContents != null && hostCache.isCurrent(fileName, fileContents.getVersion());
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    /*
+    Gets a file for reading from the host cache, or downloads it into the host cache.
+    A prefetch registers the host as a reader of the whole file (so the leader is pushed
+    new versions and may serve peers) without making it drop the other clients' files.
+     */
+    private FileContents downloadThroughHostCache(ServerInterface fileServer, String fileName) throws RemoteException
+    {
+        long mark = 0;
+
+        try
+        {
+            FileContents cachedC = hostCache.get(fileName);
+            if (cachedC != null)
+            {
+                System.out.println("File found in host cache");
+
+                return cachedC;
+            }
+
+            mark = hostCache.mark();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Host cache unavailable: " + e.getMessage());
+
+            return this.prefetchWithBackoff(fileServer, fileName);
+        }
+
+        FileContents fileC = this.prefetchWithBackoff(fileServer, fileName);
+
+        if (fileC != null)
+        {
+            try
+            {
+                hostCache.put(fileName, fileC, mark);
+            }
+            catch (IOException e)
+            {
+                System.out.println("Unable to add " + fileName + " to host cache: " + e.getMessage());
+            }
+        }
+
+        return fileC;
+    }
+
+    /*
+    Drops the files in the host cache, once a download has made the server forget the
+    host's registrations for them
+     */
+    private void clearHostCache()
+    {
+        try
+        {
+            hostCache.clear();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Unable to clear host cache: " + e.getMessage());
+        }
+    }
+
 
 
     /*
@@ -77,8 +426,14 @@ public class FileClient extends UnicastRemoteObject implements  ClientInterface
                 }
                 else if (fileName.equalsIgnoreCase("quit"))
                 {
+                    System.out.println(predictor.getReport());
                     System.out.println("Thanks for using FileClient. Bye!!");
 
+                    if (createTempDir())
+                    {
+                        predictor.save();
+                    }
+
                     break;
                 }
 
@@ -100,6 +455,7 @@ public class FileClient extends UnicastRemoteObject implements  ClientInterface
             }
 
             boolean openEmacs = true;
+            String previousFileName = currentFileName;
 
             //Check if the file exists
             if (!this.checkIfExists(fileName, readWriteString))
@@ -119,8 +475,19 @@ public class FileClient extends UnicastRemoteObject implements  ClientInterface
                     }
                 }
 
+                boolean prefetchHit = readWriteString.equals("r") && this.openPrefetched(fileName);
+
+                if (readWriteString.equals("r"))
+                {
+                    predictor.recordReadOpen(prefetchHit);
+                }
+
                 //Otherwise not available, so download
-                if (!this.download(fileName, readWriteString))
+                if (prefetchHit)
+                {
+                    System.out.println("File opened from prefetched copy");
+                }
+                else if (!this.download(fileName, readWriteString))
                 {
                     System.out.println("ERROR: Download failed");
 
@@ -134,10 +501,16 @@ public class FileClient extends UnicastRemoteObject implements  ClientInterface
 
             if (openEmacs)
             {
+                //Learn the user's habits, and fetch what they will probably open next
+                predictor.recordTransition(previousFileName, fileName);
+                this.prefetchAfter(fileName);
+
                 if (createTempDir())
                 {
                     //Finally, show the file in emacs
+                    this.setEditing(readWriteString.equals("w"));
                     this.showInEmacs(readWriteString);
+                    this.setEditing(false);
                 }
                 else
                 {
@@ -146,6 +519,8 @@ public class FileClient extends UnicastRemoteObject implements  ClientInterface
             }
         }
         
+        this.leaveHostCache();
+
         try
         {
             UnicastRemoteObject.unexportObject(this, true);
@@ -156,50 +531,337 @@ public class FileClient extends UnicastRemoteObject implements  ClientInterface
         }
     }
 
-    //Client interface implementation
-    public boolean invalidate() throws RemoteException
+    //Client interface implementation, the server batches invalidations of several files in one call
+    public boolean[] invalidate(List<Invalidation> invalidations) throws RemoteException
     {
-        if (currentFileState == FileState.ReadShared)
+        boolean[] results = new boolean[invalidations.size()];
+
+        for (int i = 0; i < invalidations.size(); i++)
         {
-            currentFileState = FileState.Invalid;
+            Invalidation invalidation = invalidations.get(i);
 
-            return true;
-        }
+            //The leader keeps the host cache valid for all the clients on this host
+            results[i] = this.invalidateOnHost(invalidation);
 
-        return false;
-    }
+            //A prefetched copy takes a pushed version, or is dropped and downloaded again if it is opened
+            synchronized (prefetched)
+            {
+                FileContents prefetchedC = prefetched.remove(invalidation.getFilename());
+                if (prefetchedC != null)
+                {
+                    FileContents updatedC = this.applyUpdate(prefetchedC, invalidation);
+                    if (updatedC != null)
+                    {
+                        prefetched.put(invalidation.getFilename(), updatedC);
+                    }
 
-    //Client interface implementation
-    public boolean writeback() throws RemoteException
-    {
-        if (currentFileState == FileState.WriteOwned)
-        {
-            currentFileState = FileState.ReleaseOwnership;
+                    results[i] = results[i] || updatedC != null || !invalidation.isUpdate();
 
-            return true;
+                    continue;
+                }
+            }
+
+            //Only a read-shared copy of the file can be invalidated, anything else means
+            //this client is no longer sharing that file
+            if (!currentFileName.equals(invalidation.getFilename()) || currentFileState != FileState.ReadShared)
+            {
+                continue;
+            }
+
+            //A copy at least as new as the committed version stays valid
+            FileContents heldContents = fileContents;
+            if (heldContents != null && heldContents.getVersion() >= invalidation.getVersion())
+            {
+                results[i] = true;
+
+                continue;
+            }
+
+            //The server may push the new version, so the copy stays valid without a download
+            if (invalidation.getContents() != null)
+            {
+                fileContents = invalidation.getContents();
+                results[i] = true;
+            }
+            else if (invalidation.getDelta() != null && heldContents != null
+                && heldContents.getVersion() == invalidation.getDelta().getFromVersion())
+            {
+                fileContents = invalidation.getDelta().apply(heldContents);
+                results[i] = true;
+            }
+            else
+            {
+                currentFileState = FileState.Invalid;
+
+                //A pushed version that could not be applied leaves this copy unregistered
+                results[i] = results[i] || !invalidation.isUpdate();
+            }
         }
 
-        return false;
+        return results;
     }
 
-    public static void main(String[] args)
+    /*
+    Applies an invalidation to the host cache when this client is the leader, returns
+    true if the host still holds a copy of the file that stays registered
+     */
+    private boolean invalidateOnHost(Invalidation invalidation)
     {
-        if (args.length != 2)
+        if (hostCache == null || !hostCache.isLeader())
         {
-            System.out.println("usage: java FileClient serverIP port");
-            System.exit(-1);
+            return false;
         }
 
+        String fileName = invalidation.getFilename();
+
         try
         {
-            // start local RMI registry
-            startRegistry(Integer.parseInt(args[1]));
-
-            //Creates the file client
-            FileClient client = new FileClient(args[0], args[1]);
-            Naming.rebind("rmi://localhost:" + args[1] + "/fileclient", client);
-            client.startClient();
-        }
+            //A pushed version replaces the cached copy, anything else drops it
+            FileContents pushed = invalidation.getContents();
+            if (pushed == null && invalidation.getDelta() != null)
+            {
+                FileContents cachedC = hostCache.get(fileName);
+                if (cachedC != null && cachedC.getVersion() == invalidation.getDelta().getFromVersion())
+                {
+                    pushed = invalidation.getDelta().apply(cachedC);
+                }
+            }
+
+            if (pushed != null && hostCache.update(fileName, pushed))
+            {
+                return true;
+            }
+
+            return hostCache.invalidate(fileName, invalidation.getVersion()) && !invalidation.isUpdate();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Unable to invalidate " + fileName + " in host cache: " + e.getMessage());
+
+            return false;
+        }
+    }
+
+    //Client interface implementation
+    public boolean writeback() throws RemoteException
+    {
+        synchronized (this)
+        {
+            if (currentFileState == FileState.WriteOwned)
+            {
+                currentFileState = FileState.ReleaseOwnership;
+
+                //Nobody is editing the file, so upload it now rather than when the next file is opened
+                if (!editing)
+                {
+                    this.uploadInBackground();
+                }
+
+                return true;
+            }
+        }
+
+        //The leader is called back for the whole host, so the owner may be another client here
+        if (hostCache != null && hostCache.isLeader())
+        {
+            return this.writebackOnHost();
+        }
+
+        return false;
+    }
+
+    /*
+    Notes whether the file is open in emacs for writing. A writeback that came in while
+    it was, and was not uploaded when emacs closed, is uploaded once editing ends.
+     */
+    private void setEditing(boolean nowEditing)
+    {
+        synchronized (this)
+        {
+            editing = nowEditing;
+
+            if (editing || currentFileState != FileState.ReleaseOwnership)
+            {
+                return;
+            }
+        }
+
+        this.uploadInBackground();
+    }
+
+    /*
+    Uploads the file for a writeback, after the callback has returned to the server
+     */
+    private void uploadInBackground()
+    {
+        Thread uploader = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                synchronized (downloadLock)
+                {
+                    //Unless the main loop has uploaded it meanwhile
+                    if (currentFileState == FileState.ReleaseOwnership && !upload())
+                    {
+                        System.out.println("ERROR: Upload for writeback failed");
+                    }
+                }
+            }
+        }, "writeback");
+
+        uploader.setDaemon(true);
+        uploader.start();
+    }
+
+    /*
+    Passes a writeback on to the other clients on this host, returns true if one owned the file
+     */
+    private boolean writebackOnHost()
+    {
+        boolean owned = false;
+
+        try
+        {
+            Registry registry = LocateRegistry.getRegistry(hostCachePort);
+
+            for (String name : registry.list())
+            {
+                if (!name.startsWith("fileclient-"))
+                {
+                    continue;
+                }
+
+                try
+                {
+                    ClientInterface follower = (ClientInterface)registry.lookup(name);
+                    owned |= follower.writeback();
+                }
+                catch (Exception e)
+                {
+                    //A client that exited without unbinding
+                    registry.unbind(name);
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            System.out.println("Unable to pass writeback on: " + e.getMessage());
+        }
+
+        return owned;
+    }
+
+    //Client interface implementation, lets a peer fetch the copy this client holds
+    public FileContents fetch(String fileName, long version) throws RemoteException
+    {
+        FileContents heldContents = fileContents;
+
+        //Only serve the exact version asked for, and only while it is still valid
+        if (currentFileName.equals(fileName) && currentFileState != FileState.Invalid
+            && heldContents != null && heldContents.getVersion() == version)
+        {
+            return heldContents;
+        }
+
+        //Prefetched copies are registered with the server too
+        FileContents prefetchedC = prefetched.get(fileName);
+        if (prefetchedC != null && prefetchedC.getVersion() == version)
+        {
+            return prefetchedC;
+        }
+
+        //The leader serves the host's copy too
+        if (hostCache != null && hostCache.isLeader())
+        {
+            try
+            {
+                FileContents cachedC = hostCache.get(fileName);
+                if (cachedC != null && cachedC.getVersion() == version)
+                {
+                    return cachedC;
+                }
+            }
+            catch (IOException e)
+            {
+                System.out.println("Host cache unavailable: " + e.getMessage());
+            }
+        }
+
+        return null;
+    }
+
+    /*
+        Applies an invalidation to a held copy of a file. Returns the copy if it is still
+        current, the pushed version if one can be applied, or null if it is invalid.
+    */
+    private FileContents applyUpdate(FileContents heldContents, Invalidation invalidation)
+    {
+        if (heldContents.getVersion() >= invalidation.getVersion())
+        {
+            return heldContents;
+        }
+
+        if (invalidation.getContents() != null)
+        {
+            return invalidation.getContents();
+        }
+
+        if (invalidation.getDelta() != null && heldContents.getVersion() == invalidation.getDelta().getFromVersion())
+        {
+            return invalidation.getDelta().apply(heldContents);
+        }
+
+        return null;
+    }
+
+    //Client interface implementation, lets the server check this client is alive
+    public boolean ping() throws RemoteException
+    {
+        return true;
+    }
+
+    public static void main(String[] args)
+    {
+        if (args.length != 2 && !(args.length == 4 && args[2].equals("-replicas")))
+        {
+            System.out.println("usage: java FileClient serverIP port [-replicas host:port[,host:port...]]");
+            System.out.println("   or: java FileClient -ring ringfile");
+            System.out.println("Clients on one host share downloads with -Dfileclient.hostCache=true (single server only)");
+            System.exit(-1);
+        }
+
+        try
+        {
+            FileClient client = null;
+
+            if (args[0].equals("-ring"))
+            {
+                //Creates the file client for a cluster, shards are connected on first use
+                client = new FileClient(new RingConfig(args[1]));
+            }
+            else
+            {
+                //Creates the file client
+                client = new FileClient(args[0], args[1]);
+
+                //Read-mode downloads go to the replicas, if any
+                if (args.length == 4)
+                {
+                    client.exportTo(Integer.parseInt(args[1]));
+                    client.setReplicas(Arrays.asList(args[3].split(",")));
+                }
+                else if (Boolean.getBoolean("fileclient.hostCache"))
+                {
+                    client.useHostCache(Integer.parseInt(args[1]));
+                }
+                else
+                {
+                    client.exportTo(Integer.parseInt(args[1]));
+                }
+            }
+
+            client.startClient();
+        }
         catch (Exception e)
         {
             e.printStackTrace();
@@ -241,6 +903,13 @@ public class FileClient extends UnicastRemoteObject implements  ClientInterface
             //False if the file is about to not be owned anymore
             return false;
         }
+        else if (currentFileState == FileState.ReadShared && !this.isCurrentOnHost(fileName))
+        {
+            //False if another client on this host learned the copy is out of date
+            currentFileState = FileState.Invalid;
+
+            return false;
+        }
         else if (readWrite.equals("r") && currentFileState != FileState.Invalid)
         {
             //True since client has most up to date version
@@ -259,16 +928,49 @@ public class FileClient extends UnicastRemoteObject implements  ClientInterface
         Downloads the file from the server.
     */
     public boolean download(String fileName, String readWrite)
+    {
+        synchronized (downloadLock)
+        {
+            //The server forgets the prefetched copies when this client downloads a file
+            downloadGeneration++;
+            prefetched.clear();
+
+            return this.downloadFile(fileName, readWrite);
+        }
+    }
+
+    /*
+        Downloads the file from the server, once no prefetch is running.
+    */
+    private boolean downloadFile(String fileName, String readWrite)
     {
         try
         {
-            //Download the file with rmi interface
+            //Download the file with rmi interface, from a replica for reads or the server that owns it
+            ServerInterface fileServer = readWrite.equals("r") ? getReadServer(fileName) : getServer(fileName);
 
-            FileContents fileC = server.download(clientIP, fileName, readWrite);
+            FileContents fileC = (hostCache != null && readWrite.equals("r"))
+                ? this.downloadThroughHostCache(fileServer, fileName)
+                : this.downloadWithBackoff(fileServer, fileName, readWrite);
+
+            //The server may send us to a peer that holds the same version
+            if (fileC != null && fileC.isRedirect())
+            {
+                fileC = this.fetchFromPeer(fileServer, fileName, fileC);
+            }
 
             if (fileC != null)
             {
-                fileContents = new FileContents(fileC.get());
+                fileContents = new FileContents(fileC.get(), fileC.getVersion());
+
+                //Uploads go back to the server holding our registration
+                currentServer = fileServer;
+
+                //A write-mode download makes the server forget the host's other files
+                if (hostCache != null && readWrite.equals("w"))
+                {
+                    this.clearHostCache();
+                }
             }
             else
             {
@@ -308,6 +1010,256 @@ public class FileClient extends UnicastRemoteObject implements  ClientInterface
         return true;
     }
 
+    /*
+        Opens a file from its prefetched copy, if there is one. The copy is registered with
+        the server like a downloaded one, so it stays valid until it is invalidated.
+    */
+    public boolean openPrefetched(String fileName)
+    {
+        synchronized (prefetched)
+        {
+            FileContents prefetchedC = prefetched.remove(fileName);
+            if (prefetchedC == null)
+            {
+                return false;
+            }
+
+            try
+            {
+                currentServer = getReadServer(fileName);
+            }
+            catch (RemoteException e)
+            {
+                return false;
+            }
+
+            fileContents = prefetchedC;
+            currentFileName = fileName;
+            currentFileState = FileState.ReadShared;
+
+            return true;
+        }
+    }
+
+    /*
+        Starts fetching the files the user will probably open after this one, in read
+        mode, in the background and within the prefetch byte budget.
+    */
+    public void prefetchAfter(String fileName)
+    {
+        final int generation = downloadGeneration;
+
+        for (final String nextFileName : predictor.predict(fileName, PREFETCH_MIN_PROBABILITY))
+        {
+            prefetcher.execute(new Runnable()
+            {
+                public void run()
+                {
+                    prefetch(nextFileName, generation);
+                }
+            });
+        }
+    }
+
+    /*
+        Fetches one file for the prefetched copies, unless a download has happened since
+        it was predicted, it is already held, or it does not fit in the budget.
+    */
+    private void prefetch(String fileName, int generation)
+    {
+        synchronized (downloadLock)
+        {
+            if (generation != downloadGeneration || prefetched.containsKey(fileName) || fileName.equals(currentFileName))
+            {
+                return;
+            }
+
+            long prefetchedBytes = 0;
+            for (FileContents prefetchedC : prefetched.values())
+            {
+                prefetchedBytes += prefetchedC.length();
+            }
+
+            try
+            {
+                ServerInterface readServer = getReadServer(fileName);
+
+                FileStat stat = readServer.stat(fileName);
+                if (stat == null || !stat.exists() || prefetchedBytes + stat.getSize() > PREFETCH_BUDGET_BYTES)
+                {
+                    return;
+                }
+
+                //A prefetch registers this client as a reader without making it drop its current file
+                long mark = (hostCache == null) ? 0 : hostCache.mark();
+                FileContents fileC = readServer.prefetch(clientIP, fileName);
+                if (fileC != null && prefetchedBytes + fileC.length() <= PREFETCH_BUDGET_BYTES)
+                {
+                    prefetched.put(fileName, new FileContents(fileC.get(), fileC.getVersion()));
+                    predictor.recordPrefetch();
+
+                    //The other clients on this host can use it too
+                    if (hostCache != null)
+                    {
+                        hostCache.put(fileName, fileC, mark);
+                    }
+                }
+            }
+            catch (Exception e)
+            {
+                //A busy or unreachable server just means no prefetch
+                System.out.println("Prefetch of " + fileName + " skipped: " + e.getMessage());
+            }
+        }
+    }
+
+    /*
+        Downloads from the server, waiting and retrying while it is too busy to answer.
+        Returns null if it stays busy.
+    */
+    public FileContents downloadWithBackoff(ServerInterface fileServer, String fileName, String readWrite) throws RemoteException
+    {
+        for (int attempt = 0; ; attempt++)
+        {
+            try
+            {
+                return fileServer.download(clientIP, fileName, readWrite);
+            }
+            catch (ServerBusyException e)
+            {
+                if (!this.backOff(e, attempt))
+                {
+                    return null;
+                }
+            }
+        }
+    }
+
+    /*
+        Prefetches a file from the server, waiting and retrying while it is too busy to
+        answer. Returns null if it stays busy.
+    */
+    public FileContents prefetchWithBackoff(ServerInterface fileServer, String fileName) throws RemoteException
+    {
+        for (int attempt = 0; ; attempt++)
+        {
+            try
+            {
+                return fileServer.prefetch(clientIP, fileName);
+            }
+            catch (ServerBusyException e)
+            {
+                if (!this.backOff(e, attempt))
+                {
+                    return null;
+                }
+            }
+        }
+    }
+
+    /*
+        Uploads to the server, waiting and retrying while it is too busy to answer.
+        Returns false if it stays busy.
+    */
+    public boolean uploadWithBackoff(ServerInterface fileServer) throws RemoteException
+    {
+        for (int attempt = 0; ; attempt++)
+        {
+            try
+            {
+                return fileServer.upload(clientIP, currentFileName, fileContents);
+            }
+            catch (ServerBusyException e)
+            {
+                if (!this.backOff(e, attempt))
+                {
+                    return false;
+                }
+            }
+        }
+    }
+
+    /*
+        Waits as long as a busy server asked, doubled for each failed attempt and with some
+        jitter so that refused clients do not all come back at once. Returns false once
+        the retries are used up.
+    */
+    private boolean backOff(ServerBusyException busy, int attempt)
+    {
+        if (attempt >= MAX_BUSY_RETRIES)
+        {
+            System.out.println("ERROR: Server still busy after " + MAX_BUSY_RETRIES + " retries");
+
+            return false;
+        }
+
+        long wait = busy.getRetryAfterMillis() << attempt;
+        wait += (long)(backoffJitter.nextDouble() * wait / 2);
+
+        System.out.println(busy.getMessage() + ", retrying in " + wait + " ms");
+
+        try
+        {
+            Thread.sleep(wait);
+        }
+        catch (InterruptedException e)
+        {
+            return false;
+        }
+
+        return true;
+    }
+
+    /*
+        Fetches a file from the peer the server redirected to, or from the server if that fails.
+    */
+    public FileContents fetchFromPeer(ServerInterface fileServer, String fileName, FileContents redirect) throws RemoteException
+    {
+        try
+        {
+            ClientInterface peer = (ClientInterface)Transport.getShared().lookup(redirect.getRedirectPeer(), FileServer.CLIENT_RMI_SERVICE_NAME);
+            FileContents peerC = peer.fetch(fileName, redirect.getVersion());
+
+            //The peer must still hold exactly the version the server named
+            if (peerC != null && peerC.getVersion() == redirect.getVersion())
+            {
+                this.confirmFetch(fileServer, fileName, peerC);
+                return peerC;
+            }
+
+            System.out.println("Peer " + redirect.getRedirectPeer() + " no longer holds version " + redirect.getVersion());
+        }
+        catch (Exception e)
+        {
+            System.out.println("Peer " + redirect.getRedirectPeer() + " unavailable: " + e.getMessage());
+        }
+
+        //Get the same version from the server instead
+        FileContents serverC = fileServer.downloadVersion(clientIP, fileName, redirect.getVersion());
+        if (serverC != null)
+        {
+            this.confirmFetch(fileServer, fileName, serverC);
+        }
+
+        return serverC;
+    }
+
+    /*
+        Tells the server the redirected fetch completed, so this client may serve other peers.
+        The contents are kept even if the server cannot be told.
+    */
+    private void confirmFetch(ServerInterface fileServer, String fileName, FileContents fetched)
+    {
+        try
+        {
+            fileServer.confirmFetch(clientIP, fileName, fetched.getVersion());
+        }
+        catch (RemoteException e)
+        {
+            System.out.println("Unable to confirm fetch of " + fileName + ": " + e.getMessage());
+        }
+    }
+
     /*
         Uploads the file to the server.
     */
@@ -316,7 +1268,7 @@ public class FileClient extends UnicastRemoteObject implements  ClientInterface
         try
         {
             //Upload through rmi
-            if (!server.upload(clientIP, currentFileName, fileContents))
+            if (!this.uploadWithBackoff(currentServer))
             {
                 return false;
             }
@@ -1,32 +1,174 @@
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.util.List;
 
 /**
  * FileContents contains the actual contents of a file shared
  * between the server and client. It is intended to be passed
  * via RMI calls, therefore must be serializable.
  *
+ * On the server, contents may instead be backed by shared blocks of
+ * the BlockStore, possibly held off-heap. Those are written to the
+ * stream block by block and arrive at the receiver as an ordinary
+ * byte array.
+ *
  */
 @SuppressWarnings("serial")
 public class FileContents implements Serializable {
 
-	// actual contents of the file
-	private byte[] contents;
+	// size of the scratch array used to copy off-heap blocks into the stream
+	private static final int STAGING_SIZE = 8 * 1024;
+	
+	// actual contents of the file (written to the stream by writeObject)
+	private transient byte[] contents;
+	
+	// shared blocks holding the contents, when backed by the block store, otherwise null
+	private transient List<BlockData> blocks = null;
+	
+	// server-assigned version of these contents (0 if not yet committed by the server)
+	private long version;
+	
+	// for a redirect, the "host:port" of a client holding these contents, otherwise null
+	private String redirectPeer = null;
+	
+	// the client these contents are being sent to by the server, to schedule the transfer, otherwise null
+	private transient String transferClient = null;
+	
+	// the file these contents are being sent from by the server, for the transfer event, otherwise null
+	private transient String transferFile = null;
+	
+	/**
+	 * Construct a representation of a committed version of a file whose contents are
+	 * held as shared blocks of the block store
+	 * @param blocks The blocks making up the contents, in order (not copied)
+	 * @param version The server-assigned version of the contents
+	 * @return A representation of the file backed by the blocks
+	 */
+	public static FileContents fromBlocks( List<BlockData> blocks, long version ) {
+		FileContents stored = new FileContents( null, version );
+		stored.blocks = blocks;
+		return stored;
+	}
+	
+	/**
+	 * Construct a redirect, telling a client to fetch a version of a file from a peer
+	 * client that holds it, instead of receiving the bytes from the server
+	 * @param peer The peer holding the contents, as "host:port"
+	 * @param version The version of the file the peer holds
+	 * @return A representation of the file carrying no contents
+	 */
+	public static FileContents redirect( String peer, long version ) {
+		FileContents redirect = new FileContents( null, version );
+		redirect.redirectPeer = peer;
+		return redirect;
+	}
+	
+	/**
+	 * Prepare these contents to be sent to a client by the server. Large contents are
+	 * then written in slices, interleaved with other transfers (see TransferScheduler),
+	 * and the transfer is recorded for flight recordings (see ServerEvents).
+	 * @param clientIPName The hostname/IP address of the client receiving the contents
+	 * @param filename The file the contents belong to
+	 * @return A representation sharing these contents, to return to the client
+	 */
+	public FileContents forTransfer( String clientIPName, String filename ) {
+		
+		if (isRedirect()) return this;
+		
+		FileContents transfer = new FileContents( contents, version );
+		transfer.blocks = blocks;
+		transfer.transferClient = clientIPName;
+		transfer.transferFile = filename;
+		return transfer;
+		
+	}
 	
 	/**
 	 * Construct a representation of a file, given the actual file contents
 	 * @param contents The contents of the file
 	 */
 	public FileContents( byte[] contents ) {
+		this( contents, 0 );
+	}
+	
+	/**
+	 * Construct a representation of a committed version of a file
+	 * @param contents The contents of the file
+	 * @param version The server-assigned version of the contents
+	 */
+	public FileContents( byte[] contents, long version ) {
 		this.contents = contents;
+		this.version = version;
 	}
 	
 	/**
-	 * Get the contents of the file
+	 * Get the contents of the file. Contents backed by blocks are assembled into a
+	 * new array on each call.
 	 * @return File contents
 	 */
 	public byte[] get() {
-		return contents;
+		
+		if (blocks == null) return contents;
+		
+		byte[] assembled = new byte[length()];
+		int offset = 0;
+		for (BlockData block : blocks) {
+			block.copyTo(assembled, offset);
+			offset += block.length();
+		}
+		
+		return assembled;
+		
+	}
+	
+	/**
+	 * Get the size of the file contents, without assembling them
+	 * @return The number of bytes in the file, or 0 for a redirect
+	 */
+	public int length() {
+		
+		if (blocks == null) return (contents == null) ? 0 : contents.length;
+		
+		int length = 0;
+		for (BlockData block : blocks) length += block.length();
+		
+		return length;
+		
+	}
+	
+	/**
+	 * Get the shared blocks backing the contents
+	 * @return The blocks, or null if the contents are not block-backed
+	 */
+	public List<BlockData> getBlocks() {
+		return blocks;
+	}
+	
+	/**
+	 * Get the server-assigned version of the contents
+	 * @return The version, or 0 if these contents have not been committed by the server
+	 */
+	public long getVersion() {
+		return version;
+	}
+	
+	/**
+	 * Check whether this is a redirect to a peer rather than the file contents
+	 * @return TRUE if the contents must be fetched from the peer
+	 */
+	public boolean isRedirect() {
+		return redirectPeer != null;
+	}
+	
+	/**
+	 * Get the peer holding the contents, for a redirect
+	 * @return The peer as "host:port", or null if this is not a redirect
+	 */
+	public String getRedirectPeer() {
+		return redirectPeer;
 	}
 	
 	/**
@@ -37,4 +179,67 @@ public class FileContents implements Serializable {
 		System.out.println( "File Contents = " + contents );
 	}
 	
-}
\ No newline at end of file
+	/**
+	 * Write the contents to the stream, one block at a time for block-backed contents
+	 * @param out The stream to write to
+	 * @throws IOException
+	 */
+	private void writeObject( ObjectOutputStream out ) throws IOException {
+		
+		out.defaultWriteObject();
+		
+		if (blocks == null && contents == null) {
+			out.writeInt( -1 );
+			return;
+		}
+		
+		out.writeInt( length() );
+		
+		ServerEvents.ContentsTransfer event = new ServerEvents.ContentsTransfer();
+		event.begin();
+		
+		// a server sending large contents waits for its turn between slices
+		OutputStream target = (transferClient == null) ? out : TransferScheduler.getShared().open( out, transferClient, length() );
+		try {
+			
+			if (blocks == null) {
+				target.write( contents );
+			} else {
+				byte[] staging = new byte[STAGING_SIZE];
+				for (BlockData block : blocks) block.writeTo( target, staging );
+			}
+			
+		} finally {
+			if (target != out) target.close();
+		}
+		
+		event.end();
+		if (event.shouldCommit()) {
+			event.filename = transferFile;
+			event.client = transferClient;
+			event.version = version;
+			event.bytes = length();
+			event.commit();
+		}
+		
+	}
+	
+	/**
+	 * Read the contents from the stream into a single array
+	 * @param in The stream to read from
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	private void readObject( ObjectInputStream in ) throws IOException, ClassNotFoundException {
+		
+		in.defaultReadObject();
+		
+		int length = in.readInt();
+		if (length >= 0) {
+			contents = new byte[length];
+			in.readFully( contents );
+		}
+		
+	}
+	
+}
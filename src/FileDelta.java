@@ -0,0 +1,118 @@
+import java.io.Serializable;
+
+/**
+ * FileDelta describes how to turn one committed version of a file into another.
+ * The delta keeps the bytes the two versions have in common at the start and the
+ * end, and carries only the bytes in between. It is passed via RMI calls, therefore
+ * must be serializable.
+ *
+ */
+@SuppressWarnings("serial")
+public class FileDelta implements Serializable {
+
+	// the version this delta must be applied to
+	private long fromVersion;
+
+	// the version produced by applying this delta
+	private long toVersion;
+
+	// number of leading bytes kept from the base version
+	private int prefixLength;
+
+	// number of trailing bytes kept from the base version
+	private int suffixLength;
+
+	// bytes that replace everything between the prefix and the suffix
+	private byte[] replacement;
+
+	/**
+	 * Compute the delta between two versions of a file
+	 * @param from The base version
+	 * @param to The target version
+	 * @return The delta that turns the base version into the target version
+	 */
+	public static FileDelta compute(FileContents from, FileContents to) {
+
+		byte[] base = from.get();
+		byte[] target = to.get();
+
+		// length of the common prefix
+		int maxCommon = Math.min(base.length, target.length);
+		int prefix = 0;
+		while (prefix < maxCommon && base[prefix] == target[prefix]) prefix++;
+
+		// length of the common suffix, not overlapping the prefix
+		int suffix = 0;
+		while (suffix < maxCommon - prefix && base[base.length - 1 - suffix] == target[target.length - 1 - suffix]) suffix++;
+
+		byte[] replacement = new byte[target.length - prefix - suffix];
+		System.arraycopy(target, prefix, replacement, 0, replacement.length);
+
+		return new FileDelta(from.getVersion(), to.getVersion(), prefix, suffix, replacement);
+
+	}
+
+	/**
+	 * Construct a delta from its parts
+	 * @param fromVersion The version the delta applies to
+	 * @param toVersion The version the delta produces
+	 * @param prefixLength The number of leading bytes kept from the base
+	 * @param suffixLength The number of trailing bytes kept from the base
+	 * @param replacement The bytes between the kept prefix and suffix
+	 */
+	public FileDelta(long fromVersion, long toVersion, int prefixLength, int suffixLength, byte[] replacement) {
+		this.fromVersion = fromVersion;
+		this.toVersion = toVersion;
+		this.prefixLength = prefixLength;
+		this.suffixLength = suffixLength;
+		this.replacement = replacement;
+	}
+
+	/**
+	 * Apply this delta to a base version of the file
+	 * @param base The contents this delta was computed from
+	 * @return The contents of the target version
+	 * @throws IllegalArgumentException If the base is not the version this delta applies to
+	 */
+	public FileContents apply(FileContents base) {
+
+		if (base.getVersion() != fromVersion) {
+			throw new IllegalArgumentException("Delta applies to version " + fromVersion + ", not " + base.getVersion());
+		}
+
+		byte[] baseBytes = base.get();
+		byte[] result = new byte[prefixLength + replacement.length + suffixLength];
+
+		System.arraycopy(baseBytes, 0, result, 0, prefixLength);
+		System.arraycopy(replacement, 0, result, prefixLength, replacement.length);
+		System.arraycopy(baseBytes, baseBytes.length - suffixLength, result, prefixLength + replacement.length, suffixLength);
+
+		return new FileContents(result, toVersion);
+
+	}
+
+	/**
+	 * Get the version this delta must be applied to
+	 * @return The base version
+	 */
+	public long getFromVersion() {
+		return fromVersion;
+	}
+
+	/**
+	 * Get the version produced by applying this delta
+	 * @return The target version
+	 */
+	public long getToVersion() {
+		return toVersion;
+	}
+
+	/**
+	 * Get the number of bytes carried by this delta
+	 * @return The size of the replacement bytes
+	 */
+	public int getTransferSize() {
+		return replacement.length;
+	}
+
+}
@@ -1,10 +1,23 @@
-import java.rmi.Naming;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Implementation of Distributed File System Server
@@ -17,6 +30,16 @@ import java.util.Map;
  * HostedFiles, the server class delegates all file operations to the
  * appropriate instance of HostedFile. By maintaining a collection of
  * "active" HostedFiles, the server is effectively caching requests.
+ * 
+ * Several servers may run as a cluster, each owning the filenames that a
+ * shared ring config (see HashRing) assigns to it. Optional arguments give
+ * the ring config file and, if the server cannot be identified as
+ * "localhost:port", this server's shard name in that file.
+ * 
+ * Alternatively, a primary server may stream every committed version to
+ * read replicas ("-replicas host:port,..."). A replica ("-primary host:port")
+ * serves read-mode downloads and invalidates its own readers, while
+ * write-mode downloads and uploads must go to the primary.
  *
  */
 @SuppressWarnings("serial")
@@ -25,29 +48,73 @@ public class FileServer extends UnicastRemoteObject implements ServerInterface {
 	public static final boolean DEBUG_MODE = true;
 	
 	public static final String CLIENT_RMI_SERVICE_NAME = "fileclient";
-	private static final String RMI_URL_PREFIX = "rmi://localhost:";
+	
+	// smallest file worth redirecting to a peer client instead of sending it from the server
+	private static final int PEER_REDIRECT_MIN_BYTES = 64 * 1024;
+	
+	// how often registered clients are pinged to detect ones that have gone away
+	private static final int LIVENESS_PING_MILLISECONDS = 5000;
+	
+	// how often a cluster member checks the ring config for added or removed shards
+	private static final int RING_CHECK_MILLISECONDS = 5000;
+	
+	// system property naming the file the cache state is saved to, so a restarted server
+	// resumes with its versions and registrations (state is not saved if it is not set)
+	public static final String STATE_FILE_PROPERTY = "fileserver.stateFile";
+	
+	// how often the cache state is saved
+	private static final int STATE_SAVE_MILLISECONDS = 30000;
+	
+	// system property for the most bytes of file contents cached in memory
+	public static final String CACHE_MAX_BYTES_PROPERTY = "fileserver.cache.maxBytes";
+	
+	// default memory budget for cached file contents
+	private static final long DEFAULT_CACHE_MAX_BYTES = 256L * 1024 * 1024;
+	
+	// system property for the directory evicted files are spilled to, spilling is off if unset
+	public static final String SPILL_DIR_PROPERTY = "fileserver.spillDir";
+	
+	// system property for the most bytes of evicted files kept in the spill directory
+	public static final String SPILL_MAX_BYTES_PROPERTY = "fileserver.spill.maxBytes";
+	
+	// default size limit of the spill directory
+	private static final long DEFAULT_SPILL_MAX_BYTES = 4L * 1024 * 1024 * 1024;
 	
 	public static void main(String[] args) {
 
-		// need a single argument - the port to accept requests on
-        if (args.length != 1) {
+		// need the port to accept requests on, optionally the ring config and shard name
+		// or the primary/replica configuration
+        if (args.length < 1 || args.length > 3) {
             
-        	System.out.println("usage: java FileServer port");
+        	System.out.println("usage: java FileServer port [ringfile [shard]]");
+        	System.out.println("       java FileServer port -replicas host:port[,host:port...]");
+        	System.out.println("       java FileServer port -primary host:port");
             System.exit(-1);
         
         }
 
 		try {
 			
+			// callbacks to clients and calls to other servers must not hang forever
+			CallbackSocketFactory.install();
+			
 			// should always instantiate via interface
 			if (DEBUG_MODE) System.out.println("Launching FileServer on port " + args[0]);
-			ServerInterface server = new FileServer(Integer.parseInt(args[0])); 
+			ServerInterface server;
+			if (args.length == 1) {
+				server = new FileServer(Integer.parseInt(args[0]));
+			} else if (args[1].equals("-replicas") && args.length == 3) {
+				server = new FileServer(Integer.parseInt(args[0]), new ReplicaPublisher(Arrays.asList(args[2].split(","))));
+			} else if (args[1].equals("-primary") && args.length == 3) {
+				server = new FileServer(Integer.parseInt(args[0]), args[2]);
+			} else {
+				String shardName = (args.length == 3) ? args[2] : "localhost:" + args[0];
+				server = new FileServer(Integer.parseInt(args[0]), new RingConfig(args[1]), shardName);
+			}
 			
-			// register server process with RMI service directory
-			String RMIUrl = RMI_URL_PREFIX + args[0] + "/" + RMI_SERVICE_NAME;
-			if (DEBUG_MODE) System.out.println("RMI: Binding FileServer at: " + RMIUrl);
-			startRegistry(Integer.parseInt(args[0]));
-			Naming.rebind(RMIUrl, server);
+			// make the server reachable by clients (through the RMI registry, unless another transport is chosen)
+			if (DEBUG_MODE) System.out.println("Binding FileServer at: localhost:" + args[0] + "/" + RMI_SERVICE_NAME);
+			Transport.getShared().bind("localhost", Integer.parseInt(args[0]), RMI_SERVICE_NAME, server);
 			if (DEBUG_MODE) System.out.println("Server started!");
 			
 		}
@@ -63,11 +130,60 @@ public class FileServer extends UnicastRemoteObject implements ServerInterface {
 	}
 	
 	// the files/clients being hosted by this server
-	private Map<String, HostedFile> hostedFiles = new HashMap<String, HostedFile>();
+	private Map<String, HostedFile> hostedFiles = new ConcurrentHashMap<String, HostedFile>();
+	
+	// attributes of files that are not cached, for stat requests
+	private MetadataCache metadata = new MetadataCache();
 	
 	// the port number for incoming RMI requests
 	private int port;
 	
+	// the cluster's ring config, or null if this server is not part of a cluster
+	private RingConfig ringConfig = null;
+	
+	// the ring as of the last rebalance
+	private volatile HashRing ring = null;
+	
+	// this server's name in the ring config
+	private String shardName = null;
+	
+	// sends committed versions to read replicas, or null if this server has none
+	private ReplicaPublisher replicaPublisher = null;
+	
+	// the primary server's name if this server is a read replica, otherwise null
+	private String primaryName = null;
+	
+	// connection to the primary server, made on first use
+	private volatile ServerInterface primary = null;
+	
+	// saves the cache state across restarts, or null if state is not saved
+	private ServerStateStore stateStore = null;
+	
+	// saved files that have not been restored into the cache yet, by filename
+	private Map<String, ServerStateStore.FileRecord> pendingRestores = new ConcurrentHashMap<String, ServerStateStore.FileRecord>();
+	
+	// most bytes of file contents cached in memory before idle files are evicted
+	private long maxCacheBytes = Long.getLong(CACHE_MAX_BYTES_PROPERTY, DEFAULT_CACHE_MAX_BYTES);
+	
+	// local disk tier holding evicted files, or null if evicted files are not spilled
+	private SpillCache spillCache = null;
+	
+	// held while a file is evicted, so a request for it waits until the eviction is complete
+	private final Object evictionLock = new Object();
+	
+	// set while an eviction pass is queued
+	private final AtomicBoolean evictionScheduled = new AtomicBoolean(false);
+	
+	// evicts files in the background, so requests never wait for the spill directory
+	private final ExecutorService evictor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "cache-evictor");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
 	// required no-args constructor
 	public FileServer() throws RemoteException {}
 	
@@ -78,10 +194,114 @@ public class FileServer extends UnicastRemoteObject implements ServerInterface {
 	 */
 	public FileServer(int port) throws RemoteException {
 		this.port = port;
+		startLivenessChecks();
+		startPersistence();
+		startSpill();
+	}
+	
+	/**
+	 * Instantiate a primary FileServer that streams committed versions to read replicas
+	 * @param port The port on which to receive RMI requests
+	 * @param replicaPublisher Sends committed versions to the replicas
+	 * @throws RemoteException
+	 */
+	public FileServer(int port, ReplicaPublisher replicaPublisher) throws RemoteException {
+		this.port = port;
+		this.replicaPublisher = replicaPublisher;
+		replicaPublisher.setPrimary(this);
+		startLivenessChecks();
+		startPersistence();
+		startSpill();
+	}
+	
+	/**
+	 * Instantiate a read replica of a primary FileServer. The replica serves read-mode
+	 * downloads only, filling its cache from the primary.
+	 * @param port The port on which to receive RMI requests
+	 * @param primaryName The primary server, as "host:port"
+	 * @throws RemoteException
+	 */
+	public FileServer(int port, String primaryName) throws RemoteException {
+		this.port = port;
+		this.primaryName = primaryName;
+		startLivenessChecks();
+	}
+	
+	/**
+	 * Instantiate a FileServer as one shard of a cluster. The server only hosts the
+	 * filenames the ring assigns to it, and hands off cached files when the ring changes.
+	 * @param port The port on which to receive RMI requests
+	 * @param ringConfig The cluster's shared ring config
+	 * @param shardName This server's name in the ring config
+	 * @throws RemoteException
+	 */
+	public FileServer(int port, RingConfig ringConfig, String shardName) throws RemoteException {
+		
+		this.port = port;
+		this.ringConfig = ringConfig;
+		this.shardName = shardName;
+		this.ring = ringConfig.get();
+		
+		if (!ring.getShards().contains(shardName)) {
+			System.err.println("Warning: shard " + shardName + " is not listed in the ring config " + ring.getShards());
+		}
+		
+		// watch for shards being added to or removed from the cluster
+		Thread ringWatcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(RING_CHECK_MILLISECONDS);
+					} catch (InterruptedException e) {
+						return;
+					}
+					rebalance();
+				}
+			}
+		}, "ring-watcher");
+		ringWatcher.setDaemon(true);
+		ringWatcher.start();
+		
+		startLivenessChecks();
+		startPersistence();
+		startSpill();
+		
 	}
 
 	@Override
-	public FileContents download(String clientIPName, String filename, String mode) {
+	public FileContents download(String clientIPName, String filename, String mode) throws ServerBusyException {
+
+		// acquiring ownership may wait on another client's upload, so it is limited separately
+		AdmissionControl.Operation operation = ServerInterface.WRITE_MODE.equalsIgnoreCase(mode) ? AdmissionControl.Operation.WRITE_ACQUIRE : AdmissionControl.Operation.READ;
+		AdmissionControl.getShared().enter(operation);
+		
+		try {
+			
+			TraceTimer timer = new TraceTimer();
+			FileContents contents = serveDownload(clientIPName, filename, mode, timer);
+			timer.lap();
+			
+			TraceRecorder.record(TraceEvent.Type.DOWNLOAD, clientIPName, filename, mode, contents == null ? 0 : contents.length(), contents != null, timer);
+			
+			// large contents are sent in slices, so they do not hold up small downloads
+			return (contents == null) ? null : contents.forTransfer(clientIPName, filename);
+			
+		} finally {
+			AdmissionControl.getShared().exit(operation);
+		}
+		
+	}
+	
+	/**
+	 * Helper method that serves a download, timing its stages for the trace
+	 * @param clientIPName The hostname/IP address of the client
+	 * @param filename The file requested
+	 * @param mode The requested mode
+	 * @param timer Times the stages of the download
+	 * @return The file contents, a redirect to a peer, or null if the download failed
+	 */
+	private FileContents serveDownload(String clientIPName, String filename, String mode, TraceTimer timer) {
 
 		if (DEBUG_MODE) System.out.println("Received download request from " + clientIPName + " for " + filename + " with mode " + mode);
 
@@ -89,9 +309,11 @@ public class FileServer extends UnicastRemoteObject implements ServerInterface {
 		for (HostedFile file : hostedFiles.values()) {
 			file.deRegisterClient(clientIPName);
 		}
+		timer.lap();
 		
 		// get the referenced file
-		HostedFile file = getFile(filename);
+		HostedFile file = getFileToRegister(filename, clientIPName);
+		timer.lap();
 	
 		// valid filename?
 		if (file == null) {
@@ -100,23 +322,35 @@ public class FileServer extends UnicastRemoteObject implements ServerInterface {
 		}
 		
 		// any client may get the file in read mode
-		if (mode.equalsIgnoreCase(ServerInterface.READ_MODE)) {
-			
-			file.registerReader(clientIPName, port);
-			return file.getFileContents();
-			
-		}
+		if (mode.equalsIgnoreCase(ServerInterface.READ_MODE)) return serveRead(file, clientIPName, filename, timer, true);
 	
 		// this client wants to obtain ownership of the file for writing
 		if (mode.equalsIgnoreCase(ServerInterface.WRITE_MODE)) {
 			
+			// ownership is only managed by the primary
+			if (primaryName != null) {
+				if (DEBUG_MODE) System.out.println("Read replicas do not accept write mode, returning NULL");
+				return null;
+			}
+			
 			boolean registerSuccess = file.registerOwner(clientIPName, port);
+			while (!registerSuccess && file.isRetired()) {
+				
+				// the file was evicted after it was looked up - look it up again
+				file = getFileToRegister(filename, clientIPName);
+				if (file == null) return null;
+				registerSuccess = file.registerOwner(clientIPName, port);
+				
+			}
+			timer.lap();
 			
 			if (registerSuccess) {
 				
 				if (DEBUG_MODE) System.out.println("Client registered to file successfully - returning file");
 
-				return file.getFileContents();
+				FileContents contents = file.getFileContents();
+				file.setHeldVersion(clientIPName, contents.getVersion());
+				return contents;
 
 			} else {
 				
@@ -134,12 +368,149 @@ public class FileServer extends UnicastRemoteObject implements ServerInterface {
 	
 	}
 
+	/**
+	 * Helper method that registers a client as a reader of a whole file and serves it the
+	 * last committed version
+	 * @param file The file, as looked up for the client
+	 * @param clientIPName The hostname/IP address of the client
+	 * @param filename The file requested
+	 * @param timer Times the stages of the download
+	 * @param mayRedirect Whether the client may be sent to a peer holding the same version
+	 * @return The file contents, a redirect to a peer, or null if the file no longer exists
+	 */
+	private FileContents serveRead(HostedFile file, String clientIPName, String filename, TraceTimer timer, boolean mayRedirect) {
+		
+		// register first, so that any upload committed after the snapshot is read
+		// will still invalidate this client
+		while (!file.registerReader(clientIPName, port)) {
+			
+			// the file was evicted after it was looked up - look it up again
+			file = getFileToRegister(filename, clientIPName);
+			if (file == null) return null;
+			
+		}
+		timer.lap();
+
+		// readers never wait on an ownership change - serve the last committed version
+		FileSnapshot snapshot = file.getSnapshot();
+		
+		// let a peer holding this exact version send large files instead of the server
+		if (mayRedirect && snapshot.getContents().length() >= PEER_REDIRECT_MIN_BYTES) {
+			
+			ConnectedClient peer = file.findPeer(clientIPName, snapshot.getVersion());
+			if (peer != null) {
+				
+				// the client holds no version until it confirms the fetch, so it is not chosen as a peer before then
+				if (DEBUG_MODE) System.out.println("Redirecting " + clientIPName + " to peer " + peer.getClientAddress() + " for version " + snapshot.getVersion());
+				file.setHeldVersion(clientIPName, 0);
+				return FileContents.redirect(peer.getClientAddress(), snapshot.getVersion());
+				
+			}
+			
+		}
+		
+		file.setHeldVersion(clientIPName, snapshot.getVersion());
+		return snapshot.getContents();
+		
+	}
+	
+	@Override
+	public FileContents prefetch(String clientIPName, String filename) throws ServerBusyException {
+
+		if (DEBUG_MODE) System.out.println("Received prefetch request from " + clientIPName + " for " + filename);
+
+		AdmissionControl.getShared().enter(AdmissionControl.Operation.READ);
+		
+		try {
+			
+			// unlike a download, the client stays registered with the files it already has
+			TraceTimer timer = new TraceTimer();
+			HostedFile file = getFileToRegister(filename, clientIPName);
+			timer.lap();
+			FileContents contents = (file == null) ? null : serveRead(file, clientIPName, filename, timer, false);
+			timer.lap();
+			
+			TraceRecorder.record(TraceEvent.Type.DOWNLOAD, clientIPName, filename, ServerInterface.READ_MODE, contents == null ? 0 : contents.length(), contents != null, timer);
+			
+			return (contents == null) ? null : contents.forTransfer(clientIPName, filename);
+			
+		} finally {
+			AdmissionControl.getShared().exit(AdmissionControl.Operation.READ);
+		}
+		
+	}
+	
 	/**
 	 * Get a file from cache or from the filesystem
 	 * @param filename The filename of the file to retrieve
 	 * @return The file, as a populated HostedFile class
 	 */
 	public HostedFile getFile(String filename) {
+		return getFile(filename, null);
+	}
+	
+	/**
+	 * Get a file from cache or from the filesystem, on behalf of a client
+	 * @param filename The filename of the file to retrieve
+	 * @param clientIPName The hostname/IP address of the client the file is needed for, or null
+	 * @return The file, as a populated HostedFile class
+	 */
+	public HostedFile getFile(String filename, String clientIPName) {
+		
+		ServerEvents.FileLookup event = new ServerEvents.FileLookup();
+		event.begin();
+		
+		HostedFile file = lookupFile(filename, event);
+		
+		event.end();
+		if (event.shouldCommit()) {
+			event.filename = filename;
+			event.client = clientIPName;
+			event.bytes = (file == null) ? 0 : file.getStat().getSize();
+			if (file == null) event.source = "none";
+			event.commit();
+		}
+		
+		return file;
+		
+	}
+	
+	/**
+	 * Helper method that gets a file for a client about to register with it (or append to
+	 * it). A file the ring now assigns to another shard is refused even while it is still
+	 * cached here: its current owner, lease holders and readers may finish with it, and it
+	 * is handed off once they have, but no client starts using it here.
+	 * @param filename The filename of the file to retrieve
+	 * @param clientIPName The hostname/IP address of the client
+	 * @return The file, or null if it does not exist or belongs to another shard
+	 */
+	private HostedFile getFileToRegister(String filename, String clientIPName) {
+		
+		if (filename != null && hasMoved(filename)) {
+			if (DEBUG_MODE) System.out.println(filename + " belongs to another shard, refusing to register " + clientIPName);
+			return null;
+		}
+		
+		return getFile(filename, clientIPName);
+		
+	}
+	
+	/**
+	 * Helper method that checks whether the ring, as currently configured, assigns a file to another shard
+	 * @param filename The filename of the file
+	 * @return TRUE if another shard is responsible for the file
+	 */
+	private boolean hasMoved(String filename) {
+		return ringConfig != null && !shardName.equals(ringConfig.get().getShard(filename));
+	}
+	
+	/**
+	 * Helper method that gets a file from cache or from the filesystem
+	 * @param filename The filename of the file to retrieve
+	 * @param event Records where the file was found
+	 * @return The file, as a populated HostedFile class
+	 */
+	private HostedFile lookupFile(String filename, ServerEvents.FileLookup event) {
 
 		if (DEBUG_MODE) System.out.println("Checking local cache for " + filename);
 		
@@ -155,12 +526,36 @@ public class FileServer extends UnicastRemoteObject implements ServerInterface {
 		// in cache?
 		HostedFile returnFile = hostedFiles.get(filename);
 		
+		// being evicted - wait until it has been spilled and removed from the cache
+		while (returnFile != null && returnFile.isRetired()) {
+			synchronized (evictionLock) {
+				returnFile = hostedFiles.get(filename);
+			}
+		}
+		
 		// not in cache - retrieve and populate from filesystem
 		if (returnFile == null) {
 			
+			// another shard of the cluster is responsible for this file
+			if (hasMoved(filename)) {
+				
+				if (DEBUG_MODE) System.out.println(filename + " belongs to another shard, returning NULL");
+
+				return null;
+				
+			}
+			
+			// read replicas fill their cache from the primary
+			if (primaryName != null) {
+				event.source = "primary";
+				return getFileFromPrimary(filename);
+			}
+			
 			if (DEBUG_MODE) System.out.println("File not found in local cache, reading from filesystem");
 
-			returnFile = new HostedFile(filename);
+			// restore what was known before a restart or eviction, if this file has not been restored yet
+			ServerStateStore.FileRecord record = pendingRestores.remove(filename);
+			returnFile = (record != null) ? HostedFile.restore(record) : readFile(filename, event);
 			
 			// was there a file by the specified name?
 			if (returnFile.getFileContents() == null) {
@@ -171,24 +566,216 @@ public class FileServer extends UnicastRemoteObject implements ServerInterface {
 
 			}
 			
-			// valid file - put into cache
+			// valid file - put into cache, unless another request got there first
 			if (DEBUG_MODE) System.out.println("File read from filesystem, placing into local cache");
-			hostedFiles.put(filename, returnFile);
+			HostedFile cachedFile = hostedFiles.putIfAbsent(filename, returnFile);
+			if (cachedFile != null) returnFile = cachedFile;
+			else scheduleEviction();
 
 		}
 		
+		if (event.source == null) event.source = "memory";
+		returnFile.touch();
 		return returnFile;
 		
 	}
 	
+	/**
+	 * Helper method that reads a file that is not cached in memory, from the spill
+	 * directory if it was spilled there and has not changed since, otherwise from the filesystem
+	 * @param filename The filename of the file to read
+	 * @param event Records where the file was read from
+	 * @return The file (whose contents are null if the file could not be read)
+	 */
+	private HostedFile readFile(String filename, ServerEvents.FileLookup event) {
+		
+		event.source = "disk";
+		
+		SpillCache.Entry spilled = null;
+		if (spillCache != null) {
+			try {
+				spilled = spillCache.take(filename);
+			} catch (IOException e) {
+				System.err.println("Unable to read " + filename + " from the spill directory: " + e.getMessage());
+			}
+		}
+		
+		if (spilled == null) return new HostedFile(filename);
+		
+		// a cheap check of the filesystem decides whether the spilled copy is current
+		try {
+			
+			Path path = Paths.get(filename);
+			if (Files.getLastModifiedTime(path).toMillis() == spilled.getLastModified() && Files.size(path) == spilled.getLength()) {
+				if (DEBUG_MODE) System.out.println(filename + " read from the spill directory");
+				event.source = "spill";
+				return HostedFile.fromSpill(filename, spilled.getContents(), spilled.getLastModified());
+			}
+			
+		} catch (IOException e) {
+			
+			// gone or unreadable - reading the file will tell
+			
+		}
+		
+		// changed since it was spilled - read it again, continuing the version numbering
+		if (DEBUG_MODE) System.out.println(filename + " changed since it was spilled, reading from filesystem");
+		return HostedFile.restore(spilled.toRecord());
+		
+	}
+	
+	/**
+	 * Helper method that queues an eviction pass, unless one is queued already. Called
+	 * whenever the cache grows: a file is cached, or a cached file gets a new version.
+	 */
+	private void scheduleEviction() {
+		
+		if (!evictionScheduled.compareAndSet(false, true)) return;
+		
+		evictor.execute(new Runnable() {
+			@Override
+			public void run() {
+				evictionScheduled.set(false);
+				evictIfFull();
+			}
+		});
+		
+	}
+	
+	/**
+	 * Evict files from the memory cache while its contents take more than the memory
+	 * budget. Files no client is using are evicted, least recently requested first,
+	 * and spilled to local disk if a spill directory is configured.
+	 */
+	public void evictIfFull() {
+		
+		List<HostedFile> files = new ArrayList<HostedFile>(hostedFiles.values());
+		
+		long cachedBytes = 0;
+		final Map<HostedFile, Long> lastAccess = new IdentityHashMap<HostedFile, Long>();
+		for (HostedFile file : files) {
+			cachedBytes += file.getCachedBytes();
+			lastAccess.put(file, file.getLastAccess());
+		}
+		
+		if (cachedBytes <= maxCacheBytes) return;
+		
+		// the access times are taken once, as they change while sorting
+		Collections.sort(files, new Comparator<HostedFile>() {
+			@Override
+			public int compare(HostedFile a, HostedFile b) {
+				return Long.compare(lastAccess.get(a), lastAccess.get(b));
+			}
+		});
+		
+		int evicted = 0;
+		for (HostedFile file : files) {
+			
+			if (cachedBytes <= maxCacheBytes) break;
+			
+			long fileBytes = file.getCachedBytes();
+			if (evict(file)) {
+				cachedBytes -= fileBytes;
+				evicted++;
+			}
+			
+		}
+		
+		if (DEBUG_MODE) System.out.println("Evicted " + evicted + " files, " + cachedBytes + " bytes cached");
+		
+	}
+	
+	/**
+	 * Helper method that evicts a file from the memory cache, if no client is using it
+	 * @param file The file to evict
+	 * @return TRUE if the file was evicted
+	 */
+	private boolean evict(HostedFile file) {
+		
+		String filename = file.getFilename();
+		
+		synchronized (evictionLock) {
+			
+			if (!file.retire()) return false;
+			
+			// the version numbering continues when the file is read again: from the spilled
+			// copy, or from a record of the version alone (read replicas ask the primary)
+			if (!spill(file) && primaryName == null) pendingRestores.put(filename, file.getRecord());
+			
+			hostedFiles.remove(filename, file);
+			
+		}
+		
+		file.release();
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Helper method that spills an evicted file to the spill directory, if there is one
+	 * @param file The file to spill
+	 * @return TRUE if the file was spilled
+	 */
+	private boolean spill(HostedFile file) {
+		
+		if (spillCache == null) return false;
+		
+		try {
+			
+			return spillCache.put(file.getFilename(), file.getFileContents(), file.getStat().getLastModified());
+			
+		} catch (IOException e) {
+			
+			System.err.println("Unable to spill " + file.getFilename() + ": " + e.getMessage());
+			return false;
+			
+		}
+		
+	}
+	
 	@Override
-	public boolean upload(String clientIPName, String filename, FileContents contents) {
+	public boolean upload(String clientIPName, String filename, FileContents contents) throws ServerBusyException {
+
+		AdmissionControl.getShared().enter(AdmissionControl.Operation.UPLOAD);
+		
+		try {
+			
+			TraceTimer timer = new TraceTimer();
+			boolean success = serveUpload(clientIPName, filename, contents, timer);
+			
+			TraceRecorder.record(TraceEvent.Type.UPLOAD, clientIPName, filename, null, contents == null ? 0 : contents.length(), success, timer);
+			
+			return success;
+			
+		} finally {
+			AdmissionControl.getShared().exit(AdmissionControl.Operation.UPLOAD);
+		}
+		
+	}
+	
+	/**
+	 * Helper method that serves an upload, timing its stages for the trace
+	 * @param clientIPName The hostname/IP address of the client
+	 * @param filename The file uploaded
+	 * @param contents The new contents
+	 * @param timer Times the stages of the upload
+	 * @return TRUE if the new contents were committed
+	 */
+	private boolean serveUpload(String clientIPName, String filename, FileContents contents, TraceTimer timer) {
 
 		if (DEBUG_MODE) System.out.println("Received upload request from " + clientIPName + " for " + filename);
 
+		// uploads are only accepted by the primary
+		if (primaryName != null) {
+			if (DEBUG_MODE) System.out.println("Read replicas do not accept uploads, returning FALSE");
+			return false;
+		}
+		
 		// get the referenced file
 		if (DEBUG_MODE) System.out.println("Getting cached copy of file");
-		HostedFile file = getFile(filename);
+		HostedFile file = getFile(filename, clientIPName);
+		timer.lap();
 	
 		// valid filename?
 		if (file == null) {
@@ -216,34 +803,662 @@ public class FileServer extends UnicastRemoteObject implements ServerInterface {
 			return false;
 		}
 		
+		timer.lap();
+		
 		// set new file contents
 		if (DEBUG_MODE) System.out.println("Permissions/State check okay - setting new file contents");
-		file.setFileContents(contents);
+		boolean changed = file.setFileContents(contents);
+		if (changed) {
+			metadata.put(file.getStat());
+			scheduleEviction();
+		}
+		timer.lap();
+		
+		// stream the committed version to the read replicas
+		if (changed && replicaPublisher != null) replicaPublisher.publish(filename, file.getFileContents());
+		timer.lap();
 		
 		return true;
 		
 	}
 	
-	/**
-	 * Start RMI registry on this machine. From Lab 3A example, CSS 434A.
-	 * @param port The port number the server will be listening on
-	 * @throws RemoteException
-	 */
-    @SuppressWarnings("unused")
-	private static void startRegistry( int port ) throws RemoteException {
+	@Override
+	public FileContents downloadVersion(String clientIPName, String filename, long version) {
 
-    	try {
-		
-    		Registry registry = LocateRegistry.getRegistry( port );
-		    registry.list( );  
-		
-    	}
-		catch ( RemoteException e ) { 
-		
-			Registry registry = LocateRegistry.createRegistry( port );
+		if (DEBUG_MODE) System.out.println("Received request from " + clientIPName + " for version " + version + " of " + filename);
+
+		// get the referenced file
+		HostedFile file = getFile(filename, clientIPName);
+	
+		// valid filename?
+		if (file == null) {
+			if (DEBUG_MODE) System.out.println("Filename invalid! (returning NULL to client)");
+			return null;
+		}
+		
+		// historical reads do not register the client
+		FileContents contents = file.getFileContents(version);
+		return (contents == null) ? null : contents.forTransfer(clientIPName, filename);
+		
+	}
+	
+	@Override
+	public boolean confirmFetch(String clientIPName, String filename, long version) {
+
+		if (DEBUG_MODE) System.out.println("Received confirmation from " + clientIPName + " that it fetched version " + version + " of " + filename);
+
+		HostedFile file = hostedFiles.get(filename);
+		
+		return file != null && file.confirmHeldVersion(clientIPName, version);
+		
+	}
+	
+	@Override
+	public FileDelta diff(String filename, long fromVersion, long toVersion) {
+
+		if (DEBUG_MODE) System.out.println("Received diff request for " + filename + " from version " + fromVersion + " to " + toVersion);
+
+		// get the referenced file
+		HostedFile file = getFile(filename);
+	
+		// valid filename?
+		if (file == null) {
+			if (DEBUG_MODE) System.out.println("Filename invalid! (returning NULL to client)");
+			return null;
+		}
+		
+		return file.getDelta(fromVersion, toVersion);
+		
+	}
+	
+	@Override
+	public boolean acceptHandoff(String filename, FileContents contents) {
+
+		if (DEBUG_MODE) System.out.println("Received handoff of " + filename + " at version " + contents.getVersion());
+
+		// only the shard the (current) ring assigns the file to may host it
+		if (ringConfig == null || hasMoved(filename)) {
+			if (DEBUG_MODE) System.out.println(filename + " does not belong to this shard, refusing handoff");
+			return false;
+		}
+		
+		HostedFile handedOff = new HostedFile(filename, contents);
+		HostedFile replaced = null;
+		synchronized (evictionLock) {
+			
+			HostedFile cached = hostedFiles.putIfAbsent(filename, handedOff);
+			if (cached != null) {
+				
+				// a copy read from the filesystem before the handoff arrived is replaced, unless
+				// it is as new or a client is using it
+				if (cached.getVersion() >= contents.getVersion() || !cached.retire()) {
+					if (DEBUG_MODE) System.out.println(filename + " is already hosted here at version " + cached.getVersion() + ", ignoring handoff");
+					return false;
+				}
+				
+				hostedFiles.replace(filename, cached, handedOff);
+				replaced = cached;
+				
+			}
+			
+		}
+		
+		if (replaced != null) replaced.release();
+		scheduleEviction();
+		
+		return true;
+		
+	}
+	
+	@Override
+	public FileContents getCommitted(String filename) {
+
+		if (DEBUG_MODE) System.out.println("Received request for committed contents of " + filename);
+
+		HostedFile file = getFile(filename);
+		
+		return (file == null) ? null : file.getFileContents();
+		
+	}
+	
+	@Override
+	public boolean replicate(String filename, FileContents contents) {
+
+		if (DEBUG_MODE) System.out.println("Received version " + contents.getVersion() + " of " + filename + " from primary");
+
+		if (primaryName == null) {
+			if (DEBUG_MODE) System.out.println("This server is not a read replica, ignoring");
+			return false;
+		}
+		
+		// cache the new version, or apply it to the cached copy
+		HostedFile file = hostedFiles.get(filename);
+		if (file == null) {
+			file = hostedFiles.putIfAbsent(filename, new HostedFile(filename, contents));
+			if (file == null) {
+				scheduleEviction();
+				return true;
+			}
+		}
+		
+		if (!file.applyReplica(contents)) return false;
+		scheduleEviction();
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Helper method for read replicas, which fill their cache from the primary server
+	 * @param filename The filename of the file to retrieve
+	 * @return The file, as a populated HostedFile class, or null if the primary does not have it
+	 */
+	private HostedFile getFileFromPrimary(String filename) {
+		
+		if (DEBUG_MODE) System.out.println("File not found in local cache, requesting from primary " + primaryName);
+		
+		FileContents contents;
+		try {
+			
+			if (primary == null) {
+				primary = (ServerInterface) Transport.getShared().lookup(primaryName, RMI_SERVICE_NAME);
+			}
+			contents = primary.getCommitted(filename);
+			
+		} catch (Exception e) {
+			
+			if (DEBUG_MODE) System.out.println("Unable to reach primary: " + e.getMessage());
+			primary = null;
+			return null;
+			
+		}
+		
+		if (contents == null) {
+			if (DEBUG_MODE) System.out.println("File not found on primary! Returning NULL");
+			return null;
+		}
+		
+		// a newer version may have been replicated here in the meantime
+		HostedFile returnFile = new HostedFile(filename, contents);
+		HostedFile cachedFile = hostedFiles.putIfAbsent(filename, returnFile);
+		if (cachedFile == null) scheduleEviction();
+		
+		return (cachedFile != null) ? cachedFile : returnFile;
+		
+	}
+	
+	@Override
+	public FileStat stat(String filename) {
+
+		if (DEBUG_MODE) System.out.println("Received stat request for " + filename);
+
+		if (filename == null || filename.length() == 0) return FileStat.missing(filename);
+		
+		// cached files are described from memory, and are always current
+		HostedFile file = hostedFiles.get(filename);
+		if (file != null) return file.getStat();
+		
+		// another shard of the cluster is responsible for this file
+		HashRing currentRing = ring;
+		if (currentRing != null && !shardName.equals(currentRing.getShard(filename))) {
+			if (DEBUG_MODE) System.out.println(filename + " belongs to shard " + currentRing.getShard(filename) + ", returning NULL");
+			return null;
+		}
+		
+		// read replicas report the primary's version of the file
+		if (primaryName != null) {
+			try {
+				if (primary == null) primary = (ServerInterface) Transport.getShared().lookup(primaryName, RMI_SERVICE_NAME);
+				return primary.stat(filename);
+			} catch (Exception e) {
+				if (DEBUG_MODE) System.out.println("Unable to reach primary: " + e.getMessage());
+				primary = null;
+			}
+		}
+		
+		return metadata.get(filename);
+		
+	}
+	
+	@Override
+	public StoreStats storeStats() {
+
+		if (DEBUG_MODE) System.out.println("Received block store stats request");
+
+		return BlockStore.getShared().getStats();
+
+	}
+	
+	@Override
+	public List<FileStat> list(String directory) {
+
+		if (DEBUG_MODE) System.out.println("Received list request for " + directory);
+
+		List<FileStat> stats = new ArrayList<FileStat>();
+		
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(Paths.get(directory))) {
+			
+			for (Path entry : entries) {
+				
+				// skip subdirectories, and files other shards are responsible for
+				FileStat entryStat = stat(entry.toString());
+				if (entryStat != null && entryStat.exists()) stats.add(entryStat);
+				
+			}
+			
+		} catch (IOException | RuntimeException e) {
+			
+			if (DEBUG_MODE) System.out.println("Unable to list " + directory + ": " + e.getMessage());
+			
+		}
+		
+		return stats;
+		
+	}
+	
+	@Override
+	public FileContents readRange(String clientIPName, String filename, long offset, int length) {
+
+		if (DEBUG_MODE) System.out.println("Received request from " + clientIPName + " for " + length + " bytes at " + offset + " of " + filename);
+
+		if (filename == null || filename.length() == 0) return null;
+		
+		try {
+			
+			// cached files label the range with its version
+			HostedFile file = hostedFiles.get(filename);
+			if (file != null) return file.readRange(offset, length);
+			
+			// another shard of the cluster is responsible for this file
+			HashRing currentRing = ring;
+			if (currentRing != null && !shardName.equals(currentRing.getShard(filename))) {
+				if (DEBUG_MODE) System.out.println(filename + " belongs to shard " + currentRing.getShard(filename) + ", returning NULL");
+				return null;
+			}
+			
+			// read replicas leave uncached files to the primary, which knows their version
+			if (primaryName != null) {
+				if (primary == null) primary = (ServerInterface) Transport.getShared().lookup(primaryName, RMI_SERVICE_NAME);
+				return primary.readRange(clientIPName, filename, offset, length);
+			}
+			
+			// uncached files are read without loading all of them
+			return HostedFile.readRange(Paths.get(filename), offset, length, 0);
+			
+		} catch (Exception e) {
+			
+			if (DEBUG_MODE) System.out.println("Unable to read range: " + e.getMessage());
+			return null;
+			
+		}
+		
+	}
+	
+	@Override
+	public boolean writeRange(String clientIPName, String filename, long offset, FileContents data) throws ServerBusyException {
+
+		if (DEBUG_MODE) System.out.println("Received range write from " + clientIPName + " for " + filename + " at " + offset);
+
+		// writes are only accepted by the primary
+		if (primaryName != null) {
+			if (DEBUG_MODE) System.out.println("Read replicas do not accept writes, returning FALSE");
+			return false;
+		}
+		
+		AdmissionControl.getShared().enter(AdmissionControl.Operation.UPLOAD);
+		try {
+			
+			HostedFile file = getFile(filename, clientIPName);
+			if (file == null) {
+				if (DEBUG_MODE) System.out.println("File not found in cache! Returning FALSE");
+				return false;
+			}
+			
+			// only the owner, or a client holding a lease on the range, may write
+			if (!file.mayWrite(clientIPName, offset, data.length())) {
+				if (DEBUG_MODE) System.out.println("Client attempting to write is neither the owner of the file nor holding a lease on the range!");
+				return false;
+			}
+			
+			if (!file.writeRange(clientIPName, offset, data.get())) return false;
+			metadata.put(file.getStat());
+			scheduleEviction();
+			
+			// stream the committed version to the read replicas
+			if (replicaPublisher != null) replicaPublisher.publish(filename, file.getFileContents());
+			
+			return true;
+			
+		} finally {
+			AdmissionControl.getShared().exit(AdmissionControl.Operation.UPLOAD);
+		}
+		
+	}
+	
+	@Override
+	public long append(String clientIPName, String filename, FileContents data) throws ServerBusyException {
+
+		if (DEBUG_MODE) System.out.println("Received append from " + clientIPName + " for " + filename);
+
+		// writes are only accepted by the primary
+		if (primaryName != null || data == null) return -1;
+		
+		AdmissionControl.getShared().enter(AdmissionControl.Operation.UPLOAD);
+		try {
+			
+			HostedFile file = getFileToRegister(filename, clientIPName);
+			if (file == null) return -1;
+			
+			long offset = file.append(clientIPName, data.get());
+			while (offset < 0 && file.isRetired()) {
+				
+				// the file was evicted after it was looked up - look it up again
+				file = getFileToRegister(filename, clientIPName);
+				if (file == null) return -1;
+				offset = file.append(clientIPName, data.get());
+				
+			}
+			
+			if (offset < 0) return -1;
+			metadata.put(file.getStat());
+			scheduleEviction();
+			
+			// stream the committed version to the read replicas
+			if (replicaPublisher != null) replicaPublisher.publish(filename, file.getFileContents());
+			
+			return offset;
+			
+		} finally {
+			AdmissionControl.getShared().exit(AdmissionControl.Operation.UPLOAD);
+		}
+		
+	}
+	
+	@Override
+	public boolean lockRange(String clientIPName, String filename, long offset, long length) throws ServerBusyException {
+
+		if (DEBUG_MODE) System.out.println("Received range lock request from " + clientIPName + " for " + length + " bytes at " + offset + " of " + filename);
+
+		// writes are only accepted by the primary
+		if (primaryName != null) return false;
+		
+		// the file may have to be read from disk, which counts against the uploads in progress
+		AdmissionControl.getShared().enter(AdmissionControl.Operation.UPLOAD);
+		try {
+			
+			HostedFile file = getFileToRegister(filename, clientIPName);
+			
+			return file != null && file.lockRange(clientIPName, offset, length);
+			
+		} finally {
+			AdmissionControl.getShared().exit(AdmissionControl.Operation.UPLOAD);
+		}
+		
+	}
+	
+	@Override
+	public boolean unlockRange(String clientIPName, String filename, long offset, long length) {
+
+		if (DEBUG_MODE) System.out.println("Received range unlock request from " + clientIPName + " for " + filename);
+
+		HostedFile file = hostedFiles.get(filename);
+		
+		return file != null && file.unlockRange(clientIPName, offset, length);
+		
+	}
+	
+	@Override
+	public FileContents downloadRange(String clientIPName, String filename, long offset, int length) throws ServerBusyException {
+
+		if (DEBUG_MODE) System.out.println("Received range download request from " + clientIPName + " for " + length + " bytes at " + offset + " of " + filename);
+
+		AdmissionControl.getShared().enter(AdmissionControl.Operation.READ);
+		try {
+			
+			HostedFile file = getFileToRegister(filename, clientIPName);
+			if (file == null) return null;
+			
+			// register first, so that a write committed after the range is read still invalidates it
+			while (!file.registerRangeReader(clientIPName, port, offset, length)) {
+				
+				// the file was evicted after it was looked up - look it up again
+				file = getFileToRegister(filename, clientIPName);
+				if (file == null) return null;
+				
+			}
+			
+			FileContents range = file.readRange(offset, length);
+			file.setHeldVersion(clientIPName, range.getVersion());
+			
+			return range;
+			
+		} catch (IOException e) {
+			
+			if (DEBUG_MODE) System.out.println("Unable to read range: " + e.getMessage());
+			return null;
+			
+		} finally {
+			AdmissionControl.getShared().exit(AdmissionControl.Operation.READ);
+		}
+		
+	}
+	
+	/**
+	 * Check the ring config for changes, and hand off every cached file that now belongs
+	 * to another shard. Files owned for writing are handed off once their owner uploads.
+	 */
+	public void rebalance() {
+		
+		if (ringConfig == null) return;
+		
+		ring = ringConfig.get();
+		
+		// find files that have moved to another shard
+		List<String> movedFiles = new ArrayList<String>();
+		for (String filename : hostedFiles.keySet()) {
+			if (!shardName.equals(ring.getShard(filename))) movedFiles.add(filename);
+		}
+		
+		if (movedFiles.isEmpty()) return;
+		if (DEBUG_MODE) System.out.println("Ring changed, " + movedFiles.size() + " of " + hostedFiles.size() + " cached files belong to other shards");
+		
+		for (String filename : movedFiles) {
+			
+			HostedFile file = hostedFiles.get(filename);
+			if (file == null) continue;
+			
+			// stop serving the file here, so no client registers with it during the handoff
+			if (!file.retireForHandoff()) continue;
+			hostedFiles.remove(filename, file);
+			
+			// hand off the committed contents before they are released
+			FileContents contents = file.getFileContents();
+			String newShard = ring.getShard(filename);
+			try {
+				
+				ServerInterface shard = (ServerInterface) Transport.getShared().lookup(newShard, RMI_SERVICE_NAME);
+				if (shard.acceptHandoff(filename, contents)) {
+					if (DEBUG_MODE) System.out.println("Handed off " + filename + " to " + newShard);
+				} else {
+					if (DEBUG_MODE) System.out.println(newShard + " refused the handoff of " + filename);
+				}
+				
+			} catch (Exception e) {
+				
+				// the new shard will read the file from the filesystem instead
+				if (DEBUG_MODE) System.out.println("Unable to hand off " + filename + " to " + newShard + ": " + e.getMessage());
+				
+			}
+			
+			// readers re-resolve the file's shard once invalidated
+			file.release();
+			
+		}
+		
+	}
+	
+	/**
+	 * Ping every registered client once, and revoke the registrations of clients that
+	 * keep failing to answer (their callback breaker has opened). This frees files owned
+	 * by clients that vanished, instead of waiting for them to upload.
+	 */
+	public void checkLiveness() {
+		
+		// ping each client once, however many files it is registered with
+		Map<String, ConnectedClient> distinctClients = new HashMap<String, ConnectedClient>();
+		for (HostedFile file : hostedFiles.values()) {
+			for (ConnectedClient client : file.getClients()) {
+				distinctClients.put(client.getClientIPName(), client);
+			}
+		}
+		
+		for (ConnectedClient client : distinctClients.values()) {
+			
+			if (client.ping() || !client.isCircuitOpen()) continue;
+			
+			if (DEBUG_MODE) System.out.println("Client " + client.getClientIPName() + " is not responding, revoking its registrations");
+			for (HostedFile file : hostedFiles.values()) {
+				file.revokeClient(client.getClientIPName());
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * Helper method that starts the background thread pinging registered clients
+	 */
+	private void startLivenessChecks() {
+		
+		Thread pinger = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(LIVENESS_PING_MILLISECONDS);
+					} catch (InterruptedException e) {
+						return;
+					}
+					checkLiveness();
+				}
+			}
+		}, "liveness-ping");
+		pinger.setDaemon(true);
+		pinger.start();
+		
+	}
+	
+	/**
+	 * Save the state of every cached file (and of saved files not restored yet), so that
+	 * a restarted server resumes with the same versions and registered clients
+	 */
+	public void saveState() {
+		
+		if (stateStore == null) return;
+		
+		Map<String, ServerStateStore.FileRecord> records = new HashMap<String, ServerStateStore.FileRecord>(pendingRestores);
+		for (HostedFile file : hostedFiles.values()) {
+			if (file.getFileContents() != null) records.put(file.getFilename(), file.getRecord());
+		}
+		
+		try {
+			
+			stateStore.save(records.values());
+			if (DEBUG_MODE) System.out.println("Saved state of " + records.size() + " files to " + stateStore.getPath());
+			
+		} catch (IOException e) {
+			
+			System.err.println("Unable to save state to " + stateStore.getPath() + ": " + e.getMessage());
+			
+		}
+		
+	}
+	
+	/**
+	 * Helper method that loads the saved state, if state saving is configured, and starts
+	 * the background thread that restores the saved files into the cache and then saves
+	 * the state periodically. Requests for saved files are served as soon as the server
+	 * starts - each file is restored on its first request if the thread has not reached it.
+	 */
+	private void startPersistence() {
+		
+		String statePath = System.getProperty(STATE_FILE_PROPERTY);
+		
+		// read replicas refill their cache from the primary instead
+		if (statePath == null || primaryName != null) return;
+		
+		stateStore = new ServerStateStore(Paths.get(statePath));
+		try {
+			
+			pendingRestores.putAll(stateStore.load());
+			if (DEBUG_MODE) System.out.println("Loaded state of " + pendingRestores.size() + " files from " + statePath);
+			
+		} catch (IOException e) {
+			
+			// start with an empty cache rather than not at all
+			System.err.println("Unable to load state from " + statePath + ", starting empty: " + e.getMessage());
+			
+		}
+		
+		Thread saver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				
+				// warm the cache with the files that were cached before the restart
+				for (String filename : new ArrayList<String>(pendingRestores.keySet())) {
+					
+					// files that have moved to another shard, or no longer exist, are dropped
+					if (getFile(filename) == null) pendingRestores.remove(filename);
+					
+				}
+				
+				while (true) {
+					try {
+						Thread.sleep(STATE_SAVE_MILLISECONDS);
+					} catch (InterruptedException e) {
+						return;
+					}
+					saveState();
+				}
+				
+			}
+		}, "state-saver");
+		saver.setDaemon(true);
+		saver.start();
+		
+		// save once more on a clean shutdown
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				saveState();
+			}
+		}, "state-shutdown"));
+		
+	}
+	
+	/**
+	 * Helper method that opens the spill directory, if one is configured. Spilled files
+	 * left by a previous run are indexed, and served again if they are still current.
+	 */
+	private void startSpill() {
+		
+		String spillDir = System.getProperty(SPILL_DIR_PROPERTY);
+		
+		// read replicas refill their cache from the primary instead
+		if (spillDir == null || primaryName != null) return;
 		
+		try {
+			
+			Path dir = Files.createDirectories(Paths.get(spillDir));
+			spillCache = new SpillCache(dir.resolve("spill-" + port + ".seg"), Long.getLong(SPILL_MAX_BYTES_PROPERTY, DEFAULT_SPILL_MAX_BYTES));
+			
+		} catch (IOException e) {
+			
+			// evicted files are read from the filesystem again instead
+			System.err.println("Unable to open spill directory " + spillDir + ", not spilling: " + e.getMessage());
+			
 		}
-    
-    }
+		
+	}
 	
 }
\ No newline at end of file
@@ -0,0 +1,74 @@
+/**
+ * FileSnapshot is an immutable pairing of committed file contents with the
+ * version number they were committed as. HostedFile publishes a new snapshot
+ * each time an upload is written to the filesystem, so readers always see a
+ * complete, consistent (contents, version) pair without taking any lock.
+ *
+ * The digest of a version committed by a range write is computed from the
+ * contents the first time it is needed, rather than on the write path.
+ *
+ */
+public final class FileSnapshot {
+
+	// the committed contents of the file
+	private final FileContents contents;
+
+	// the version number of the committed contents, starting at 1 when loaded
+	private final long version;
+
+	// identifies the committed contents, to recognize uploads that change nothing (null until computed)
+	private volatile ContentDigest digest;
+
+	/**
+	 * Construct a snapshot of committed file contents
+	 * @param contents The committed contents of the file
+	 * @param version The version number of the committed contents
+	 * @param digest The digest of the committed contents, or null to compute it when first needed
+	 */
+	public FileSnapshot(FileContents contents, long version, ContentDigest digest) {
+		this.contents = contents;
+		this.version = version;
+		this.digest = digest;
+	}
+
+	/**
+	 * Get the committed contents of the file
+	 * @return File contents
+	 */
+	public FileContents getContents() {
+		return contents;
+	}
+
+	/**
+	 * Get the version number of the committed contents
+	 * @return The version number
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Get the digest of the committed contents
+	 * @return The digest, computed at most once
+	 */
+	public ContentDigest getDigest() {
+
+		ContentDigest computed = digest;
+		if (computed == null) {
+			computed = ContentDigest.of(contents.get());
+			digest = computed;
+		}
+
+		return computed;
+
+	}
+
+	/**
+	 * Get the digest of the committed contents without computing it
+	 * @return The digest, or null if it has not been computed yet
+	 */
+	public ContentDigest getDigestIfComputed() {
+		return digest;
+	}
+
+}
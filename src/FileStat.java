@@ -0,0 +1,123 @@
+import java.io.Serializable;
+
+/**
+ * FileStat describes a file without its contents: whether it exists, its size,
+ * version and modification time, and how it is currently shared. It is passed via
+ * RMI calls, therefore must be serializable.
+ *
+ */
+@SuppressWarnings("serial")
+public class FileStat implements Serializable {
+
+	// the filename, as requested by clients
+	private String filename;
+
+	// whether the file exists
+	private boolean exists;
+
+	// size of the file in bytes
+	private long size;
+
+	// committed version, or 0 if the file is not cached by the server
+	private long version;
+
+	// last modification time, in milliseconds since the epoch
+	private long lastModified;
+
+	// sharing state on the server
+	private ServerFileState state;
+
+	// whether a client currently owns the file for writing
+	private boolean owned;
+
+	/**
+	 * Describe a file that does not exist
+	 * @param filename The filename, as requested by clients
+	 * @return A description of a missing file
+	 */
+	public static FileStat missing(String filename) {
+		return new FileStat(filename, false, 0, 0, 0, ServerFileState.NOT_SHARED, false);
+	}
+
+	/**
+	 * Construct a description of a file
+	 * @param filename The filename, as requested by clients
+	 * @param exists Whether the file exists
+	 * @param size Size of the file in bytes
+	 * @param version Committed version, or 0 if the file is not cached by the server
+	 * @param lastModified Last modification time, in milliseconds since the epoch
+	 * @param state Sharing state on the server
+	 * @param owned Whether a client currently owns the file for writing
+	 */
+	public FileStat(String filename, boolean exists, long size, long version, long lastModified, ServerFileState state, boolean owned) {
+		this.filename = filename;
+		this.exists = exists;
+		this.size = size;
+		this.version = version;
+		this.lastModified = lastModified;
+		this.state = state;
+		this.owned = owned;
+	}
+
+	/**
+	 * Get the name of the file
+	 * @return The file name
+	 */
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * Check whether the file exists
+	 * @return TRUE if the file exists
+	 */
+	public boolean exists() {
+		return exists;
+	}
+
+	/**
+	 * Get the size of the file
+	 * @return The size in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Get the committed version of the file
+	 * @return The version, or 0 if the file is not cached by the server
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Get the last modification time of the file
+	 * @return Milliseconds since the epoch
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Get the sharing state of the file on the server
+	 * @return The current state
+	 */
+	public ServerFileState getState() {
+		return state;
+	}
+
+	/**
+	 * Check whether a client owns the file for writing
+	 * @return TRUE if the file has an owner
+	 */
+	public boolean isOwned() {
+		return owned;
+	}
+
+	@Override
+	public String toString() {
+		return filename + (exists ? " (" + size + " bytes, version " + version + ", " + state + (owned ? ", owned" : "") + ")" : " (missing)");
+	}
+
+}
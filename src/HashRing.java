@@ -0,0 +1,151 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * HashRing maps filenames onto the FileServer shards of a cluster using consistent
+ * hashing. Each shard is placed on the ring at several points ("virtual nodes"), and
+ * a filename belongs to the first shard found clockwise from the filename's hash.
+ * Adding or removing a shard therefore only moves the filenames in the ranges next
+ * to that shard's points.
+ *
+ * A ring is immutable. Shards are named "host:port", which is also where clients
+ * find them in the RMI registry.
+ *
+ */
+public class HashRing {
+
+	// points on the ring per shard, to spread each shard's ranges evenly
+	public static final int VIRTUAL_NODES_PER_SHARD = 64;
+
+	// shard names, in the order given by the ring config
+	private final List<String> shards;
+
+	// ring positions, mapped to the owning shard name
+	private final SortedMap<Long, String> ring = new TreeMap<Long, String>();
+
+	/**
+	 * Read a ring config: one "host:port" shard per line. Blank lines and lines
+	 * starting with '#' are ignored.
+	 * @param config The path of the ring config file
+	 * @return The ring described by the file
+	 * @throws IOException If the file could not be read, or lists no shards
+	 */
+	public static HashRing load(Path config) throws IOException {
+
+		List<String> shards = new ArrayList<String>();
+
+		for (String line : Files.readAllLines(config, StandardCharsets.UTF_8)) {
+			String shard = line.trim();
+			if (shard.length() == 0 || shard.startsWith("#")) continue;
+			shards.add(shard);
+		}
+
+		if (shards.isEmpty()) throw new IOException("No shards listed in ring config " + config);
+
+		return new HashRing(shards);
+
+	}
+
+	/**
+	 * Build a ring from a list of shards
+	 * @param shards The shard names, each of the form "host:port"
+	 */
+	public HashRing(List<String> shards) {
+
+		this.shards = Collections.unmodifiableList(new ArrayList<String>(shards));
+
+		for (String shard : this.shards) {
+			for (int i = 0; i < VIRTUAL_NODES_PER_SHARD; i++) {
+				ring.put(hash(shard + "#" + i), shard);
+			}
+		}
+
+	}
+
+	/**
+	 * Find the shard that owns a filename
+	 * @param filename The path/name of the file
+	 * @return The owning shard, as "host:port"
+	 */
+	public String getShard(String filename) {
+
+		SortedMap<Long, String> clockwise = ring.tailMap(hash(filename));
+		Long point = clockwise.isEmpty() ? ring.firstKey() : clockwise.firstKey();
+
+		return ring.get(point);
+
+	}
+
+	/**
+	 * Get all shards in the ring
+	 * @return The shard names, in config order
+	 */
+	public List<String> getShards() {
+		return shards;
+	}
+
+	/**
+	 * Get the host part of a shard name
+	 * @param shard The shard, as "host:port"
+	 * @return The host name or address
+	 */
+	public static String getHost(String shard) {
+		return shard.substring(0, shard.lastIndexOf(':'));
+	}
+
+	/**
+	 * Get the port part of a shard name
+	 * @param shard The shard, as "host:port"
+	 * @return The port number
+	 */
+	public static int getPort(String shard) {
+		return Integer.parseInt(shard.substring(shard.lastIndexOf(':') + 1));
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof HashRing && ((HashRing) other).shards.equals(shards);
+	}
+
+	@Override
+	public int hashCode() {
+		return shards.hashCode();
+	}
+
+	/**
+	 * Helper method that places a key on the ring, using the first 8 bytes of its MD5 digest
+	 * @param key The key to hash
+	 * @return The position of the key on the ring
+	 */
+	private static long hash(String key) {
+
+		try {
+
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+
+			long position = 0;
+			for (int i = 0; i < 8; i++) {
+				position = (position << 8) | (digest[i] & 0xFF);
+			}
+
+			return position;
+
+		} catch (NoSuchAlgorithmException e) {
+
+			// every Java platform is required to support MD5
+			throw new IllegalStateException(e);
+
+		}
+
+	}
+
+}
@@ -0,0 +1,526 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/*
+A cache of downloaded files shared by all the FileClient processes on this host that
+talk to the same server, so popular files are downloaded, and held in memory, once per
+host rather than once per process. The files are kept in one segment file that every
+process maps, so the operating system keeps a single copy of them in its page cache.
+
+The segment is a log that processes only ever append to, under a file lock: a record
+either adds a version of a file, drops the copy of a file older than a given version,
+or drops every file. Each process follows the log to keep its own index of where the
+files are, so an invalidation appended by one process is seen by all the others the
+next time they open a file. Once most of the log is dead records it is rewritten.
+
+One process, the leader, holds the host's registration with the server and appends the
+invalidations it is sent. Leadership is an exclusive lock on a file, which the operating
+system releases if the leader exits, so another process can take over.
+ */
+public class HostCache
+{
+    //Record kinds
+    private static final byte CONTENTS = 0;
+    private static final byte INVALIDATE = 1;
+    private static final byte CLEAR = 2;
+
+    //Marks the start of a record ("HCR1")
+    private static final int RECORD_MAGIC = 0x48435231;
+
+    //Size of a record before the file name: magic, kind, version, length and name length
+    private static final int HEADER_BYTES = 4 + 1 + 8 + 4 + 4;
+
+    //Smallest segment worth rewriting
+    private static final long COMPACT_MIN_BYTES = 16L * 1024 * 1024;
+
+    //Most bytes of files kept, the cache starts over once it is full
+    private static final long MAX_BYTES = Long.getLong("fileclient.hostCache.maxBytes", 256L * 1024 * 1024);
+
+    //Where a file's newest copy is in the segment
+    private static class Entry
+    {
+        private long version;
+        private long offset;
+        private int length;
+
+        private Entry(long version, long offset, int length)
+        {
+            this.version = version;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    //Segment stuff, the segment is replaced when it is rewritten so its file key is kept to notice that
+    private Path segmentPath = null;
+    private FileChannel segment = null;
+    private Object segmentKey = null;
+
+    //Appends are made holding a lock on this file
+    private FileChannel appendLockChannel = null;
+
+    //Leader stuff, the leader holds a lock on this file
+    private FileChannel leaderChannel = null;
+    private FileLock leaderLock = null;
+
+    //How far this process has followed the log, and its index of what the log holds
+    private long scanned = 0;
+    private Map<String, Entry> index = new HashMap<String, Entry>();
+    private long liveBytes = 0;
+
+    //Records applied by this process, and when each file was last dropped, to catch
+    //downloads that raced with an invalidation
+    private long applied = 0;
+    private long clearedAt = 0;
+    private Map<String, Long> invalidatedAt = new HashMap<String, Long>();
+
+    /*
+    Opens the cache shared by the processes on this host that use the server on the given port
+     */
+    public HostCache(int port) throws IOException
+    {
+        Path dir = Paths.get(System.getProperty("java.io.tmpdir"), "fileclient-" + port);
+        Files.createDirectories(dir);
+
+        segmentPath = dir.resolve("cache.seg");
+        appendLockChannel = FileChannel.open(dir.resolve("append.lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        leaderChannel = FileChannel.open(dir.resolve("leader.lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+        FileLock lock = appendLockChannel.lock();
+        try
+        {
+            openSegment();
+            refresh();
+        }
+        finally
+        {
+            lock.release();
+        }
+    }
+
+    /*
+    Makes this process the leader if no other process is, returns true if it now is
+     */
+    public synchronized boolean tryLead() throws IOException
+    {
+        if (leaderLock == null)
+        {
+            try
+            {
+                leaderLock = leaderChannel.tryLock();
+            }
+            catch (OverlappingFileLockException e)
+            {
+                return false;
+            }
+        }
+
+        return leaderLock != null;
+    }
+
+    /*
+    Checks whether this process holds the host's registration
+     */
+    public synchronized boolean isLeader()
+    {
+        return leaderLock != null;
+    }
+
+    /*
+    Gets the cached copy of a file, or null if the host holds none
+     */
+    public synchronized FileContents get(String fileName) throws IOException
+    {
+        refresh();
+
+        Entry entry = index.get(fileName);
+        if (entry == null)
+        {
+            return null;
+        }
+
+        //Copied out of the mapped segment, as the client edits and saves its own copy
+        MappedByteBuffer mapped = segment.map(FileChannel.MapMode.READ_ONLY, entry.offset, entry.length);
+        byte[] contents = new byte[entry.length];
+        mapped.get(contents);
+
+        return new FileContents(contents, entry.version);
+    }
+
+    /*
+    Checks whether a copy of a file is still the one the host holds
+     */
+    public synchronized boolean isCurrent(String fileName, long version) throws IOException
+    {
+        refresh();
+
+        Entry entry = index.get(fileName);
+
+        return entry != null && entry.version == version;
+    }
+
+    /*
+    Notes where the log is before a download, to pass to put() afterwards
+     */
+    public synchronized long mark() throws IOException
+    {
+        refresh();
+
+        return applied;
+    }
+
+    /*
+    Adds a downloaded file to the cache, unless it was dropped since the download started
+    (at the given mark), since the copy may then be older than the invalidation
+     */
+    public synchronized void put(String fileName, FileContents contents, long mark) throws IOException
+    {
+        FileLock lock = appendLockChannel.lock();
+        try
+        {
+            refresh();
+
+            Long dropped = invalidatedAt.get(fileName);
+            if (clearedAt > mark || (dropped != null && dropped > mark))
+            {
+                return;
+            }
+
+            add(fileName, contents);
+        }
+        finally
+        {
+            lock.release();
+        }
+    }
+
+    /*
+    Replaces the cached copy of a file with a newer version pushed by the server,
+    returns false if the host held no copy of the file
+     */
+    public synchronized boolean update(String fileName, FileContents contents) throws IOException
+    {
+        FileLock lock = appendLockChannel.lock();
+        try
+        {
+            refresh();
+
+            if (!index.containsKey(fileName))
+            {
+                return false;
+            }
+
+            add(fileName, contents);
+
+            return true;
+        }
+        finally
+        {
+            lock.release();
+        }
+    }
+
+    /*
+    Drops the cached copy of a file if it is older than the given version, returns false
+    if the host held no copy of the file
+     */
+    public synchronized boolean invalidate(String fileName, long version) throws IOException
+    {
+        FileLock lock = appendLockChannel.lock();
+        try
+        {
+            refresh();
+
+            //A copy at least as new as the committed version stays valid
+            Entry entry = index.get(fileName);
+            if (entry != null && entry.version >= version)
+            {
+                return true;
+            }
+
+            //Appended even with no copy, in case one is being downloaded
+            append(INVALIDATE, fileName, version, null);
+            refresh();
+
+            return entry != null;
+        }
+        finally
+        {
+            lock.release();
+        }
+    }
+
+    /*
+    Drops every cached file, once the server has forgotten the host's registrations
+     */
+    public synchronized void clear() throws IOException
+    {
+        FileLock lock = appendLockChannel.lock();
+        try
+        {
+            append(CLEAR, "", 0, null);
+            refresh();
+        }
+        finally
+        {
+            lock.release();
+        }
+    }
+
+    /*
+    Gives up leadership and closes the cache
+     */
+    public synchronized void close() throws IOException
+    {
+        if (leaderLock != null)
+        {
+            leaderLock.release();
+            leaderLock = null;
+        }
+
+        leaderChannel.close();
+        appendLockChannel.close();
+        segment.close();
+    }
+
+    /*
+    Appends a copy of a file, first starting over if the cache is full. Called holding the append lock.
+     */
+    private void add(String fileName, FileContents contents) throws IOException
+    {
+        byte[] bytes = contents.get();
+        if (bytes.length > MAX_BYTES)
+        {
+            return;
+        }
+
+        Entry previous = index.get(fileName);
+        long replaced = (previous == null) ? 0 : previous.length;
+        if (liveBytes - replaced + bytes.length > MAX_BYTES)
+        {
+            append(CLEAR, "", 0, null);
+        }
+
+        append(CONTENTS, fileName, contents.getVersion(), bytes);
+        refresh();
+
+        compactIfSparse();
+    }
+
+    /*
+    Appends a record to the end of the segment. Called holding the append lock.
+     */
+    private void append(byte kind, String fileName, long version, byte[] contents) throws IOException
+    {
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + name.length);
+        header.putInt(RECORD_MAGIC);
+        header.put(kind);
+        header.putLong(version);
+        header.putInt(contents == null ? 0 : contents.length);
+        header.putInt(name.length);
+        header.put(name);
+        header.flip();
+
+        ByteBuffer[] record = (contents == null)
+            ? new ByteBuffer[] { header }
+            : new ByteBuffer[] { header, ByteBuffer.wrap(contents) };
+
+        long remaining = header.remaining() + (contents == null ? 0 : contents.length);
+
+        segment.position(segment.size());
+        while (remaining > 0)
+        {
+            remaining -= segment.write(record);
+        }
+    }
+
+    /*
+    Follows the log from where this process last stopped, reopening the segment first if
+    another process has rewritten it. Stops at a record still being appended.
+     */
+    private void refresh() throws IOException
+    {
+        if (!isSegmentCurrent())
+        {
+            segment.close();
+            openSegment();
+        }
+
+        long size = segment.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+
+        while (scanned + HEADER_BYTES <= size)
+        {
+            header.clear();
+            readFully(header, scanned);
+            header.flip();
+
+            if (header.getInt() != RECORD_MAGIC)
+            {
+                throw new IOException("Host cache segment " + segmentPath + " is corrupt at " + scanned);
+            }
+
+            byte kind = header.get();
+            long version = header.getLong();
+            int length = header.getInt();
+            int nameLength = header.getInt();
+
+            long contentsOffset = scanned + HEADER_BYTES + nameLength;
+            if (contentsOffset + length > size)
+            {
+                break;
+            }
+
+            ByteBuffer name = ByteBuffer.allocate(nameLength);
+            readFully(name, scanned + HEADER_BYTES);
+
+            apply(kind, new String(name.array(), StandardCharsets.UTF_8), version, contentsOffset, length);
+            scanned = contentsOffset + length;
+        }
+    }
+
+    /*
+    Applies one record of the log to the index
+     */
+    private void apply(byte kind, String fileName, long version, long offset, int length)
+    {
+        applied++;
+
+        Entry entry = index.get(fileName);
+
+        if (kind == CONTENTS)
+        {
+            //Two processes may download different versions, the newest one is kept
+            if (entry == null || entry.version <= version)
+            {
+                drop(fileName);
+                index.put(fileName, new Entry(version, offset, length));
+                liveBytes += length;
+            }
+        }
+        else if (kind == INVALIDATE)
+        {
+            if (entry != null && entry.version < version)
+            {
+                drop(fileName);
+            }
+
+            invalidatedAt.put(fileName, applied);
+        }
+        else if (kind == CLEAR)
+        {
+            index.clear();
+            liveBytes = 0;
+            clearedAt = applied;
+        }
+    }
+
+    /*
+    Removes a file from the index
+     */
+    private void drop(String fileName)
+    {
+        Entry removed = index.remove(fileName);
+        if (removed != null)
+        {
+            liveBytes -= removed.length;
+        }
+    }
+
+    /*
+    Rewrites the segment with only the live copies once most of it is dead records.
+    Called holding the append lock, after a refresh.
+     */
+    private void compactIfSparse() throws IOException
+    {
+        long segmentBytes = segment.size();
+        if (segmentBytes < COMPACT_MIN_BYTES || liveBytes * 2 > segmentBytes)
+        {
+            return;
+        }
+
+        Path compacted = segmentPath.resolveSibling(segmentPath.getFileName() + ".tmp");
+        FileChannel previous = segment;
+        Map<String, Entry> live = new HashMap<String, Entry>(index);
+
+        segment = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try
+        {
+            for (Map.Entry<String, Entry> file : live.entrySet())
+            {
+                ByteBuffer contents = ByteBuffer.allocate(file.getValue().length);
+                while (contents.hasRemaining())
+                {
+                    if (previous.read(contents, file.getValue().offset + contents.position()) < 0)
+                    {
+                        throw new EOFException("Host cache segment truncated");
+                    }
+                }
+
+                append(CONTENTS, file.getKey(), file.getValue().version, contents.array());
+            }
+
+            segment.force(false);
+        }
+        finally
+        {
+            segment.close();
+            segment = previous;
+        }
+
+        Files.move(compacted, segmentPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        //Downloads racing with the rewrite are dropped rather than risk keeping a stale copy
+        refresh();
+    }
+
+    /*
+    Opens the segment and follows it from the start
+     */
+    private void openSegment() throws IOException
+    {
+        segment = FileChannel.open(segmentPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segmentKey = Files.readAttributes(segmentPath, BasicFileAttributes.class).fileKey();
+
+        scanned = 0;
+        index.clear();
+        liveBytes = 0;
+        clearedAt = applied;
+    }
+
+    /*
+    Checks whether the open segment is still the one in the cache directory
+     */
+    private boolean isSegmentCurrent() throws IOException
+    {
+        Object key = Files.readAttributes(segmentPath, BasicFileAttributes.class).fileKey();
+        if (key != null)
+        {
+            return key.equals(segmentKey);
+        }
+
+        //Without file keys, a different size means a different file
+        return Files.size(segmentPath) == segment.size();
+    }
+
+    /*
+    Reads bytes from the segment at the given position
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (segment.read(buffer, position + buffer.position()) < 0)
+            {
+                throw new EOFException("Host cache segment truncated");
+            }
+        }
+    }
+}
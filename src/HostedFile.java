@@ -1,13 +1,23 @@
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Date;
-import java.util.HashMap;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * HostedFile represents a file that one or more Clients have requested. Also, the 
@@ -23,23 +33,141 @@ public class HostedFile {
 	// the actual file as it exists in the local filesystem
 	private Path file = null;
 	
-	// the representation as given to clients upon request/update
-	private FileContents fileContents = null;
+	// the last committed contents and version, as given to clients upon request/update
+	private final AtomicReference<FileSnapshot> snapshot = new AtomicReference<FileSnapshot>();
+	
+	// recently committed versions, retained for reads at a version and diffs
+	private final VersionHistory history = new VersionHistory();
 	
 	// the filename, as requested by clients
 	private String filename;
 	
 	// a collection of clients that are currently using this file
-	private Map<String, ConnectedClient> clients = new HashMap<String, ConnectedClient>();
+	private Map<String, ConnectedClient> clients = new ConcurrentHashMap<String, ConnectedClient>();
+	
+	// orders range reads against writes to the file on disk
+	private final ReadWriteLock diskLock = new ReentrantReadWriteLock();
+	
+	// when the committed contents last changed (as recorded by the filesystem, when this
+	// server wrote them), in milliseconds since the epoch
+	private volatile long lastModified = 0;
+	
+	// rotates redirects over the clients holding the current version
+	private final AtomicInteger nextPeer = new AtomicInteger();
+	
+	// decides whether new versions are pushed to readers or they are invalidated
+	private final UpdatePolicy updatePolicy = new UpdatePolicy();
 	
 	// overall state of the file, initially "not shared"
-	private ServerFileState fileState = ServerFileState.NOT_SHARED;
+	private volatile ServerFileState fileState = ServerFileState.NOT_SHARED;
+	
+	// notified when the owner gives up the file, waking a client waiting to take ownership
+	private final Object ownershipMonitor = new Object();
+	
+	// when a client last requested this file, for choosing files to evict from the cache
+	private volatile long lastAccess = System.currentTimeMillis();
+	
+	// client registrations in progress, which keep the file from being evicted
+	private int registering = 0;
+	
+	// set once the file has been evicted from the server's cache - clients can no longer register
+	private volatile boolean retired = false;
+	
+	// clients' write leases on byte ranges of the file (guarded by itself)
+	private final List<RangeLease> leases = new ArrayList<RangeLease>();
+	
+	// appends waiting to be written in the next batch (guarded by itself)
+	private final List<PendingAppend> appendQueue = new ArrayList<PendingAppend>();
+	
+	// set while a batch of appends is being written (guarded by appendQueue)
+	private boolean appending = false;
+	
+	// an append waiting to be written, and where it was written once it is
+	private static class PendingAppend {
+		
+		private final byte[] data;
+		
+		// the position the data was written at, or -1 if the append failed
+		private long offset = -1;
+		
+		// set once the batch holding this append has been written (or failed)
+		private boolean done = false;
+		
+		private PendingAppend(byte[] data) {
+			this.data = data;
+		}
+		
+	}
 	
 	/**
 	 * Instantiate a HostedFile, setting contents from the specified file
 	 * @param filename The filename of the file to read/track/manage
 	 */
 	public HostedFile(String filename) {
+		this(filename, (ServerStateStore.FileRecord) null);
+	}
+	
+	/**
+	 * Restore a HostedFile saved before the server restarted. The contents are re-read
+	 * from the specified file. If the file is unchanged since it was saved, it keeps its
+	 * version, otherwise it gets the next version and the restored clients are invalidated.
+	 * @param record The saved state of the file
+	 * @return The restored file (whose contents are null if the file could not be read)
+	 */
+	public static HostedFile restore(ServerStateStore.FileRecord record) {
+		
+		HostedFile restored = new HostedFile(record.filename, record);
+		if (restored.getFileContents() == null) return restored;
+		
+		for (ServerStateStore.ClientRecord clientRecord : record.clients) {
+			
+			ConnectedClient client = ConnectedClient.restore(clientRecord.clientIPName, clientRecord.port);
+			client.setFileAccessMode(clientRecord.mode);
+			client.setHeldVersion(clientRecord.heldVersion);
+			restored.clients.put(clientRecord.clientIPName, client);
+			
+		}
+		
+		// the ownership change was interrupted by the restart - the owner still has to upload
+		restored.fileState = (record.state == ServerFileState.OWNERSHIP_CHANGE) ? ServerFileState.WRITE_SHARED : record.state;
+		
+		// the file changed while the server was down
+		if (restored.getVersion() != record.version) {
+			
+			if (FileServer.DEBUG_MODE) System.out.println(record.filename + " changed on disk since it was saved, invalidating restored clients");
+			ConnectedClient owner = restored.getOwner();
+			restored.invalidateClients(owner == null ? null : owner.getClientIPName());
+			
+		}
+		
+		return restored;
+		
+	}
+	
+	/**
+	 * Get the state of this file to save before a restart
+	 * @return The version, modification time, size, state and registered clients of the file
+	 */
+	public ServerStateStore.FileRecord getRecord() {
+		
+		List<ServerStateStore.ClientRecord> clientRecords = new ArrayList<ServerStateStore.ClientRecord>();
+		for (ConnectedClient client : clients.values()) {
+			clientRecords.add(new ServerStateStore.ClientRecord(client.getClientIPName(), client.getPort(), client.getFileAccessMode(), client.getHeldVersion()));
+		}
+		
+		FileContents contents = getFileContents();
+		
+		return new ServerStateStore.FileRecord(filename, getVersion(), lastModified, contents == null ? 0 : contents.length(), fileState, clientRecords);
+		
+	}
+	
+	/**
+	 * Instantiate a HostedFile from the specified file, continuing the version numbering
+	 * of a saved state if there is one
+	 * @param filename The filename of the file to read/track/manage
+	 * @param record The saved state of the file, or null
+	 */
+	private HostedFile(String filename, ServerStateStore.FileRecord record) {
 	
 		if (FileServer.DEBUG_MODE) System.out.println("Creating HostedFile for " + filename);
 
@@ -54,7 +182,17 @@ public class HostedFile {
 			
 			if (FileServer.DEBUG_MODE) System.out.println("Attempting to read file contents...");
 
-			fileContents = new FileContents(Files.readAllBytes(file));
+			byte[] bytes = Files.readAllBytes(file);
+			long modified = Files.getLastModifiedTime(file).toMillis();
+			
+			// a restored file keeps its version only if it has not changed since it was saved
+			long version = 1;
+			if (record != null) {
+				version = (modified == record.lastModified && bytes.length == record.size) ? record.version : record.version + 1;
+			}
+			
+			snapshot.set(history.add(bytes, version));
+			lastModified = modified;
 
 			if (FileServer.DEBUG_MODE) System.out.println("File contents read!");
 
@@ -69,6 +207,129 @@ public class HostedFile {
 			
 	}
 
+	/**
+	 * Instantiate a HostedFile from contents supplied by another server (a handoff within
+	 * a cluster, or a replica filling its cache), rather than reading the file from the filesystem
+	 * @param filename The filename of the file to track/manage
+	 * @param contents The committed contents of the file, including their version
+	 */
+	public HostedFile(String filename, FileContents contents) {
+		
+		if (FileServer.DEBUG_MODE) System.out.println("Creating HostedFile for " + filename + " from version " + contents.getVersion() + " supplied by another server");
+
+		this.filename = filename;
+		file = Paths.get(filename);
+		
+		// continue the version numbering of the previous server
+		snapshot.set(history.add(contents.get(), Math.max(1, contents.getVersion())));
+		lastModified = System.currentTimeMillis();
+		
+	}
+
+	/**
+	 * Instantiate a HostedFile from contents spilled to the server's local disk, which
+	 * are still the contents of the file in the filesystem
+	 * @param filename The filename of the file to track/manage
+	 * @param contents The spilled contents of the file, including their version
+	 * @param lastModified The modification time of the file in the filesystem
+	 * @return The file
+	 */
+	public static HostedFile fromSpill(String filename, FileContents contents, long lastModified) {
+		
+		HostedFile spilled = new HostedFile(filename, contents);
+		spilled.lastModified = lastModified;
+		
+		return spilled;
+		
+	}
+
+	/**
+	 * Retire this file so it can be evicted from the server's cache. Only a file no client
+	 * is registered with (or registering with) can be retired; clients cannot register
+	 * with a retired file afterwards.
+	 * @return TRUE if the file was retired, FALSE if it is in use
+	 */
+	public synchronized boolean retire() {
+		
+		if (registering > 0 || !clients.isEmpty() || hasLeases(null) || hasAppends()) return false;
+		if (fileState == ServerFileState.WRITE_SHARED || fileState == ServerFileState.OWNERSHIP_CHANGE) return false;
+		
+		if (FileServer.DEBUG_MODE) System.out.println("Retiring " + filename + " for eviction");
+		retired = true;
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Retire this file so it can be handed off to another server. Unlike retire, readers
+	 * may be registered (release invalidates them once the handoff is done), but a file
+	 * that is owned for writing, or has ranges being written or appends pending, cannot
+	 * be retired until those end.
+	 * @return TRUE if the file was retired, FALSE if it is being written
+	 */
+	public synchronized boolean retireForHandoff() {
+		
+		if (registering > 0 || hasLeases(null) || hasAppends()) return false;
+		if (fileState == ServerFileState.WRITE_SHARED || fileState == ServerFileState.OWNERSHIP_CHANGE) {
+			if (FileServer.DEBUG_MODE) System.out.println("Cannot hand off " + filename + " while in state " + fileState);
+			return false;
+		}
+		
+		if (FileServer.DEBUG_MODE) System.out.println("Retiring " + filename + " for handoff");
+		retired = true;
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Check whether this file has been evicted from the server's cache
+	 * @return TRUE if the file was retired
+	 */
+	public boolean isRetired() {
+		return retired;
+	}
+	
+	/**
+	 * Record that a client requested this file
+	 */
+	public void touch() {
+		lastAccess = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Get when a client last requested this file
+	 * @return Milliseconds since the epoch
+	 */
+	public long getLastAccess() {
+		return lastAccess;
+	}
+	
+	/**
+	 * Get the memory held by this file's contents
+	 * @return The bytes retained by its version history
+	 */
+	public long getCachedBytes() {
+		return history.getRetainedBytes();
+	}
+
+	/**
+	 * Release a retired file, once it has been evicted or handed off to another server.
+	 * All readers are invalidated, so they will request the file again (from its new
+	 * server), and the file's versions are dropped.
+	 */
+	public void release() {
+		
+		if (FileServer.DEBUG_MODE) System.out.println("Releasing " + filename);
+		invalidateClients();
+		fileState = ServerFileState.NOT_SHARED;
+		
+		// snapshots already handed out stay readable (off-heap blocks until their quarantine ends)
+		history.clear();
+		
+	}
+
 	/**
 	 * Remove a client associated with this file
 	 * @param clientIPName The hostname/IP address of the client to de-register
@@ -86,7 +347,55 @@ public class HostedFile {
 	 * @return The RMI file representation
 	 */
 	public FileContents getFileContents() {
-		return fileContents;
+		FileSnapshot current = snapshot.get();
+		return current == null ? null : current.getContents();
+	}
+
+	/**
+	 * Get the contents of a specific, recently committed version of the file
+	 * @param version The version number requested
+	 * @return The contents of that version, or null if it is no longer retained
+	 */
+	public FileContents getFileContents(long version) {
+		return history.get(version);
+	}
+
+	/**
+	 * Compute the changes between two retained versions of the file
+	 * @param fromVersion The base version
+	 * @param toVersion The target version
+	 * @return The delta between the versions, or null if either is no longer retained
+	 */
+	public FileDelta getDelta(long fromVersion, long toVersion) {
+
+		FileContents from = history.get(fromVersion);
+		FileContents to = history.get(toVersion);
+		
+		if (from == null || to == null) {
+			if (FileServer.DEBUG_MODE) System.out.println("Cannot diff " + filename + " from version " + fromVersion + " to " + toVersion + " (oldest retained is " + history.getOldestVersion() + ")");
+			return null;
+		}
+		
+		return FileDelta.compute(from, to);
+		
+	}
+
+	/**
+	 * Get the last committed contents and version of the file. This never blocks, and
+	 * is unaffected by an ownership change or upload that is in progress.
+	 * @return The last committed snapshot, or null if the file could not be read
+	 */
+	public FileSnapshot getSnapshot() {
+		return snapshot.get();
+	}
+
+	/**
+	 * Get the version number of the last committed contents
+	 * @return The version number, or 0 if the file could not be read
+	 */
+	public long getVersion() {
+		FileSnapshot current = snapshot.get();
+		return current == null ? 0 : current.getVersion();
 	}
 
 	/**
@@ -127,6 +436,74 @@ public class HostedFile {
 		
 	}
 	
+	/**
+	 * Find a reader that holds a given version of this file, so another client can fetch
+	 * the file from it. Readers are chosen in turn to spread the load between them.
+	 * @param clientIPName The client asking for the file, which is never chosen
+	 * @param version The version the peer must hold
+	 * @return A reader holding that version, or null if there is none
+	 */
+	public ConnectedClient findPeer(String clientIPName, long version) {
+		
+		List<ConnectedClient> peers = new ArrayList<ConnectedClient>();
+		for (ConnectedClient client : clients.values()) {
+			if (client.getFileAccessMode() == ServerFileState.READ_SHARED && client.getHeldVersion() == version
+					&& client.holdsWholeFile() && !client.getClientIPName().equalsIgnoreCase(clientIPName)) {
+				peers.add(client);
+			}
+		}
+		
+		if (peers.isEmpty()) return null;
+		
+		return peers.get(Math.abs(nextPeer.getAndIncrement() % peers.size()));
+		
+	}
+	
+	/**
+	 * Record the version of this file given to a registered client
+	 * @param clientIPName The hostname/IP address of the client
+	 * @param version The version given to the client
+	 */
+	public void setHeldVersion(String clientIPName, long version) {
+		
+		ConnectedClient client = clients.get(clientIPName);
+		if (client != null) client.setHeldVersion(version);
+		
+	}
+	
+	/**
+	 * Record that a reader redirected to a peer has fetched the version it was sent for,
+	 * so it may be chosen as a peer itself. A newer version pushed to the reader in the
+	 * meantime is kept.
+	 * @param clientIPName The hostname/IP address of the client
+	 * @param version The version the client fetched
+	 * @return TRUE if the version was recorded, FALSE if the client is not a reader or holds a newer version
+	 */
+	public boolean confirmHeldVersion(String clientIPName, long version) {
+		
+		ConnectedClient client = clients.get(clientIPName);
+		if (client == null || client.getFileAccessMode() != ServerFileState.READ_SHARED) return false;
+		
+		if (client.getHeldVersion() >= version) return false;
+		client.setHeldVersion(version);
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Describe this file without its contents
+	 * @return The size, version, modification time and sharing state of the file
+	 */
+	public FileStat getStat() {
+		
+		FileSnapshot current = snapshot.get();
+		if (current == null) return FileStat.missing(filename);
+		
+		return new FileStat(filename, true, current.getContents().length(), current.getVersion(), lastModified, fileState, getOwner() != null);
+		
+	}
+	
 	/**
 	 * Get the access state of this file
 	 * @return The current state of the file
@@ -135,39 +512,169 @@ public class HostedFile {
 		return fileState;
 	}
 	
+	/**
+	 * Get the clients currently registered with this file
+	 * @return The registered clients
+	 */
+	public Collection<ConnectedClient> getClients() {
+		return clients.values();
+	}
+	
+	/**
+	 * Remove a client that can no longer be reached. If it owned the file, its ownership
+	 * is revoked (any pending changes are lost), and a client waiting to take ownership
+	 * proceeds without waiting for the upload.
+	 * @param clientIPName The hostname/IP address of the client to revoke
+	 */
+	public void revokeClient(String clientIPName) {
+		
+		unlockRange(clientIPName, 0, Long.MAX_VALUE);
+		
+		ConnectedClient client = clients.remove(clientIPName);
+		if (client == null) return;
+		
+		if (FileServer.DEBUG_MODE) System.out.println("Revoking " + clientIPName + " (mode " + client.getFileAccessMode() + ") from " + filename);
+		
+		ServerFileState clientState = client.getFileAccessMode();
+		boolean wasOwner = (clientState == ServerFileState.WRITE_SHARED || clientState == ServerFileState.OWNERSHIP_CHANGE);
+		
+		if (wasOwner && fileState == ServerFileState.OWNERSHIP_CHANGE) {
+			
+			// release the client waiting in registerOwner
+			releaseOwnership();
+			
+		} else if (wasOwner || clients.isEmpty()) {
+			
+			fileState = sharedState();
+			
+		}
+		
+	}
+	
 	/**
 	 * Helper method that will inform all clients accessing this file that their
 	 * local copies are no longer valid (another client modified the file)
-	 * @return Operation success (TRUE) or failure (FALSE)
 	 */
-	private boolean invalidateClients() {
+	private void invalidateClients() {
+		invalidateClients(null);
+	}
+	
+	/**
+	 * Helper method that will inform all clients accessing this file, except one, that
+	 * their local copies are no longer valid
+	 * @param exceptClientIPName The client whose copy is still valid (the writer), or null
+	 */
+	private void invalidateClients(String exceptClientIPName) {
+		notifyClients(exceptClientIPName, null, 0, 0, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Helper method that tells all clients accessing this file, except the writer, about
+	 * a newly committed version. Readers of small files that they read again often are
+	 * pushed the new version (see UpdatePolicy), the others are invalidated.
+	 * @param exceptClientIPName The client whose copy is still valid (the writer), or null
+	 * @param previousVersion The version committed before this one
+	 */
+	private void updateClients(String exceptClientIPName, long previousVersion) {
+		updateClients(exceptClientIPName, previousVersion, 0, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Helper method that tells the clients holding any of a changed range of this file,
+	 * except the writer, about a newly committed version
+	 * @param exceptClientIPName The client whose copy is still valid (the writer), or null
+	 * @param previousVersion The version committed before this one
+	 * @param offset The position of the first byte changed
+	 * @param length The number of bytes changed
+	 */
+	private void updateClients(String exceptClientIPName, long previousVersion, long offset, long length) {
+		
+		FileSnapshot committed = snapshot.get();
+		boolean push = updatePolicy.shouldPush(committed.getContents().length());
+		
+		if (FileServer.DEBUG_MODE) System.out.println((push ? "Pushing" : "Invalidating") + " version " + committed.getVersion() + " of " + filename + " (re-read rate " + updatePolicy.getRereadRate() + ", push limit " + updatePolicy.getPushLimit() + " bytes)");
+		
+		notifyClients(exceptClientIPName, push ? committed : null, previousVersion, offset, length);
+		
+	}
+	
+	/**
+	 * Helper method that invalidates, or pushes a new version to, every reader of this
+	 * file except one, and releases the owner. Readers are called in the background,
+	 * batched with their other invalidations (see InvalidationBatcher).
+	 * @param exceptClientIPName The client whose copy is still valid (the writer), or null
+	 * @param pushed The committed version to push to readers, or null to invalidate them
+	 * @param previousVersion The version committed before the new one, or 0 if this is not an update
+	 * @param offset The position of the first byte changed
+	 * @param length The number of bytes changed (Long.MAX_VALUE if the whole file may have changed)
+	 */
+	private void notifyClients(String exceptClientIPName, FileSnapshot pushed, long previousVersion, long offset, long length) {
 
 		if (FileServer.DEBUG_MODE) System.out.println("Attempting to invalidate all client copies of " + filename);
 
-		boolean operationSuccess = true;
+		long version = getVersion();
+		FileDelta delta = null;
 		
 		// iterate over collection of connected clients
 		for (ConnectedClient fileClient : clients.values()) {
 			
-			// ... invalidate each
-			boolean invalidateSuccess = fileClient.invalidate();
+			// the writer already has the new contents
+			if (fileClient.getClientIPName().equalsIgnoreCase(exceptClientIPName)) continue;
 			
-			if (FileServer.DEBUG_MODE) System.out.println("Invalidation request for " + fileClient.getClientIPName() + " results " + invalidateSuccess);
-
-			// update access mode for this client
-			if (!invalidateSuccess) {
-				if (FileServer.DEBUG_MODE) System.out.println("Invalidation failure - forcing to NOT_SHARED");
+			// an owner has uploaded its copy rather than cached it - it is no longer registered
+			ServerFileState mode = fileClient.getFileAccessMode();
+			if (mode == ServerFileState.WRITE_SHARED || mode == ServerFileState.OWNERSHIP_CHANGE) {
+				if (FileServer.DEBUG_MODE) System.out.println("Releasing owner " + fileClient.getClientIPName() + " - forcing to NOT_SHARED");
 				fileClient.setFileAccessMode(ServerFileState.NOT_SHARED);
-				operationSuccess = false;	// this operation failed
+				continue;
+			}
+			
+			// readers of other parts of the file still hold valid copies
+			if (!fileClient.holdsAnyOf(offset, length)) continue;
+			
+			Invalidation invalidation;
+			if (pushed == null || !fileClient.holdsWholeFile()) {
+				
+				// ... invalidate each reader (measuring re-reads if this is an update)
+				invalidation = new Invalidation(filename, version);
+				if (previousVersion > 0) updatePolicy.invalidated(fileClient.getClientIPName());
+				
+			} else {
+				
+				// ... or push the new version - readers holding the previous one only need what changed
+				boolean holdsPrevious = fileClient.getHeldVersion() == previousVersion;
+				if (holdsPrevious && delta == null) delta = getDelta(previousVersion, pushed.getVersion());
+				
+				if (holdsPrevious && delta != null && delta.getTransferSize() < pushed.getContents().length()) {
+					invalidation = Invalidation.withDelta(filename, delta);
+				} else {
+					invalidation = Invalidation.withContents(filename, pushed.getContents());
+				}
+				
 			}
 			
+			InvalidationBatcher.getShared().invalidate(this, fileClient, invalidation);
+			
 		}
 
 		trimClients();
 		
-		if (FileServer.DEBUG_MODE) System.out.println("Overall success of all client invalidations: " + operationSuccess);
-
-		return operationSuccess;
+	}
+	
+	/**
+	 * A batched invalidation of a client's copy failed, so the client is no longer
+	 * sharing this file
+	 * @param client The registration whose invalidation failed
+	 */
+	public void invalidationFailed(ConnectedClient client) {
+		
+		if (FileServer.DEBUG_MODE) System.out.println("Invalidation of " + filename + " failed for " + client.getClientIPName() + " - forcing to NOT_SHARED");
+		
+		// the client may have registered again since
+		if (clients.get(client.getClientIPName()) != client) return;
+		
+		client.setFileAccessMode(ServerFileState.NOT_SHARED);
+		trimClients();
 		
 	}
 	
@@ -201,6 +708,7 @@ public class HostedFile {
 		// set access mode
 		if (FileServer.DEBUG_MODE) System.out.println("Setting client access mode to " + clientFileState);
 		client.setFileAccessMode(clientFileState);
+		client.setHeldRange(0, Long.MAX_VALUE);
 
 	}
 	
@@ -208,64 +716,140 @@ public class HostedFile {
 	 * A client would like to be registered as "owner" of the file
 	 * @param clientIPName The hostname or IP address of the owning client
 	 * @param port The port number the client is accepting requests on
-	 * @return Operation success (TRUE) or failure (FALSE)
+	 * @return Operation success (TRUE) or failure (FALSE, also if the file was evicted)
 	 */
 	public boolean registerOwner(String clientIPName, int port) {
-
-		if (FileServer.DEBUG_MODE) System.out.println("Setting client " + clientIPName + " at port " + port + " as owner of " + filename);
-
-		// is there an owner already?
-		if (FileServer.DEBUG_MODE) System.out.println("Finding file owner...");
-		ConnectedClient owner = getOwner();
-		if (owner == null) {
+		
+		if (!beginRegistration()) return false;
+		
+		ServerEvents.OwnershipWait event = new ServerEvents.OwnershipWait();
+		event.begin();
+		
+		boolean success = false;
+		try {
 			
-			if (FileServer.DEBUG_MODE) System.out.println("No other client owns this file");
-
-			// this client is now the owner
-			if (FileServer.DEBUG_MODE) System.out.println("Setting file state to WRITE_SHARED");
-			fileState = ServerFileState.WRITE_SHARED;
+			success = acquireOwnership(clientIPName, port, event);
+			return success;
 			
-			// register this client, write mode
-			registerClient(clientIPName, port, ServerFileState.WRITE_SHARED);
+		} finally {
 			
-			// success!
-			if (FileServer.DEBUG_MODE) System.out.println(clientIPName + " is registered as owner of " + filename);
-			return true;
+			endRegistration();
+			
+			event.end();
+			if (event.shouldCommit()) {
+				event.filename = filename;
+				event.client = clientIPName;
+				event.bytes = getStat().getSize();
+				event.success = success;
+				event.commit();
+			}
 			
 		}
 		
-		// this client is not the owner
-		if (FileServer.DEBUG_MODE) System.out.println("Current owner is: " + owner.getClientIPName());
-		if (FileServer.DEBUG_MODE) System.out.println("Setting file state to OWNERSHIP_CHANGE");
-		fileState = ServerFileState.OWNERSHIP_CHANGE;
-		
-		// tell the owner to write back its' changes
-		boolean writebackSuccess = owner.writeback();
-		if (!writebackSuccess) return false;	// operation failed, file status indeterminate (retain)
+	}
+	
+	/**
+	 * Helper method that makes a client the owner of the file, first waiting for the
+	 * current owner to write back its changes. Finding the owner and recording a new one
+	 * happen together under ownershipMonitor, so two clients cannot both become owner.
+	 * @param clientIPName The hostname or IP address of the owning client
+	 * @param port The port number the client is accepting requests on
+	 * @param event Records the owner that was waited for
+	 * @return Operation success (TRUE) or failure (FALSE)
+	 */
+	private boolean acquireOwnership(String clientIPName, int port, ServerEvents.OwnershipWait event) {
+
+		if (FileServer.DEBUG_MODE) System.out.println("Setting client " + clientIPName + " at port " + port + " as owner of " + filename);
+
+		// is there an owner already?
+		if (FileServer.DEBUG_MODE) System.out.println("Finding file owner...");
+		ConnectedClient owner;
+		synchronized (ownershipMonitor) {
+			
+			owner = getOwner();
+			if (owner == null) {
+				
+				if (FileServer.DEBUG_MODE) System.out.println("No other client owns this file");
+				
+				// this client is now the owner
+				if (FileServer.DEBUG_MODE) System.out.println("Setting file state to WRITE_SHARED");
+				fileState = ServerFileState.WRITE_SHARED;
+				
+				// register this client, write mode, before waiting so a concurrent request finds it
+				registerClient(clientIPName, port, ServerFileState.WRITE_SHARED);
+				
+			}
+			
+		}
 		
-		// wait for file state to switch back
-		Date startWait = new Date();
-		while (fileState != ServerFileState.NOT_SHARED) {
+		if (owner == null) {
 			
-			// don't wait forever for a client to upload changes
-			Date now = new Date();
-			if ((now.getTime() - startWait.getTime()) > MAX_UPLOAD_WAIT_MILLISECONDS) break;
+			// ... the client downloads once the ranges other clients are writing have been released, and appends written
+			awaitLeases(clientIPName);
+			awaitAppends();
 			
-			// wait a little bit to prevent hogging CPU
-			try {
-				Thread.sleep(500);
-			} catch (InterruptedException e) {
-				break;
-			}
+			// success!
+			if (FileServer.DEBUG_MODE) System.out.println(clientIPName + " is registered as owner of " + filename);
+			return true;
 			
 		}
 		
-		// take ownership now
-		if (FileServer.DEBUG_MODE) System.out.println("Setting file state to WRITE_SHARED");
-		fileState = ServerFileState.WRITE_SHARED;
+		// this client is not the owner
+		if (FileServer.DEBUG_MODE) System.out.println("Current owner is: " + owner.getClientIPName());
+		if (FileServer.DEBUG_MODE) System.out.println("Setting file state to OWNERSHIP_CHANGE");
+		fileState = ServerFileState.OWNERSHIP_CHANGE;
+		
+		// tell the owner to write back its' changes
+		event.previousOwner = owner.getClientIPName();
+		ServerEvents.Callback callback = new ServerEvents.Callback();
+		callback.begin();
+		TraceTimer timer = new TraceTimer();
+		boolean writebackSuccess = owner.writeback();
+		timer.lap();
+		callback.end();
+		TraceRecorder.record(TraceEvent.Type.WRITEBACK, owner.getClientIPName(), filename, null, 0, writebackSuccess, timer);
+		if (callback.shouldCommit()) {
+			callback.type = "writeback";
+			callback.filename = filename;
+			callback.client = owner.getClientIPName();
+			callback.success = writebackSuccess;
+			callback.commit();
+		}
+		if (!writebackSuccess && owner.isResponsive()) return false;	// operation failed, file status indeterminate (retain)
 		
-		// register this client, write mode
-		registerClient(clientIPName, port, ServerFileState.WRITE_SHARED);
+		// an owner that cannot be reached will never upload - take ownership from it now
+		if (!writebackSuccess) {
+			if (FileServer.DEBUG_MODE) System.out.println("Owner " + owner.getClientIPName() + " is unreachable, revoking its ownership");
+			revokeClient(owner.getClientIPName());
+		}
+		
+		// wait for file state to switch back - the upload wakes this client as soon as the
+		// new version is committed in memory, before it is written to disk
+		long deadline = System.currentTimeMillis() + MAX_UPLOAD_WAIT_MILLISECONDS;
+		synchronized (ownershipMonitor) {
+			
+			while (fileState == ServerFileState.OWNERSHIP_CHANGE) {
+				
+				// don't wait forever for a client to upload changes
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) break;
+				
+				try {
+					ownershipMonitor.wait(remaining);
+				} catch (InterruptedException e) {
+					break;
+				}
+				
+			}
+			
+			// take ownership now
+			if (FileServer.DEBUG_MODE) System.out.println("Setting file state to WRITE_SHARED");
+			fileState = ServerFileState.WRITE_SHARED;
+			
+			// register this client, write mode
+			registerClient(clientIPName, port, ServerFileState.WRITE_SHARED);
+			
+		}
 		
 		// success!
 		return true;
@@ -276,55 +860,795 @@ public class HostedFile {
 	 * A client would like to be registered as a reader only
 	 * @param clientIPName The hostname or IP address of the client
 	 * @param port The port number the client is accepting requests on
+	 * @return TRUE if the client was registered, FALSE if the file was evicted
 	 */
-	public void registerReader(String clientIPName, int port) {
+	public boolean registerReader(String clientIPName, int port) {
 		
 		if (FileServer.DEBUG_MODE) System.out.println("Registering client " + clientIPName + " at port " + port + " as a reader");
+		
+		if (!beginRegistration()) return false;
 
-		// update file state if this is the first client to register
-		if (fileState == ServerFileState.NOT_SHARED) {
+		try {
 			
-			if (FileServer.DEBUG_MODE) System.out.println("Changing file state from NOT_SHARED to READ_SHARED");
-
-			fileState = ServerFileState.READ_SHARED;
-
+			// update file state if this is the first client to register
+			if (fileState == ServerFileState.NOT_SHARED) {
+				
+				if (FileServer.DEBUG_MODE) System.out.println("Changing file state from NOT_SHARED to READ_SHARED");
+	
+				fileState = ServerFileState.READ_SHARED;
+	
+			}
+			
+			// register this client, read-only
+			registerClient(clientIPName, port, ServerFileState.READ_SHARED);
+			updatePolicy.downloaded(clientIPName);
+			
+			return true;
+			
+		} finally {
+			endRegistration();
 		}
 		
-		// register this client, read-only
-		registerClient(clientIPName, port, ServerFileState.READ_SHARED);
+	}
+	
+	/**
+	 * A client would like to be registered as a reader of part of the file only. It is
+	 * invalidated only by changes to that part.
+	 * @param clientIPName The hostname or IP address of the client
+	 * @param port The port number the client is accepting requests on
+	 * @param offset The position of the first byte the client holds
+	 * @param length The number of bytes the client holds
+	 * @return TRUE if the client was registered, FALSE if the file was evicted
+	 */
+	public boolean registerRangeReader(String clientIPName, int port, long offset, long length) {
+		
+		if (!registerReader(clientIPName, port)) return false;
+		
+		ConnectedClient client = clients.get(clientIPName);
+		if (client != null) client.setHeldRange(offset, length);
+		
+		return true;
 		
 	}
 	
 	/**
-	 * Update the file, using the RMI representation from a client
+	 * Give a client a write lease on a byte range of the file, or renew its lease. The
+	 * range may then be written by the client (see writeRange) while other clients write
+	 * other ranges. A range overlapping another client's lease cannot be locked, and no
+	 * range can be locked while the whole file is owned.
+	 * @param clientIPName The hostname or IP address of the client
+	 * @param offset The position of the first byte of the range
+	 * @param length The number of bytes in the range
+	 * @return TRUE if the client holds a lease on the range, FALSE if it conflicts
+	 */
+	public boolean lockRange(String clientIPName, long offset, long length) {
+		
+		if (offset < 0 || length <= 0) return false;
+		
+		synchronized (leases) {
+			
+			if (fileState == ServerFileState.WRITE_SHARED || fileState == ServerFileState.OWNERSHIP_CHANGE) {
+				if (FileServer.DEBUG_MODE) System.out.println("Cannot lock a range of " + filename + " while it is owned");
+				return false;
+			}
+			
+			RangeLease renewed = null;
+			for (RangeLease lease : liveLeases()) {
+				
+				if (!lease.overlaps(offset, length)) continue;
+				
+				if (!lease.isHeldBy(clientIPName)) {
+					if (FileServer.DEBUG_MODE) System.out.println("Range at " + offset + " of " + filename + " is locked by " + lease.getClientIPName());
+					return false;
+				}
+				
+				if (lease.getOffset() == offset && lease.getLength() == length) renewed = lease;
+				
+			}
+			
+			if (renewed != null) {
+				renewed.renew();
+			} else {
+				leases.add(new RangeLease(clientIPName, offset, length));
+			}
+			
+		}
+		
+		if (FileServer.DEBUG_MODE) System.out.println(clientIPName + " locked " + length + " bytes at " + offset + " of " + filename);
+		return true;
+		
+	}
+	
+	/**
+	 * Release a client's write leases overlapping a byte range of the file
+	 * @param clientIPName The hostname or IP address of the client
+	 * @param offset The position of the first byte of the range
+	 * @param length The number of bytes in the range
+	 * @return TRUE if any lease was released
+	 */
+	public boolean unlockRange(String clientIPName, long offset, long length) {
+		
+		boolean released = false;
+		
+		synchronized (leases) {
+			
+			Iterator<RangeLease> held = leases.iterator();
+			while (held.hasNext()) {
+				RangeLease lease = held.next();
+				if (lease.isHeldBy(clientIPName) && lease.overlaps(offset, length)) {
+					held.remove();
+					released = true;
+				}
+			}
+			
+			// an owner waiting for the ranges to be released can proceed
+			leases.notifyAll();
+			
+		}
+		
+		return released;
+		
+	}
+	
+	/**
+	 * Check whether a client may write a byte range of the file: it owns the whole
+	 * file, or holds a lease covering the range (which is renewed)
+	 * @param clientIPName The hostname or IP address of the client
+	 * @param offset The position of the first byte to write
+	 * @param length The number of bytes to write
+	 * @return TRUE if the client may write the range
+	 */
+	public boolean mayWrite(String clientIPName, long offset, long length) {
+		
+		ConnectedClient owner = getOwner();
+		if (owner != null) return clientIPName.equalsIgnoreCase(owner.getClientIPName());
+		
+		synchronized (leases) {
+			
+			for (RangeLease lease : liveLeases()) {
+				if (lease.isHeldBy(clientIPName) && lease.covers(offset, length)) {
+					lease.renew();
+					return true;
+				}
+			}
+			
+		}
+		
+		return false;
+		
+	}
+	
+	/**
+	 * Helper method that drops expired leases (the caller holds the lease list's lock)
+	 * @return The leases that are still valid
+	 */
+	private List<RangeLease> liveLeases() {
+		
+		Iterator<RangeLease> held = leases.iterator();
+		while (held.hasNext()) {
+			if (held.next().isExpired()) held.remove();
+		}
+		
+		return leases;
+		
+	}
+	
+	/**
+	 * Helper method that checks whether any client other than one holds a lease
+	 * @param exceptClientIPName The client whose leases are ignored, or null
+	 * @return TRUE if another client holds a lease
+	 */
+	private boolean hasLeases(String exceptClientIPName) {
+		
+		synchronized (leases) {
+			
+			for (RangeLease lease : liveLeases()) {
+				if (exceptClientIPName == null || !lease.isHeldBy(exceptClientIPName)) return true;
+			}
+			
+		}
+		
+		return false;
+		
+	}
+	
+	/**
+	 * Helper method that waits until no other client holds a lease, so a new owner does
+	 * not download the file while ranges of it are being written. No new leases are
+	 * granted while the file is owned, so this waits at most one lease period.
+	 * @param clientIPName The new owner, whose own leases end now
+	 */
+	private void awaitLeases(String clientIPName) {
+		
+		unlockRange(clientIPName, 0, Long.MAX_VALUE);
+		
+		synchronized (leases) {
+			
+			while (hasLeases(clientIPName)) {
+				
+				if (FileServer.DEBUG_MODE) System.out.println("Waiting for range leases on " + filename + " to be released");
+				try {
+					leases.wait(1000);
+				} catch (InterruptedException e) {
+					return;
+				}
+				
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * Helper method that starts a client registration, keeping the file from being evicted until it ends
+	 * @return TRUE if the registration may proceed, FALSE if the file was evicted
+	 */
+	private synchronized boolean beginRegistration() {
+		
+		if (retired) return false;
+		registering++;
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Helper method that ends a client registration
+	 */
+	private synchronized void endRegistration() {
+		registering--;
+	}
+	
+	/**
+	 * Update the file, using the RMI representation from a client. Contents identical
+	 * to the committed version are not written, and readers are not invalidated.
+	 * 
+	 * When another client is waiting to take ownership, the new version is committed in
+	 * memory and handed to it before being written to disk, so it only waits for the
+	 * upload itself. Range reads and later writes still wait for the disk write. If that
+	 * write fails the upload fails: the previous contents are committed again, as a newer
+	 * version, before the disk lock is released, so readers drop the version handed off
+	 * and range reads are never labelled with it.
 	 * @param fileContents The new version of the file
+	 * @return TRUE if a new version was committed, FALSE if the contents were unchanged (or could not be written)
 	 */
-	public void setFileContents(FileContents fileContents) {
+	public boolean setFileContents(FileContents fileContents) {
 	
+		// an upload of the committed contents (an editor session that saved nothing)
+		// only releases ownership - readers' copies are still valid
+		FileSnapshot committed = snapshot.get();
+		if (committed != null && committed.getDigest().matches(fileContents.get())) {
+			
+			if (FileServer.DEBUG_MODE) System.out.println("Upload of " + filename + " is identical to version " + committed.getVersion() + ", releasing ownership only");
+			
+			ConnectedClient owner = getOwner();
+			if (owner != null) owner.setFileAccessMode(ServerFileState.NOT_SHARED);
+			trimClients();
+			
+			releaseOwnership();
+			return false;
+			
+		}
+		
+		// a client is waiting for the owner's upload
+		boolean handoff = (fileState == ServerFileState.OWNERSHIP_CHANGE);
+		
+		ConnectedClient owner = getOwner();
+		String ownerIPName = (owner == null) ? null : owner.getClientIPName();
+		
 		try {
 			
-			if (FileServer.DEBUG_MODE) System.out.println("Attempting to overwrite " + filename);
+			if (FileServer.DEBUG_MODE) System.out.println("Attempting to overwrite " + filename + (handoff ? " (handing off to the next owner first)" : ""));
 
-			// write back changes to file on filesystem
-			Files.write(file, fileContents.get(), new OpenOption[]{});
+			// write back changes to file on filesystem, and publish the new contents as the
+			// next committed version (range readers see both change together)
+			ServerEvents.DiskWrite event = new ServerEvents.DiskWrite();
+			diskLock.writeLock().lock();
+			try {
+				
+				if (handoff) commit(fileContents);
+				
+				event.begin();
+				try {
+					Files.write(file, fileContents.get(), new OpenOption[]{});
+				} catch (IOException e) {
+					if (handoff) revert(committed);
+					throw e;
+				}
+				event.end();
 
-			// set local file contents
-			this.fileContents = fileContents;
+				if (!handoff) {
+					FileSnapshot previous = snapshot.get();
+					snapshot.set(history.add(fileContents.get(), previous == null ? 1 : previous.getVersion() + 1));
+				}
+				lastModified = Files.getLastModifiedTime(file).toMillis();
+				
+			} finally {
+				diskLock.writeLock().unlock();
+			}
 			
-			// all clients must invalidate their cached copies
-			invalidateClients();
+			if (event.shouldCommit()) {
+				event.filename = filename;
+				event.client = ownerIPName;
+				event.operation = "upload";
+				event.bytes = fileContents.length();
+				event.commit();
+			}
+			
+			if (!handoff) {
+				
+				// all clients must invalidate (or replace) their cached copies
+				updateClients(null, getVersion() - 1);
+				
+				// this file is no longer owned (readers pushed the new version still share it)
+				if (FileServer.DEBUG_MODE) System.out.println("Releasing ownership of " + filename);
+				releaseOwnership();
+				
+			}
 			
-			// this file is not shared any more
-			if (FileServer.DEBUG_MODE) System.out.println("Setting file state to NOT_SHARED");
-			fileState = ServerFileState.NOT_SHARED;
+			return true;
 
 		} catch (IOException e) {
 
 			// Not sure what else to do with this
 			if (FileServer.DEBUG_MODE) System.out.println("Caught exception trying to update file: " + e.getMessage());
+			return false;
+		
+		}
+	
+	}
+	
+	/**
+	 * Helper method that commits a new version in memory and hands it to the client
+	 * waiting to take ownership, ahead of the disk write (the caller holds the disk
+	 * write lock, so range reads still wait for it)
+	 * @param fileContents The new version of the file
+	 */
+	private void commit(FileContents fileContents) {
+		
+		FileSnapshot previous = snapshot.get();
+		snapshot.set(history.add(fileContents.get(), previous == null ? 1 : previous.getVersion() + 1));
+		
+		// readers are called back in the background - this also releases the previous owner
+		updateClients(null, getVersion() - 1);
+		
+		if (FileServer.DEBUG_MODE) System.out.println("Releasing ownership of " + filename + ", waking the next owner");
+		releaseOwnership();
+		
+	}
+	
+	/**
+	 * Helper method that withdraws a version handed off by commit whose disk write failed,
+	 * committing the contents before it again as the next version (the caller holds the
+	 * disk write lock, so no range read is labelled with the withdrawn version)
+	 * @param previous The version committed before the handoff
+	 */
+	private void revert(FileSnapshot previous) {
+		
+		if (previous == null) return;
+		
+		if (FileServer.DEBUG_MODE) System.out.println("Reverting " + filename + " to the contents of version " + previous.getVersion());
+		
+		synchronized (ownershipMonitor) {
+			
+			snapshot.set(history.add(previous.getContents().get(), getVersion() + 1));
+			
+			// readers drop the withdrawn version; a next owner that has already taken the
+			// file keeps it, as its upload replaces the contents anyway
+			ConnectedClient owner = getOwner();
+			invalidateClients(owner == null ? null : owner.getClientIPName());
+			
+		}
+		
+	}
+	
+	/**
+	 * Helper method that marks the file as no longer owned, waking a client waiting in
+	 * registerOwner. Readers still registered (those pushed the new version) keep the
+	 * file READ_SHARED.
+	 */
+	private void releaseOwnership() {
+		
+		synchronized (ownershipMonitor) {
+			fileState = sharedState();
+			ownershipMonitor.notifyAll();
+		}
+		
+	}
+	
+	/**
+	 * Helper method that finds the state of a file no client owns
+	 * @return READ_SHARED if any reader is registered, NOT_SHARED otherwise
+	 */
+	private ServerFileState sharedState() {
+		
+		for (ConnectedClient client : clients.values()) {
+			if (client.getFileAccessMode() == ServerFileState.READ_SHARED) return ServerFileState.READ_SHARED;
+		}
+		
+		return ServerFileState.NOT_SHARED;
+		
+	}
+
+	/**
+	 * Read part of the file from the filesystem, using positional I/O. The bytes
+	 * returned always belong to the version they are labelled with.
+	 * @param offset The position of the first byte to read
+	 * @param length The number of bytes to read
+	 * @return The bytes read (fewer than requested at the end of the file), labelled with the committed version
+	 * @throws IOException If the file could not be read
+	 */
+	public FileContents readRange(long offset, int length) throws IOException {
+		
+		diskLock.readLock().lock();
+		try {
+			return readRange(file, offset, length, getVersion());
+		} finally {
+			diskLock.readLock().unlock();
+		}
 		
+	}
+	
+	/**
+	 * Read part of a file from the filesystem, using positional I/O
+	 * @param path The file to read
+	 * @param offset The position of the first byte to read
+	 * @param length The number of bytes to read
+	 * @param version The version to label the bytes with
+	 * @return The bytes read (fewer than requested at the end of the file)
+	 * @throws IOException If the file could not be read
+	 */
+	public static FileContents readRange(Path path, long offset, int length, long version) throws IOException {
+		
+		if (offset < 0 || length < 0) throw new IOException("Invalid range at " + offset + " of length " + length);
+		
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			
+			int available = (int) Math.max(0, Math.min(length, channel.size() - offset));
+			ByteBuffer range = ByteBuffer.allocate(available);
+			
+			while (range.hasRemaining()) {
+				if (channel.read(range, offset + range.position()) < 0) break;
+			}
+			
+			return new FileContents(range.array(), version);
+			
 		}
+		
+	}
 	
+	/**
+	 * Overwrite part of the file in place, on behalf of its owner or of a client holding a
+	 * lease on the range (see mayWrite). A new version is committed and every other
+	 * client's copy of the changed bytes is invalidated, but the writer keeps ownership
+	 * (or its lease) and may write further ranges.
+	 * @param clientIPName The hostname/IP address of the client making the change
+	 * @param offset The position of the first byte to overwrite (at most the file size)
+	 * @param data The bytes to write, extending the file if they run past its end
+	 * @return Operation success (TRUE) or failure (FALSE)
+	 */
+	public boolean writeRange(String clientIPName, long offset, byte[] data) {
+		
+		if (FileServer.DEBUG_MODE) System.out.println("Attempting to write " + data.length + " bytes at " + offset + " of " + filename);
+
+		FileSnapshot committed;
+		ServerEvents.DiskWrite event = new ServerEvents.DiskWrite();
+		diskLock.writeLock().lock();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			
+			FileSnapshot previous = snapshot.get();
+			int previousLength = previous.getContents().length();
+			if (offset < 0 || offset > previousLength) {
+				if (FileServer.DEBUG_MODE) System.out.println("Range starts outside the file (size " + previousLength + ")");
+				return false;
+			}
+			
+			// apply the change on disk
+			event.begin();
+			ByteBuffer range = ByteBuffer.wrap(data);
+			while (range.hasRemaining()) {
+				channel.write(range, offset + range.position());
+			}
+			
+			// ... and to the cached contents; only the blocks around the range are chunked again
+			committed = commitRange(previous, (int) offset, data);
+			snapshot.set(committed);
+			channel.force(false);
+			event.end();
+			lastModified = Files.getLastModifiedTime(file).toMillis();
+			
+		} catch (IOException e) {
+			
+			if (FileServer.DEBUG_MODE) System.out.println("Caught exception trying to update file: " + e.getMessage());
+			return false;
+			
+		} finally {
+			diskLock.writeLock().unlock();
+		}
+		
+		if (event.shouldCommit()) {
+			event.filename = filename;
+			event.client = clientIPName;
+			event.operation = "range";
+			event.bytes = data.length;
+			event.commit();
+		}
+		
+		// the writer's copy already includes the change, and only readers of the changed bytes are affected
+		setHeldVersion(clientIPName, committed.getVersion());
+		updateClients(clientIPName, committed.getVersion() - 1, offset, data.length);
+		
+		return true;
+		
+	}
+
+	/**
+	 * Append bytes to the end of the file, without the client owning it. Appends are
+	 * atomic: each one is written whole, and concurrent appends never interleave. Appends
+	 * arriving while a batch is being written are written together in the next batch, as
+	 * one disk write and one new version; readers are then told about the new version
+	 * once per batch (and readers pushed updates receive only the appended bytes, see
+	 * getDelta). A file that is owned for writing, or whose end is leased, cannot be appended to.
+	 * @param clientIPName The hostname/IP address of the client appending
+	 * @param data The bytes to append
+	 * @return The position the bytes were written at, or -1 if the append failed
+	 */
+	public long append(String clientIPName, byte[] data) {
+		
+		PendingAppend pending = new PendingAppend(data);
+		List<PendingAppend> batch;
+		
+		synchronized (appendQueue) {
+			
+			appendQueue.add(pending);
+			
+			// wait while another client's batch is written - it may include this append
+			while (appending && !pending.done) {
+				try {
+					appendQueue.wait();
+				} catch (InterruptedException e) {
+					if (appendQueue.remove(pending)) return -1;
+				}
+			}
+			
+			if (pending.done) return pending.offset;
+			
+			// ... otherwise write everything queued so far as the next batch
+			appending = true;
+			batch = new ArrayList<PendingAppend>(appendQueue);
+			appendQueue.clear();
+			
+		}
+		
+		try {
+			
+			writeAppends(clientIPName, batch);
+			
+		} finally {
+			
+			synchronized (appendQueue) {
+				for (PendingAppend written : batch) written.done = true;
+				appending = false;
+				appendQueue.notifyAll();
+			}
+			
+		}
+		
+		if (FileServer.DEBUG_MODE) System.out.println(clientIPName + " appended " + data.length + " bytes to " + filename + " at " + pending.offset + " (batch of " + batch.size() + ")");
+		return pending.offset;
+		
+	}
+	
+	/**
+	 * Helper method that writes a batch of appends to the end of the file as one write,
+	 * and commits them as one version. On success the position of each append is set.
+	 * @param clientIPName The client whose append writes the batch
+	 * @param batch The appends, in the order they are written
+	 */
+	private void writeAppends(String clientIPName, List<PendingAppend> batch) {
+		
+		FileSnapshot committed;
+		long previousLength;
+		int appended = 0;
+		ServerEvents.DiskWrite event = new ServerEvents.DiskWrite();
+		
+		diskLock.writeLock().lock();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			
+			// an evicted file is looked up again by the server
+			if (retired) return;
+			
+			// an owner's upload, or a lease holder's write, would overwrite the appended bytes
+			FileSnapshot previous = snapshot.get();
+			previousLength = previous.getContents().length();
+			if (fileState == ServerFileState.WRITE_SHARED || fileState == ServerFileState.OWNERSHIP_CHANGE) {
+				if (FileServer.DEBUG_MODE) System.out.println("Cannot append to " + filename + " while it is owned");
+				return;
+			}
+			if (endIsLeased(previousLength)) {
+				if (FileServer.DEBUG_MODE) System.out.println("Cannot append to " + filename + " while its end is leased");
+				return;
+			}
+			
+			ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+			for (int i = 0; i < batch.size(); i++) {
+				buffers[i] = ByteBuffer.wrap(batch.get(i).data);
+				appended += batch.get(i).data.length;
+			}
+			
+			// one write and one sync for the whole batch
+			event.begin();
+			channel.position(previousLength);
+			long remaining = appended;
+			while (remaining > 0) remaining -= channel.write(buffers);
+			channel.force(false);
+			event.end();
+			
+			// ... and one new version, built from the previous one without copying it
+			byte[] added = new byte[appended];
+			int position = 0;
+			for (PendingAppend pending : batch) {
+				System.arraycopy(pending.data, 0, added, position, pending.data.length);
+				position += pending.data.length;
+			}
+			committed = commitAppend(previous, added);
+			snapshot.set(committed);
+			lastModified = Files.getLastModifiedTime(file).toMillis();
+			
+		} catch (IOException e) {
+			
+			if (FileServer.DEBUG_MODE) System.out.println("Caught exception trying to append to file: " + e.getMessage());
+			return;
+			
+		} finally {
+			diskLock.writeLock().unlock();
+		}
+		
+		long offset = previousLength;
+		for (PendingAppend pending : batch) {
+			pending.offset = offset;
+			offset += pending.data.length;
+		}
+		
+		if (event.shouldCommit()) {
+			event.filename = filename;
+			event.client = clientIPName;
+			event.operation = "append";
+			event.bytes = appended;
+			event.commit();
+		}
+		
+		// every reader's copy lacks some of the appended bytes (the appenders' copies too)
+		updateClients(null, committed.getVersion() - 1, previousLength, appended);
+		
+	}
+	
+	/**
+	 * Helper method that records a range written over the current version as a new version.
+	 * Only the blocks around the range are chunked again, unless the current version is no
+	 * longer the newest one retained; the digest is computed if an upload needs it.
+	 * @param previous The current version
+	 * @param offset The position of the first byte written
+	 * @param data The bytes written
+	 * @return The committed version
+	 */
+	private FileSnapshot commitRange(FileSnapshot previous, int offset, byte[] data) {
+		
+		FileSnapshot committed = history.update(previous, offset, data);
+		if (committed != null) return committed;
+		
+		// the history was cleared - store the whole file again
+		byte[] current = previous.getContents().get();
+		byte[] updated = Arrays.copyOf(current, Math.max(current.length, offset + data.length));
+		System.arraycopy(data, 0, updated, offset, data.length);
+		
+		return history.add(updated, previous.getVersion() + 1);
+		
+	}
+	
+	/**
+	 * Helper method that records bytes appended to the current version as a new version.
+	 * Only the last block is chunked again, and the digest is extended rather than
+	 * recomputed, unless the current version is no longer the newest one retained.
+	 * @param previous The current version
+	 * @param added The bytes appended to it
+	 * @return The committed version
+	 */
+	private FileSnapshot commitAppend(FileSnapshot previous, byte[] added) {
+		
+		FileSnapshot committed = history.append(previous, added);
+		if (committed != null) return committed;
+		
+		// the history was cleared - store the whole file again
+		byte[] current = previous.getContents().get();
+		byte[] updated = Arrays.copyOf(current, current.length + added.length);
+		System.arraycopy(added, 0, updated, current.length, added.length);
+		
+		return history.add(updated, previous.getVersion() + 1);
+		
+	}
+	
+	/**
+	 * Helper method that checks whether any client holds a lease reaching the end of the file
+	 * @param length The current length of the file
+	 * @return TRUE if bytes appended now would fall in a leased range
+	 */
+	private boolean endIsLeased(long length) {
+		
+		synchronized (leases) {
+			
+			for (RangeLease lease : liveLeases()) {
+				if (lease.overlaps(length, Long.MAX_VALUE - length)) return true;
+			}
+			
+		}
+		
+		return false;
+		
+	}
+	
+	/**
+	 * Helper method that checks whether appends are being written or waiting to be
+	 * @return TRUE if an append is in progress
+	 */
+	private boolean hasAppends() {
+		
+		synchronized (appendQueue) {
+			return appending || !appendQueue.isEmpty();
+		}
+		
+	}
+	
+	/**
+	 * Helper method that waits until the batch of appends being written is complete, so a
+	 * new owner does not download the file without them. Appends starting later find the
+	 * file owned and fail.
+	 */
+	private void awaitAppends() {
+		
+		synchronized (appendQueue) {
+			
+			while (appending) {
+				try {
+					appendQueue.wait();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			
+		}
+		
+	}
+
+	/**
+	 * Apply a version committed on the primary server to this replica's copy. The file
+	 * is not written to the filesystem (the primary has done that), but readers
+	 * registered with this replica are invalidated.
+	 * @param fileContents The committed contents, including their version
+	 * @return TRUE if the version was applied, FALSE if this copy is already as new
+	 */
+	public boolean applyReplica(FileContents fileContents) {
+		
+		// versions may arrive late or twice, never go backwards
+		if (fileContents.getVersion() <= getVersion()) {
+			if (FileServer.DEBUG_MODE) System.out.println("Ignoring version " + fileContents.getVersion() + " of " + filename + ", already at version " + getVersion());
+			return false;
+		}
+		
+		if (FileServer.DEBUG_MODE) System.out.println("Applying version " + fileContents.getVersion() + " of " + filename + " from primary");
+		long previousVersion = getVersion();
+		snapshot.set(history.add(fileContents.get(), fileContents.getVersion()));
+		lastModified = System.currentTimeMillis();
+		
+		// relay the invalidation (or the new version) to readers registered here
+		updateClients(null, previousVersion);
+		
+		// readers pushed the new version are still sharing the file
+		fileState = sharedState();
+		if (FileServer.DEBUG_MODE) System.out.println("Setting file state to " + fileState);
+		
+		return true;
+		
 	}
 
 	/**
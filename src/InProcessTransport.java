@@ -0,0 +1,46 @@
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * InProcessTransport connects servers and clients running in the same process. A
+ * lookup returns the bound object itself, so calls are plain method calls: there is
+ * no socket, no serialization, and file contents are shared by reference rather than
+ * copied. Callers must not change the contents they are given or have sent.
+ *
+ * Objects are found by the exact host, port and name they were bound with, so
+ * simulated clients are told apart by the hostname/IP address they give the server.
+ *
+ */
+public class InProcessTransport extends Transport {
+
+	// the bound servers and clients, by "host:port/name"
+	private final Map<String, Remote> bound = new ConcurrentHashMap<String, Remote>();
+
+	@Override
+	public void bind(String host, int port, String name, Remote object) {
+
+		if (FileServer.DEBUG_MODE) System.out.println("Binding " + name + " at " + host + ":" + port + " in process");
+		bound.put(host + ":" + port + "/" + name, object);
+
+	}
+
+	@Override
+	public void unbind(String host, int port, String name) throws NotBoundException {
+
+		if (bound.remove(host + ":" + port + "/" + name) == null) throw new NotBoundException(name + " at " + host + ":" + port);
+
+	}
+
+	@Override
+	public Remote lookup(String address, String name) throws NotBoundException {
+
+		Remote object = bound.get(address + "/" + name);
+		if (object == null) throw new NotBoundException(name + " at " + address);
+
+		return object;
+
+	}
+
+}
@@ -0,0 +1,112 @@
+import java.io.Serializable;
+
+/**
+ * Invalidation tells a client that its cached copy of a file is older than the
+ * version the server has committed. For small, frequently read files it may carry
+ * the new version itself (the full contents, or a delta from the version the client
+ * holds), so the client can update its copy instead of downloading it again (see
+ * UpdatePolicy). Invalidations are sent to a client in batches (see
+ * InvalidationBatcher), so they are passed via RMI calls and must be serializable.
+ *
+ */
+@SuppressWarnings("serial")
+public class Invalidation implements Serializable {
+
+	// the filename, as requested by clients
+	private String filename;
+
+	// the version committed by the server
+	private long version;
+
+	// the committed contents pushed to the client, or null
+	private FileContents contents = null;
+
+	// the change from the client's version to the committed one, or null
+	private FileDelta delta = null;
+
+	/**
+	 * Construct an invalidation that carries the committed contents
+	 * @param filename The filename, as requested by clients
+	 * @param contents The committed contents, including their version
+	 * @return The invalidation
+	 */
+	public static Invalidation withContents(String filename, FileContents contents) {
+
+		Invalidation update = new Invalidation(filename, contents.getVersion());
+		update.contents = contents;
+
+		return update;
+
+	}
+
+	/**
+	 * Construct an invalidation that carries the change to the committed contents
+	 * @param filename The filename, as requested by clients
+	 * @param delta The change from the client's version to the committed version
+	 * @return The invalidation
+	 */
+	public static Invalidation withDelta(String filename, FileDelta delta) {
+
+		Invalidation update = new Invalidation(filename, delta.getToVersion());
+		update.delta = delta;
+
+		return update;
+
+	}
+
+	/**
+	 * Construct an invalidation
+	 * @param filename The filename, as requested by clients
+	 * @param version The version committed by the server
+	 */
+	public Invalidation(String filename, long version) {
+		this.filename = filename;
+		this.version = version;
+	}
+
+	/**
+	 * Get the name of the invalidated file
+	 * @return The file name
+	 */
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * Get the version committed by the server. Copies of this version or newer are still valid.
+	 * @return The version number
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Get the committed contents, if they were pushed
+	 * @return The contents, or null
+	 */
+	public FileContents getContents() {
+		return contents;
+	}
+
+	/**
+	 * Get the change to the committed contents, if it was pushed
+	 * @return The delta, or null
+	 */
+	public FileDelta getDelta() {
+		return delta;
+	}
+
+	/**
+	 * Check whether the new version is pushed with the invalidation
+	 * @return TRUE if it carries the contents or a delta
+	 */
+	public boolean isUpdate() {
+		return contents != null || delta != null;
+	}
+
+	@Override
+	public String toString() {
+		return filename + " (version " + version + (contents != null ? ", contents" : delta != null ? ", delta" : "") + ")";
+	}
+
+}
@@ -0,0 +1,172 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * InvalidationBatcher collects the invalidations (and pushed updates) the server
+ * owes each client for a short window, and sends them to the client in a single
+ * callback. During a burst of uploads a client reading many files gets one call per
+ * window instead of one per upload, and several uploads of the same file are
+ * coalesced into one invalidation of the newest version.
+ *
+ * Invalidations are sent in the background; a registration whose invalidation
+ * fails is dropped by its HostedFile once the result is known.
+ *
+ */
+public class InvalidationBatcher {
+
+	// how long invalidations for a client are collected before they are sent
+	public static final long BATCH_WINDOW_MILLISECONDS = 10;
+
+	// threads sending batches, so one slow client does not hold up the others
+	private static final int SENDER_THREADS = 4;
+
+	// the batcher shared by all hosted files of this process
+	private static final InvalidationBatcher SHARED = new InvalidationBatcher();
+
+	/**
+	 * Get the batcher shared by all hosted files
+	 * @return The shared batcher
+	 */
+	public static InvalidationBatcher getShared() {
+		return SHARED;
+	}
+
+	// an invalidation waiting to be sent, and the registration it belongs to
+	private static class Pending {
+
+		private final HostedFile file;
+		private final ConnectedClient client;
+		private final Invalidation invalidation;
+
+		private Pending(HostedFile file, ConnectedClient client, Invalidation invalidation) {
+			this.file = file;
+			this.client = client;
+			this.invalidation = invalidation;
+		}
+
+	}
+
+	// invalidations waiting to be sent, by client address, then by filename
+	private final Map<String, Map<String, Pending>> pending = new HashMap<String, Map<String, Pending>>();
+
+	// sends the batches once their window has passed
+	private final ScheduledExecutorService senders = Executors.newScheduledThreadPool(SENDER_THREADS, new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable task) {
+			Thread sender = new Thread(task, "invalidation-sender");
+			sender.setDaemon(true);
+			return sender;
+		}
+	});
+
+	/**
+	 * Queue the invalidation of a client's copy of a file. The client is sent every
+	 * invalidation queued for it within the batch window in one call.
+	 * @param file The file that changed
+	 * @param client The client registered with the file
+	 * @param invalidation The version the file changed to, possibly with its contents
+	 */
+	public void invalidate(HostedFile file, ConnectedClient client, Invalidation invalidation) {
+
+		final String address = client.getClientAddress();
+
+		synchronized (pending) {
+
+			Map<String, Pending> batch = pending.get(address);
+			if (batch == null) {
+
+				// the first invalidation for this client opens its window
+				batch = new LinkedHashMap<String, Pending>();
+				pending.put(address, batch);
+
+				senders.schedule(new Runnable() {
+					@Override
+					public void run() {
+						send(address);
+					}
+				}, BATCH_WINDOW_MILLISECONDS, TimeUnit.MILLISECONDS);
+
+			}
+
+			// a later version of the same file replaces the earlier one
+			batch.put(file.getFilename(), new Pending(file, client, invalidation));
+
+		}
+
+	}
+
+	/**
+	 * Helper method that sends the invalidations queued for a client
+	 * @param address The client's address
+	 */
+	private void send(String address) {
+
+		List<Pending> batch;
+		synchronized (pending) {
+			batch = new ArrayList<Pending>(pending.remove(address).values());
+		}
+
+		List<Invalidation> invalidations = new ArrayList<Invalidation>(batch.size());
+		for (Pending queued : batch) invalidations.add(queued.invalidation);
+
+		// every queued registration is for the same client, any of them can make the call
+		ServerEvents.Callback event = new ServerEvents.Callback();
+		event.begin();
+		TraceTimer timer = new TraceTimer();
+		boolean[] results = batch.get(0).client.invalidate(invalidations);
+		timer.lap();
+		event.end();
+		
+		if (event.shouldCommit()) {
+			StringBuilder filenames = new StringBuilder();
+			for (Pending queued : batch) {
+				if (filenames.length() > 0) filenames.append(',');
+				filenames.append(queued.file.getFilename());
+				event.bytes += transferSize(queued.invalidation);
+			}
+			event.type = "invalidate";
+			event.filename = filenames.toString();
+			event.client = batch.get(0).client.getClientIPName();
+			event.success = results != null;
+			event.commit();
+		}
+
+		for (int i = 0; i < batch.size(); i++) {
+
+			Pending queued = batch.get(i);
+			boolean success = results != null && i < results.length && results[i];
+			TraceRecorder.record(TraceEvent.Type.INVALIDATE, queued.client.getClientIPName(), queued.file.getFilename(), null, transferSize(queued.invalidation), success, timer);
+
+			if (!success) {
+				queued.file.invalidationFailed(queued.client);
+			} else if (queued.invalidation.isUpdate()) {
+				// the client now holds the pushed version, and may serve it to peers
+				queued.client.setHeldVersion(queued.invalidation.getVersion());
+			}
+
+		}
+
+	}
+
+	/**
+	 * Helper method that sizes the payload of an invalidation, for the trace
+	 * @param invalidation The invalidation
+	 * @return The bytes of pushed contents it carries
+	 */
+	private static long transferSize(Invalidation invalidation) {
+
+		if (invalidation.getContents() != null) return invalidation.getContents().length();
+		if (invalidation.getDelta() != null) return invalidation.getDelta().getTransferSize();
+
+		return 0;
+
+	}
+
+}
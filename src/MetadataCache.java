@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * MetadataCache holds recently looked-up attributes of files the server has not
+ * cached, so repeated existence and freshness checks do not each go to the
+ * filesystem. Entries expire after a short time, since the filesystem may be
+ * changed by others. Files the server has cached are described by their
+ * HostedFile instead, which is always current.
+ *
+ */
+public class MetadataCache {
+
+	// how long filesystem attributes are trusted
+	public static final long ENTRY_TTL_MILLISECONDS = 2000;
+
+	// a cached description, and when it was taken
+	private static class Entry {
+
+		private final FileStat stat;
+		private final long cachedAt;
+
+		private Entry(FileStat stat, long cachedAt) {
+			this.stat = stat;
+			this.cachedAt = cachedAt;
+		}
+
+	}
+
+	// cached descriptions, by filename
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * Describe a file from the filesystem, using a cached description if it is recent enough
+	 * @param filename The filename, as requested by clients
+	 * @return The description of the file (which may be missing)
+	 */
+	public FileStat get(String filename) {
+
+		Entry entry = entries.get(filename);
+		if (entry != null && System.currentTimeMillis() - entry.cachedAt < ENTRY_TTL_MILLISECONDS) return entry.stat;
+
+		FileStat stat = readAttributes(filename);
+		put(stat);
+
+		return stat;
+
+	}
+
+	/**
+	 * Record the current description of a file, such as after it was updated
+	 * @param stat The current description
+	 */
+	public void put(FileStat stat) {
+		entries.put(stat.getFilename(), new Entry(stat, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Helper method that reads a file's attributes from the filesystem
+	 * @param filename The filename, as requested by clients
+	 * @return The description of the file (which may be missing)
+	 */
+	private static FileStat readAttributes(String filename) {
+
+		try {
+
+			Path file = Paths.get(filename);
+			BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+			if (!attributes.isRegularFile()) return FileStat.missing(filename);
+
+			return new FileStat(filename, true, attributes.size(), 0, attributes.lastModifiedTime().toMillis(), ServerFileState.NOT_SHARED, false);
+
+		} catch (NoSuchFileException e) {
+
+			return FileStat.missing(filename);
+
+		} catch (IOException | RuntimeException e) {
+
+			// unreadable or invalid paths are reported as missing, as download would
+			if (FileServer.DEBUG_MODE) System.out.println("Unable to read attributes of " + filename + ": " + e.getMessage());
+			return FileStat.missing(filename);
+
+		}
+
+	}
+
+}
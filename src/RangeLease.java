@@ -0,0 +1,125 @@
+/**
+ * RangeLease records a client's right to write one byte range of a file, so that
+ * several clients can write disjoint parts of the same file without taking turns
+ * owning all of it.
+ *
+ * A lease expires unless the client writes to the range, or locks it again, within
+ * the lease period, so a client that goes away does not keep its range locked.
+ *
+ */
+public class RangeLease {
+
+	// how long a lease lasts without being used or renewed
+	public static final long LEASE_MILLISECONDS = 30000;
+
+	// the client holding the lease
+	private final String clientIPName;
+
+	// the first byte of the range
+	private final long offset;
+
+	// the number of bytes in the range
+	private final long length;
+
+	// when the lease runs out, in milliseconds since the epoch
+	private volatile long expires;
+
+	/**
+	 * Grant a lease, starting now
+	 * @param clientIPName The hostname/IP address of the client
+	 * @param offset The position of the first byte of the range
+	 * @param length The number of bytes in the range
+	 */
+	public RangeLease(String clientIPName, long offset, long length) {
+		this.clientIPName = clientIPName;
+		this.offset = offset;
+		this.length = length;
+		renew();
+	}
+
+	/**
+	 * Get the client holding the lease
+	 * @return The hostname/IP address of the client
+	 */
+	public String getClientIPName() {
+		return clientIPName;
+	}
+
+	/**
+	 * Get the start of the range
+	 * @return The position of the first byte
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Get the size of the range
+	 * @return The number of bytes
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Check whether a client holds this lease
+	 * @param clientIPName The hostname/IP address of the client
+	 * @return TRUE if the lease is the client's
+	 */
+	public boolean isHeldBy(String clientIPName) {
+		return this.clientIPName.equalsIgnoreCase(clientIPName);
+	}
+
+	/**
+	 * Check whether the lease has run out
+	 * @return TRUE if the lease was not used or renewed within the lease period
+	 */
+	public boolean isExpired() {
+		return System.currentTimeMillis() > expires;
+	}
+
+	/**
+	 * Extend the lease for another lease period
+	 */
+	public void renew() {
+		expires = System.currentTimeMillis() + LEASE_MILLISECONDS;
+	}
+
+	/**
+	 * Check whether the range shares any bytes with another range
+	 * @param otherOffset The position of the first byte of the other range
+	 * @param otherLength The number of bytes in the other range
+	 * @return TRUE if the ranges overlap
+	 */
+	public boolean overlaps(long otherOffset, long otherLength) {
+		return overlaps(offset, length, otherOffset, otherLength);
+	}
+
+	/**
+	 * Check whether the range includes all of another range
+	 * @param otherOffset The position of the first byte of the other range
+	 * @param otherLength The number of bytes in the other range
+	 * @return TRUE if the other range lies within this one
+	 */
+	public boolean covers(long otherOffset, long otherLength) {
+		return otherOffset >= offset && otherOffset - offset <= length - otherLength;
+	}
+
+	/**
+	 * Check whether two byte ranges overlap
+	 * @param offset The position of the first byte of one range
+	 * @param length The number of bytes in that range
+	 * @param otherOffset The position of the first byte of the other range
+	 * @param otherLength The number of bytes in the other range
+	 * @return TRUE if the ranges share any bytes
+	 */
+	public static boolean overlaps(long offset, long length, long otherOffset, long otherLength) {
+
+		if (length <= 0 || otherLength <= 0) return false;
+
+		// compared as distances, so ranges reaching Long.MAX_VALUE do not overflow
+		return (otherOffset >= offset) ? otherOffset - offset < length : offset - otherOffset < otherLength;
+
+	}
+
+}
@@ -0,0 +1,216 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * ReplicaPublisher streams every version committed on a primary FileServer to its
+ * read replicas. Each replica has its own sending thread, so a slow or unreachable
+ * replica never delays an upload or the other replicas, and versions of a file
+ * reach each replica in the order they were committed.
+ *
+ * Versions waiting for a replica are coalesced per file: only the newest is sent,
+ * whatever order the publishing threads arrive in.
+ * A replica that cannot be reached is marked stale for the files it missed, which
+ * hold no contents; it is retried every few seconds, and once it answers it is
+ * sent the primary's committed version of each of those files (see getCommitted).
+ *
+ */
+public class ReplicaPublisher {
+
+	// number of times a version is sent to a replica before marking it stale
+	private static final int SEND_ATTEMPTS = 2;
+
+	// time between attempts to catch up a replica that could not be reached
+	private static final long RETRY_MILLISECONDS = 5000;
+
+	// a replica FileServer, and the thread that sends it new versions
+	private static class Replica {
+
+		private final String name;
+		private final ExecutorService sender;
+		private ServerInterface server = null;
+
+		// versions waiting to be sent, newest per file (null once the replica missed the file)
+		private final Map<String, FileContents> pending = new LinkedHashMap<String, FileContents>();
+
+		// whether the sending thread is draining the pending versions
+		private boolean draining = false;
+
+		private Replica(final String name) {
+			this.name = name;
+			this.sender = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "replica-" + name);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+	}
+
+	// the replicas being published to
+	private final List<Replica> replicas = new ArrayList<Replica>();
+
+	// the primary, which supplies the committed version of files a replica missed
+	private volatile ServerInterface primary = null;
+
+	/**
+	 * Create a publisher for a set of replicas
+	 * @param replicaNames The replicas, each as "host:port"
+	 */
+	public ReplicaPublisher(List<String> replicaNames) {
+
+		for (String name : replicaNames) {
+			replicas.add(new Replica(name));
+		}
+
+	}
+
+	/**
+	 * Set the primary server the versions are published from
+	 * @param primary The primary, asked for the committed version of files a replica missed
+	 */
+	public void setPrimary(ServerInterface primary) {
+		this.primary = primary;
+	}
+
+	/**
+	 * Send a newly committed version of a file to every replica, in the background
+	 * @param filename The path/name of the file
+	 * @param contents The committed contents, including their version
+	 */
+	public void publish(String filename, FileContents contents) {
+
+		if (FileServer.DEBUG_MODE) System.out.println("Publishing version " + contents.getVersion() + " of " + filename + " to " + replicas.size() + " replica(s)");
+
+		for (final Replica replica : replicas) {
+
+			synchronized (replica) {
+
+				// an older version still waiting is replaced, not sent - publishers race, so a
+				// newer version may already be waiting (or the file is stale, and the version
+				// committed at send time is sent)
+				boolean queuedIsNewer = false;
+				if (replica.pending.containsKey(filename)) {
+					FileContents queued = replica.pending.get(filename);
+					queuedIsNewer = (queued == null || queued.getVersion() >= contents.getVersion());
+				}
+				if (!queuedIsNewer) replica.pending.put(filename, contents);
+
+				if (replica.draining) continue;
+				replica.draining = true;
+
+			}
+
+			replica.sender.execute(new Runnable() {
+				@Override
+				public void run() {
+					drain(replica);
+				}
+			});
+
+		}
+
+	}
+
+	/**
+	 * Helper method that sends a replica its pending versions until there are none left,
+	 * catching it up with the files it missed whenever it can be reached again
+	 * @param replica The replica to send to
+	 */
+	private void drain(Replica replica) {
+
+		while (true) {
+
+			String filename;
+			FileContents contents;
+			synchronized (replica) {
+
+				if (replica.pending.isEmpty()) {
+					replica.draining = false;
+					return;
+				}
+
+				Iterator<Map.Entry<String, FileContents>> next = replica.pending.entrySet().iterator();
+				Map.Entry<String, FileContents> entry = next.next();
+				filename = entry.getKey();
+				contents = entry.getValue();
+				next.remove();
+
+			}
+
+			if (send(replica, filename, contents)) continue;
+
+			// the replica missed this file, and any it has been sent since - keep only their
+			// names, and send the primary's committed versions once it answers again
+			synchronized (replica) {
+				if (!replica.pending.containsKey(filename)) replica.pending.put(filename, null);
+				for (Map.Entry<String, FileContents> missed : replica.pending.entrySet()) missed.setValue(null);
+				if (FileServer.DEBUG_MODE) System.out.println("Replica " + replica.name + " is stale for " + replica.pending.size() + " file(s), retrying in " + RETRY_MILLISECONDS + "ms");
+			}
+
+			try {
+				Thread.sleep(RETRY_MILLISECONDS);
+			} catch (InterruptedException e) {
+				synchronized (replica) {
+					replica.draining = false;
+				}
+				return;
+			}
+
+		}
+
+	}
+
+	/**
+	 * Helper method that sends a version to one replica, connecting to it if needed
+	 * @param replica The replica to send to
+	 * @param filename The path/name of the file
+	 * @param contents The committed contents, including their version, or null to send the primary's committed version
+	 * @return TRUE if the replica received the version (or there is none to send), FALSE if it could not be reached
+	 */
+	private boolean send(Replica replica, String filename, FileContents contents) {
+
+		// a stale connection is retried once with a fresh lookup
+		for (int attempt = 1; attempt <= SEND_ATTEMPTS; attempt++) {
+
+			try {
+
+				if (replica.server == null) {
+					replica.server = (ServerInterface) Transport.getShared().lookup(replica.name, ServerInterface.RMI_SERVICE_NAME);
+				}
+
+				// a file the replica missed is caught up to the version committed now
+				if (contents == null) {
+					if (primary == null) return true;
+					contents = primary.getCommitted(filename);
+					if (contents == null) return true;
+				}
+
+				boolean applied = replica.server.replicate(filename, contents);
+
+				if (FileServer.DEBUG_MODE) System.out.println("Replica " + replica.name + " applied version " + contents.getVersion() + " of " + filename + ": " + applied);
+
+				return true;
+
+			} catch (Exception e) {
+
+				if (FileServer.DEBUG_MODE) System.out.println("Unable to send " + filename + " to replica " + replica.name + " (attempt " + attempt + "): " + e.getMessage());
+				replica.server = null;
+
+			}
+
+		}
+
+		return false;
+
+	}
+
+}
@@ -0,0 +1,68 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * RingConfig tracks the shared ring config file of a FileServer cluster, re-reading
+ * it whenever the file is modified. Servers and clients use it so that all of them
+ * agree on which shard owns which filename.
+ *
+ */
+public class RingConfig {
+
+	// the shared ring config file
+	private final Path path;
+
+	// the ring as last read from the file
+	private HashRing ring;
+
+	// modification time of the file when it was last read
+	private long lastModified;
+
+	/**
+	 * Open a ring config file
+	 * @param path The path of the ring config file
+	 * @throws IOException If the file could not be read
+	 */
+	public RingConfig(String path) throws IOException {
+		this.path = Paths.get(path);
+		reload();
+	}
+
+	/**
+	 * Get the current ring, re-reading the config file if it has changed. If the changed
+	 * file cannot be read, the previous ring remains in effect.
+	 * @return The current ring
+	 */
+	public synchronized HashRing get() {
+
+		try {
+
+			if (Files.getLastModifiedTime(path).toMillis() != lastModified) reload();
+
+		} catch (IOException e) {
+
+			if (FileServer.DEBUG_MODE) System.out.println("Unable to re-read ring config " + path + ": " + e.getMessage());
+
+		}
+
+		return ring;
+
+	}
+
+	/**
+	 * Helper method that reads the config file
+	 * @throws IOException If the file could not be read
+	 */
+	private void reload() throws IOException {
+
+		long modified = Files.getLastModifiedTime(path).toMillis();
+		ring = HashRing.load(path);
+		lastModified = modified;
+
+		if (FileServer.DEBUG_MODE) System.out.println("Ring config " + path + " loaded with shards " + ring.getShards());
+
+	}
+
+}
@@ -0,0 +1,77 @@
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+
+/**
+ * RmiTransport reaches servers and clients through the RMI registry on their port,
+ * starting the registry on this machine if none is running. Objects are bound in the
+ * local registry whatever host they are bound at, since that is where they are reached.
+ *
+ */
+public class RmiTransport extends Transport {
+
+	// the scheme of registry URLs
+	private static final String RMI_URL_PREFIX = "rmi://";
+
+	@Override
+	public void bind(String host, int port, String name, Remote object) throws RemoteException {
+
+		startRegistry(port);
+
+		try {
+			Naming.rebind(RMI_URL_PREFIX + "localhost:" + port + "/" + name, object);
+		} catch (MalformedURLException e) {
+			throw new RemoteException("Invalid name " + name, e);
+		}
+
+	}
+
+	@Override
+	public void unbind(String host, int port, String name) throws RemoteException, NotBoundException {
+
+		try {
+			Naming.unbind(RMI_URL_PREFIX + "localhost:" + port + "/" + name);
+		} catch (MalformedURLException e) {
+			throw new RemoteException("Invalid name " + name, e);
+		}
+
+	}
+
+	@Override
+	public Remote lookup(String address, String name) throws RemoteException, NotBoundException {
+
+		try {
+			return Naming.lookup(RMI_URL_PREFIX + address + "/" + name);
+		} catch (MalformedURLException e) {
+			throw new RemoteException("Invalid address " + address, e);
+		}
+
+	}
+
+	/**
+	 * Start RMI registry on this machine. From Lab 3A example, CSS 434A.
+	 * @param port The port number the registry will be listening on
+	 * @throws RemoteException
+	 */
+	@SuppressWarnings("unused")
+	private static void startRegistry( int port ) throws RemoteException {
+
+		try {
+
+			Registry registry = LocateRegistry.getRegistry( port );
+			registry.list( );
+
+		}
+		catch ( RemoteException e ) {
+
+			Registry registry = LocateRegistry.createRegistry( port );
+
+		}
+
+	}
+
+}
@@ -0,0 +1,31 @@
+/**
+ * ServerBusyException is the answer of a FileServer that has too many requests of
+ * one kind in progress to accept another (see AdmissionControl). Nothing was done;
+ * the caller should wait at least the suggested time before trying again.
+ *
+ */
+@SuppressWarnings("serial")
+public class ServerBusyException extends Exception {
+
+	// how long the caller should wait before retrying
+	private final long retryAfterMillis;
+
+	/**
+	 * Construct the answer of a busy server
+	 * @param message What the server was too busy to do
+	 * @param retryAfterMillis How long the caller should wait before retrying, in milliseconds
+	 */
+	public ServerBusyException(String message, long retryAfterMillis) {
+		super(message);
+		this.retryAfterMillis = retryAfterMillis;
+	}
+
+	/**
+	 * Get how long the caller should wait before retrying
+	 * @return The suggested wait, in milliseconds
+	 */
+	public long getRetryAfterMillis() {
+		return retryAfterMillis;
+	}
+
+}
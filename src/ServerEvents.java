@@ -0,0 +1,170 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * ServerEvents holds the Java Flight Recorder events the server emits, so that a
+ * recording shows which file and client each slow stage of a request was serving.
+ *
+ * All events are disabled by default, and cost next to nothing until a recording
+ * enables them (for example with a .jfc settings file enabling fileserver.*).
+ * Fields that take work to fill in are only set once shouldCommit() says the event
+ * will be recorded.
+ *
+ */
+public final class ServerEvents {
+
+	// category of every file server event in JDK Mission Control
+	private static final String CATEGORY = "File Server";
+
+	/**
+	 * Finding a file in the cache, or loading it on a miss
+	 */
+	@Name("fileserver.FileLookup")
+	@Label("File Lookup")
+	@Category(CATEGORY)
+	@Description("A file looked up in the memory cache, and loaded from the spill directory, filesystem or primary on a miss")
+	@Enabled(false)
+	@StackTrace(false)
+	public static class FileLookup extends Event {
+
+		@Label("Filename")
+		public String filename;
+
+		@Label("Client")
+		public String client;
+
+		@Label("Source")
+		@Description("memory, spill, disk, primary, or none if the file was not found")
+		public String source;
+
+		@Label("Size")
+		@DataAmount
+		public long bytes;
+
+	}
+
+	/**
+	 * Serializing file contents into an RMI reply
+	 */
+	@Name("fileserver.ContentsTransfer")
+	@Label("Contents Transfer")
+	@Category(CATEGORY)
+	@Description("File contents written to a client's RMI stream, including waits for transfer slots")
+	@Enabled(false)
+	@StackTrace(false)
+	public static class ContentsTransfer extends Event {
+
+		@Label("Filename")
+		public String filename;
+
+		@Label("Client")
+		public String client;
+
+		@Label("Version")
+		public long version;
+
+		@Label("Size")
+		@DataAmount
+		public long bytes;
+
+	}
+
+	/**
+	 * A client waiting to own a file for writing
+	 */
+	@Name("fileserver.OwnershipWait")
+	@Label("Ownership Wait")
+	@Category(CATEGORY)
+	@Description("A write-mode download waiting for the previous owner's upload, range leases and appends")
+	@Enabled(false)
+	@StackTrace(false)
+	public static class OwnershipWait extends Event {
+
+		@Label("Filename")
+		public String filename;
+
+		@Label("Client")
+		public String client;
+
+		@Label("Previous Owner")
+		public String previousOwner;
+
+		@Label("Size")
+		@DataAmount
+		public long bytes;
+
+		@Label("Success")
+		public boolean success;
+
+	}
+
+	/**
+	 * A callback from the server to a client
+	 */
+	@Name("fileserver.Callback")
+	@Label("Client Callback")
+	@Category(CATEGORY)
+	@Description("An invalidation (of one or more files) or writeback request sent to a client")
+	@Enabled(false)
+	@StackTrace(false)
+	public static class Callback extends Event {
+
+		@Label("Type")
+		@Description("invalidate or writeback")
+		public String type;
+
+		@Label("Filename")
+		@Description("The file called back about; for a batch of invalidations, every file in the batch")
+		public String filename;
+
+		@Label("Client")
+		public String client;
+
+		@Label("Pushed Size")
+		@Description("Contents or deltas carried by the callback")
+		@DataAmount
+		public long bytes;
+
+		@Label("Success")
+		public boolean success;
+
+	}
+
+	/**
+	 * Writing a committed version to the filesystem
+	 */
+	@Name("fileserver.DiskWrite")
+	@Label("Disk Write")
+	@Category(CATEGORY)
+	@Description("A committed upload, range write or batch of appends written to the filesystem")
+	@Enabled(false)
+	@StackTrace(false)
+	public static class DiskWrite extends Event {
+
+		@Label("Filename")
+		public String filename;
+
+		@Label("Client")
+		public String client;
+
+		@Label("Operation")
+		@Description("upload, range or append")
+		public String operation;
+
+		@Label("Size")
+		@Description("Bytes written to the filesystem")
+		@DataAmount
+		public long bytes;
+
+	}
+
+	// not instantiated - a holder for the event classes
+	private ServerEvents() {}
+
+}
@@ -15,6 +15,7 @@ public class ServerImplTest {
 
 		doHostedFileTests();
 		doFileContentsTests();
+		doStatTests();
 		
 	}
 	
@@ -44,4 +45,18 @@ public class ServerImplTest {
 		
 	}
 	
-}
\ No newline at end of file
+	@SuppressWarnings("unused")
+	public static void doStatTests() throws Exception {
+		
+		// describe a cached file, without downloading it
+		FileStat f = server.stat(VALID_FILENAME);
+		
+		// describe a file that does not exist
+		FileStat g = server.stat(INVALID_FILENAME);
+		
+		// describe the files in the directory
+		java.util.List<FileStat> h = server.list("C:/temp");
+		
+	}
+	
+}
@@ -1,5 +1,6 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 /**
  * Public API for Distributed File System Server functionality
@@ -22,8 +23,22 @@ public interface ServerInterface extends Remote {
 	 * to it in the future. The client sets this mode to indicate how it plans to utilize the file.
 	 * @return The contents of the file requested
 	 * @throws RemoteException
+	 * @throws ServerBusyException If the server has too many downloads in progress, retry later
 	 */
-	public FileContents download( String clientIPName, String filename, String mode ) throws RemoteException;
+	public FileContents download( String clientIPName, String filename, String mode ) throws RemoteException, ServerBusyException;
+	
+	/**
+	 * Fetch a file the client expects to open soon, in read mode. The client is registered
+	 * as a reader of the whole file, as by a read-mode download (so it is pushed new
+	 * versions and may serve the file to peers), but stays registered with the files it
+	 * already holds.
+	 * @param clientIPName The IP address or hostname of the client prefetching the file
+	 * @param filename The path/name of the file being prefetched
+	 * @return The contents of the file, or null if it does not exist
+	 * @throws RemoteException
+	 * @throws ServerBusyException If the server has too many downloads in progress, retry later
+	 */
+	public FileContents prefetch( String clientIPName, String filename ) throws RemoteException, ServerBusyException;
 	
 	/**
 	 * Upload new contents for the specified file. The file must be owned by the client
@@ -34,7 +49,188 @@ public interface ServerInterface extends Remote {
 	 * @return Operation success (TRUE) or failure (FALSE). If the return from this method is
 	 * FALSE, the client MUST assume that the file contents HAVE NOT been updated.
 	 * @throws RemoteException
+	 * @throws ServerBusyException If the server has too many uploads in progress, retry later
+	 */
+	public boolean upload( String clientIPName, String filename, FileContents contents ) throws RemoteException, ServerBusyException;
+	
+	/**
+	 * Download a specific, recently committed version of a file. This does not register
+	 * the client with the file, so it is not invalidated when the file changes.
+	 * @param clientIPName The IP address or hostname of the client requesting the file
+	 * @param filename The path/name of the file being requested
+	 * @param version The version of the file being requested
+	 * @return The contents of the requested version, or null if the version is no longer retained
+	 * @throws RemoteException
+	 */
+	public FileContents downloadVersion( String clientIPName, String filename, long version ) throws RemoteException;
+	
+	/**
+	 * Confirm that a client redirected to a peer by download now holds the version it was
+	 * sent to fetch (from the peer, or from downloadVersion). Until it confirms, the client
+	 * is not chosen as a peer for other readers.
+	 * @param clientIPName The IP address or hostname of the client
+	 * @param filename The path/name of the file fetched
+	 * @param version The version fetched
+	 * @return TRUE if the version was recorded, FALSE if the client is no longer a reader
+	 * of the file or already holds a newer version
+	 * @throws RemoteException
+	 */
+	public boolean confirmFetch( String clientIPName, String filename, long version ) throws RemoteException;
+	
+	/**
+	 * Get the changes between two recently committed versions of a file, so a client holding
+	 * an older version can catch up without downloading the whole file.
+	 * @param filename The path/name of the file
+	 * @param fromVersion The version the client already holds
+	 * @param toVersion The version the client wants
+	 * @return The delta between the versions, or null if either version is no longer retained
+	 * @throws RemoteException
+	 */
+	public FileDelta diff( String filename, long fromVersion, long toVersion ) throws RemoteException;
+	
+	/**
+	 * Hand off a cached file from another server of the cluster, after the ring config
+	 * has assigned the file to this server. The receiving server starts hosting the file
+	 * from these contents without reading it from the filesystem, replacing an older copy
+	 * it read from the filesystem before the handoff arrived if no client is using it.
+	 * @param filename The path/name of the file being handed off
+	 * @param contents The last committed contents of the file, including their version
+	 * @return TRUE if the file is now hosted from these contents, FALSE if a copy at least as
+	 * new (or one a client is using) is already hosted, or the ring assigns it to another shard
+	 * @throws RemoteException
+	 */
+	public boolean acceptHandoff( String filename, FileContents contents ) throws RemoteException;
+	
+	/**
+	 * Get the last committed contents of a file, including their version, without
+	 * registering the caller. Read replicas use this to fill their cache from the primary.
+	 * @param filename The path/name of the file being requested
+	 * @return The committed contents of the file, or null if the file does not exist
+	 * @throws RemoteException
+	 */
+	public FileContents getCommitted( String filename ) throws RemoteException;
+	
+	/**
+	 * Apply a version committed on the primary server to a read replica. The replica
+	 * invalidates its registered readers if the version is newer than its copy.
+	 * @param filename The path/name of the file that was updated
+	 * @param contents The committed contents, including their version
+	 * @return TRUE if the replica applied the version, FALSE if it does not host the file
+	 * or already has this version
+	 * @throws RemoteException
+	 */
+	public boolean replicate( String filename, FileContents contents ) throws RemoteException;
+	
+	/**
+	 * Describe a file without transferring its contents or registering the client, for
+	 * cheap existence and freshness checks
+	 * @param filename The path/name of the file
+	 * @return The size, version, modification time and sharing state of the file (which
+	 * may describe a missing file), or null if another server of the cluster is responsible for it
+	 * @throws RemoteException
+	 */
+	public FileStat stat( String filename ) throws RemoteException;
+	
+	/**
+	 * Describe the files in a directory served by this server, without transferring their
+	 * contents or registering the client
+	 * @param directory The path of the directory
+	 * @return A description of each file in the directory (empty if there is no such directory)
+	 * @throws RemoteException
+	 */
+	public List<FileStat> list( String directory ) throws RemoteException;
+	
+	/**
+	 * Describe the server's block store: the bytes referenced by all stored file versions,
+	 * the bytes actually held, and what deduplication saves
+	 * @return The totals of the block store
+	 * @throws RemoteException
+	 */
+	public StoreStats storeStats() throws RemoteException;
+	
+	/**
+	 * Read part of a file, without downloading all of it or registering the client
+	 * @param clientIPName The IP address or hostname of the client requesting the range
+	 * @param filename The path/name of the file
+	 * @param offset The position of the first byte to read
+	 * @param length The number of bytes to read
+	 * @return The bytes read (fewer than requested at the end of the file), labelled with
+	 * the version they belong to (0 if the server has not cached the file), or null if the
+	 * file cannot be read
+	 * @throws RemoteException
+	 */
+	public FileContents readRange( String clientIPName, String filename, long offset, int length ) throws RemoteException;
+	
+	/**
+	 * Overwrite part of a file in place, without uploading all of it. The file must be owned
+	 * by the client (in WRITE_SHARED mode), or the client must hold a lease on a range
+	 * including the bytes written (see lockRange); the client keeps its ownership or lease
+	 * afterwards. Other clients' copies of the changed bytes are invalidated.
+	 * @param clientIPName The IP address or hostname of the client (the owner, or a lease holder)
+	 * @param filename The path/name of the file being updated
+	 * @param offset The position of the first byte to overwrite (at most the file size)
+	 * @param data The bytes to write, extending the file if they run past its end
+	 * @return Operation success (TRUE) or failure (FALSE). If the return from this method is
+	 * FALSE, the client MUST assume that the file contents HAVE NOT been updated.
+	 * @throws RemoteException
+	 * @throws ServerBusyException If the server has too many uploads in progress, retry later
+	 */
+	public boolean writeRange( String clientIPName, String filename, long offset, FileContents data ) throws RemoteException, ServerBusyException;
+	
+	/**
+	 * Lock a byte range of a file for writing, or renew the lock. Several clients may hold
+	 * locks on disjoint ranges of the same file and write them concurrently with writeRange,
+	 * without taking ownership of the whole file. A lock lasts 30 seconds after it was
+	 * last used or renewed.
+	 * @param clientIPName The IP address or hostname of the client
+	 * @param filename The path/name of the file
+	 * @param offset The position of the first byte of the range
+	 * @param length The number of bytes in the range (which may run past the end of the file)
+	 * @return TRUE if the client holds the lock, FALSE if the range overlaps another client's
+	 * lock or the whole file is owned
+	 * @throws RemoteException
+	 * @throws ServerBusyException If the server has too many uploads in progress, retry later
+	 */
+	public boolean lockRange( String clientIPName, String filename, long offset, long length ) throws RemoteException, ServerBusyException;
+	
+	/**
+	 * Release the client's locks on byte ranges of a file
+	 * @param clientIPName The IP address or hostname of the client
+	 * @param filename The path/name of the file
+	 * @param offset The position of the first byte of the range
+	 * @param length The number of bytes in the range; every lock overlapping it is released
+	 * @return TRUE if any lock was released
+	 * @throws RemoteException
+	 */
+	public boolean unlockRange( String clientIPName, String filename, long offset, long length ) throws RemoteException;
+	
+	/**
+	 * Read part of a file and register the client as a reader of that part. The client is
+	 * invalidated when bytes in the range change, but not by writes to other parts of the file.
+	 * @param clientIPName The IP address or hostname of the client requesting the range
+	 * @param filename The path/name of the file
+	 * @param offset The position of the first byte to read
+	 * @param length The number of bytes to read
+	 * @return The bytes read (fewer than requested at the end of the file), labelled with
+	 * their version, or null if the file cannot be read
+	 * @throws RemoteException
+	 * @throws ServerBusyException If the server has too many downloads in progress, retry later
+	 */
+	public FileContents downloadRange( String clientIPName, String filename, long offset, int length ) throws RemoteException, ServerBusyException;
+	
+	/**
+	 * Append bytes to the end of a file, without owning it. Each append is written whole,
+	 * after any appends that completed before it started, and concurrent appends are never
+	 * interleaved. Readers of the file are invalidated, or pushed the appended bytes.
+	 * @param clientIPName The IP address or hostname of the client
+	 * @param filename The path/name of the file (which must exist)
+	 * @param data The bytes to append
+	 * @return The position in the file the bytes were written at, or -1 if the append failed
+	 * (the file does not exist, or is owned for writing, or its end is locked by lockRange).
+	 * If the return is -1, the client MUST assume the bytes HAVE NOT been appended.
+	 * @throws RemoteException
+	 * @throws ServerBusyException If the server has too many uploads in progress, retry later
 	 */
-	public boolean upload( String clientIPName, String filename, FileContents contents ) throws RemoteException;
+	public long append( String clientIPName, String filename, FileContents data ) throws RemoteException, ServerBusyException;
 	
 }
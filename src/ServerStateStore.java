@@ -0,0 +1,179 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ServerStateStore saves and restores what a FileServer knows about its cached
+ * files: their versions, when they were last written, and which clients are
+ * registered with them in which mode. The file contents themselves are not saved,
+ * they are re-read (and revalidated) from the filesystem after a restart.
+ *
+ * The state is written in a compact binary format to a temporary file, which then
+ * replaces the previous state file, so a crash mid-write never leaves a torn file.
+ *
+ */
+public class ServerStateStore {
+
+	// identifies a state file ("FSST")
+	private static final int MAGIC = 0x46535354;
+
+	// version of the binary format
+	private static final int FORMAT_VERSION = 1;
+
+	/**
+	 * What is known about a cached file
+	 */
+	public static class FileRecord {
+
+		public final String filename;
+		public final long version;
+		public final long lastModified;
+		public final long size;
+		public final ServerFileState state;
+		public final List<ClientRecord> clients;
+
+		public FileRecord(String filename, long version, long lastModified, long size, ServerFileState state, List<ClientRecord> clients) {
+			this.filename = filename;
+			this.version = version;
+			this.lastModified = lastModified;
+			this.size = size;
+			this.state = state;
+			this.clients = clients;
+		}
+
+	}
+
+	/**
+	 * A client registered with a cached file
+	 */
+	public static class ClientRecord {
+
+		public final String clientIPName;
+		public final int port;
+		public final ServerFileState mode;
+		public final long heldVersion;
+
+		public ClientRecord(String clientIPName, int port, ServerFileState mode, long heldVersion) {
+			this.clientIPName = clientIPName;
+			this.port = port;
+			this.mode = mode;
+			this.heldVersion = heldVersion;
+		}
+
+	}
+
+	// where the state is kept
+	private final Path path;
+
+	/**
+	 * Create a store for a state file
+	 * @param path The state file
+	 */
+	public ServerStateStore(Path path) {
+		this.path = path;
+	}
+
+	/**
+	 * Get the state file
+	 * @return The path of the state file
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Save the state of a server's cached files
+	 * @param records The records of all cached files
+	 * @throws IOException If the state could not be written
+	 */
+	public synchronized void save(Collection<FileRecord> records) throws IOException {
+
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(records.size());
+
+			for (FileRecord record : records) {
+
+				out.writeUTF(record.filename);
+				out.writeLong(record.version);
+				out.writeLong(record.lastModified);
+				out.writeLong(record.size);
+				out.writeByte(record.state.ordinal());
+
+				out.writeInt(record.clients.size());
+				for (ClientRecord client : record.clients) {
+					out.writeUTF(client.clientIPName);
+					out.writeInt(client.port);
+					out.writeByte(client.mode.ordinal());
+					out.writeLong(client.heldVersion);
+				}
+
+			}
+
+		}
+
+		Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+	}
+
+	/**
+	 * Load the saved state
+	 * @return The records of the files that were cached, by filename (empty if nothing was saved)
+	 * @throws IOException If the state file exists but could not be read
+	 */
+	public synchronized Map<String, FileRecord> load() throws IOException {
+
+		Map<String, FileRecord> records = new HashMap<String, FileRecord>();
+		ServerFileState[] states = ServerFileState.values();
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+
+			if (in.readInt() != MAGIC) throw new IOException(path + " is not a FileServer state file");
+			int format = in.readInt();
+			if (format != FORMAT_VERSION) throw new IOException("Unsupported state file format " + format);
+
+			int fileCount = in.readInt();
+			for (int i = 0; i < fileCount; i++) {
+
+				String filename = in.readUTF();
+				long version = in.readLong();
+				long lastModified = in.readLong();
+				long size = in.readLong();
+				ServerFileState state = states[in.readByte()];
+
+				int clientCount = in.readInt();
+				List<ClientRecord> clients = new ArrayList<ClientRecord>(clientCount);
+				for (int j = 0; j < clientCount; j++) {
+					clients.add(new ClientRecord(in.readUTF(), in.readInt(), states[in.readByte()], in.readLong()));
+				}
+
+				records.put(filename, new FileRecord(filename, version, lastModified, size, state, clients));
+
+			}
+
+		} catch (NoSuchFileException e) {
+
+			// first start, nothing to restore
+
+		}
+
+		return records;
+
+	}
+
+}
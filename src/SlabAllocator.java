@@ -0,0 +1,183 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * SlabAllocator hands out off-heap memory for stored blocks, so that cached file
+ * contents do not live on the Java heap and do not add to garbage collection work.
+ *
+ * Memory is reserved in 1 MB direct buffers ("slabs"), each carved into equal
+ * regions of one size class (1 KB up to 64 KB, in powers of two). A block gets a
+ * region of the smallest class that fits it. Freed regions are held back for a
+ * quarantine period before they are reused, so that a reader still holding an
+ * evicted block can go on reading it. A block only becomes unreadable when its
+ * region is actually reused (BlockData detects a read that overlaps the reuse).
+ *
+ */
+public class SlabAllocator {
+
+	// size of each direct buffer reserved from the operating system
+	public static final int SLAB_SIZE = 1024 * 1024;
+
+	// smallest region handed out
+	public static final int MIN_REGION_SIZE = 1024;
+
+	// largest region handed out, matching the largest block
+	public static final int MAX_REGION_SIZE = BlockStore.MAX_BLOCK_SIZE;
+
+	// how long a freed region is held back before reuse
+	public static final long QUARANTINE_MILLISECONDS = 30000;
+
+	// a freed region waiting out its quarantine
+	private static class Quarantined {
+
+		private final BlockData block;
+		private final long freedAt;
+
+		private Quarantined(BlockData block, long freedAt) {
+			this.block = block;
+			this.freedAt = freedAt;
+		}
+
+	}
+
+	// free regions, per size class
+	private final Deque<ByteBuffer>[] freeRegions;
+
+	// freed regions not yet reusable, oldest first
+	private final Deque<Quarantined> quarantine = new ArrayDeque<Quarantined>();
+
+	// the most off-heap memory that may be reserved
+	private final long maxReservedBytes;
+
+	// off-heap memory reserved so far
+	private long reservedBytes = 0;
+
+	// bytes of blocks currently held
+	private long usedBytes = 0;
+
+	/**
+	 * Create an allocator
+	 * @param maxReservedBytes The most off-heap memory to reserve, in bytes
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public SlabAllocator(long maxReservedBytes) {
+
+		this.maxReservedBytes = maxReservedBytes;
+
+		freeRegions = new Deque[sizeClassOf(MAX_REGION_SIZE) + 1];
+		for (int i = 0; i < freeRegions.length; i++) {
+			freeRegions[i] = new ArrayDeque<ByteBuffer>();
+		}
+
+	}
+
+	/**
+	 * Copy a block into off-heap memory
+	 * @param data The block contents
+	 * @return The off-heap block, or null if the memory limit has been reached
+	 */
+	public synchronized BlockData allocate(byte[] data) {
+
+		if (data.length > MAX_REGION_SIZE) throw new IllegalArgumentException("Block of " + data.length + " bytes is larger than the largest region");
+
+		recycleQuarantined();
+
+		int sizeClass = sizeClassOf(data.length);
+		if (freeRegions[sizeClass].isEmpty() && !reserveSlab(sizeClass)) return null;
+
+		ByteBuffer region = freeRegions[sizeClass].pop();
+		ByteBuffer writer = region.duplicate();
+		writer.put(data);
+
+		usedBytes += data.length;
+
+		return new BlockData(region, data.length, sizeClass);
+
+	}
+
+	/**
+	 * Give a block's memory back. The block must no longer be handed out to new readers,
+	 * but readers already holding it can read it until the region is reused.
+	 * @param block The off-heap block to free
+	 */
+	public synchronized void free(BlockData block) {
+
+		usedBytes -= block.length();
+		quarantine.addLast(new Quarantined(block, System.currentTimeMillis()));
+
+	}
+
+	/**
+	 * Get the off-heap memory reserved so far
+	 * @return Reserved bytes, including free regions
+	 */
+	public synchronized long getReservedBytes() {
+		return reservedBytes;
+	}
+
+	/**
+	 * Get the bytes of blocks currently held
+	 * @return Used bytes
+	 */
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	/**
+	 * Helper method that returns regions whose quarantine has ended to the free lists.
+	 * Their blocks become unreadable from here on, as the regions may be overwritten.
+	 */
+	private void recycleQuarantined() {
+
+		long now = System.currentTimeMillis();
+		while (!quarantine.isEmpty() && now - quarantine.peekFirst().freedAt >= QUARANTINE_MILLISECONDS) {
+			BlockData recycled = quarantine.removeFirst().block;
+			recycled.markReused();
+			freeRegions[recycled.getSizeClass()].push(recycled.getBuffer());
+		}
+
+	}
+
+	/**
+	 * Helper method that reserves a new slab and carves it into regions of a size class
+	 * @param sizeClass The size class to carve
+	 * @return TRUE if a slab was reserved, FALSE if the memory limit has been reached
+	 */
+	private boolean reserveSlab(int sizeClass) {
+
+		if (reservedBytes + SLAB_SIZE > maxReservedBytes) {
+			if (FileServer.DEBUG_MODE) System.out.println("Off-heap limit of " + maxReservedBytes + " bytes reached");
+			return false;
+		}
+
+		ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+		reservedBytes += SLAB_SIZE;
+
+		int regionSize = MIN_REGION_SIZE << sizeClass;
+		for (int offset = 0; offset + regionSize <= SLAB_SIZE; offset += regionSize) {
+			ByteBuffer carver = slab.duplicate();
+			carver.position(offset);
+			carver.limit(offset + regionSize);
+			freeRegions[sizeClass].push(carver.slice());
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * Helper method that finds the smallest size class holding a number of bytes
+	 * @param length The number of bytes
+	 * @return The size class, 0 for MIN_REGION_SIZE
+	 */
+	private static int sizeClassOf(int length) {
+
+		int sizeClass = 0;
+		while ((MIN_REGION_SIZE << sizeClass) < length) sizeClass++;
+
+		return sizeClass;
+
+	}
+
+}
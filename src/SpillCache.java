@@ -0,0 +1,347 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SpillCache is a second cache tier on local disk, holding files the server has
+ * evicted from memory, so that reading them again does not have to go back to the
+ * (possibly slow, network-mounted) filesystem they came from.
+ *
+ * Spilled files are appended to a single segment file; an in-memory index maps each
+ * filename to the position of its newest record. A file taken back into memory
+ * leaves a tombstone record, since its version may change from then on. When most
+ * of the segment is dead records, the live ones are copied to a new segment. When
+ * the live records exceed the size limit, the oldest are dropped.
+ *
+ * Each record keeps the version, and the modification time and size the original
+ * file had, so the server can tell whether the spilled copy is still current.
+ * The index is rebuilt by scanning the segment when the server restarts.
+ *
+ */
+public class SpillCache {
+
+	// marks the start of a record ("SPL1")
+	private static final int RECORD_MAGIC = 0x53504c31;
+
+	// length written for a tombstone record
+	private static final int TOMBSTONE = -1;
+
+	// smallest segment worth compacting
+	private static final long COMPACT_MIN_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * A spilled file, as recorded in the segment
+	 */
+	public static class Entry {
+
+		private final String filename;
+		private final long version;
+		private final long lastModified;
+		private final int length;
+
+		// position of the contents in the segment
+		private long offset;
+
+		// the contents, once read back from the segment
+		private byte[] contents = null;
+
+		private Entry(String filename, long version, long lastModified, int length, long offset) {
+			this.filename = filename;
+			this.version = version;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.offset = offset;
+		}
+
+		/**
+		 * Get the version the file had when it was spilled
+		 * @return The version number
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * Get the modification time the original file had when it was spilled
+		 * @return Milliseconds since the epoch
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * Get the size of the spilled contents
+		 * @return The size in bytes
+		 */
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * Get the spilled contents, labelled with their version
+		 * @return The contents
+		 */
+		public FileContents getContents() {
+			return new FileContents(contents, version);
+		}
+
+		/**
+		 * Get the saved state this entry corresponds to, for revalidating it against the original file
+		 * @return A record of the spilled version, with no registered clients
+		 */
+		public ServerStateStore.FileRecord toRecord() {
+			return new ServerStateStore.FileRecord(filename, version, lastModified, length, ServerFileState.NOT_SHARED, new ArrayList<ServerStateStore.ClientRecord>());
+		}
+
+	}
+
+	// the segment file
+	private final Path segment;
+
+	// most bytes of live records kept
+	private final long maxBytes;
+
+	// the segment, open for appending and positional reads
+	private FileChannel channel;
+
+	// newest record of each spilled file, oldest spilled first
+	private final Map<String, Entry> index = new LinkedHashMap<String, Entry>();
+
+	// bytes of contents in live records
+	private long liveBytes = 0;
+
+	/**
+	 * Open the spill tier, indexing any records left by a previous run
+	 * @param segment The segment file
+	 * @param maxBytes Most bytes of spilled contents to keep
+	 * @throws IOException If the segment could not be opened or read
+	 */
+	public SpillCache(Path segment, long maxBytes) throws IOException {
+
+		this.segment = segment;
+		this.maxBytes = maxBytes;
+
+		channel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		scan();
+
+		if (FileServer.DEBUG_MODE) System.out.println("Spill tier " + segment + " holds " + index.size() + " files, " + liveBytes + " bytes");
+
+	}
+
+	/**
+	 * Spill a file evicted from memory
+	 * @param filename The filename, as requested by clients
+	 * @param contents The committed contents, including their version
+	 * @param lastModified The modification time of the original file
+	 * @return TRUE if the file was spilled, FALSE if it is larger than the whole tier
+	 * @throws IOException If the record could not be written
+	 */
+	public synchronized boolean put(String filename, FileContents contents, long lastModified) throws IOException {
+
+		byte[] bytes = contents.get();
+		if (bytes.length > maxBytes) return false;
+
+		removeEntry(filename);
+		long offset = append(filename, contents.getVersion(), lastModified, bytes);
+		index.put(filename, new Entry(filename, contents.getVersion(), lastModified, bytes.length, offset));
+		liveBytes += bytes.length;
+
+		// drop the oldest files beyond the size limit
+		Iterator<Entry> oldest = index.values().iterator();
+		while (liveBytes > maxBytes && oldest.hasNext()) {
+			liveBytes -= oldest.next().length;
+			oldest.remove();
+		}
+
+		compactIfSparse();
+
+		return true;
+
+	}
+
+	/**
+	 * Take a file back from the spill tier. Its record is discarded either way: the file
+	 * is either current and taken into memory, where its version may change, or stale.
+	 * @param filename The filename, as requested by clients
+	 * @return The spilled file with its contents, or null if it was not spilled
+	 * @throws IOException If the record could not be read
+	 */
+	public synchronized Entry take(String filename) throws IOException {
+
+		Entry entry = index.get(filename);
+		if (entry == null) return null;
+
+		ByteBuffer contents = ByteBuffer.allocate(entry.length);
+		while (contents.hasRemaining()) {
+			if (channel.read(contents, entry.offset + contents.position()) < 0) throw new EOFException("Spill segment truncated");
+		}
+		entry.contents = contents.array();
+
+		removeEntry(filename);
+		append(filename, entry.version, entry.lastModified, null);
+
+		return entry;
+
+	}
+
+	/**
+	 * Get the number of files spilled
+	 * @return The number of live records
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * Helper method that forgets a file's record
+	 * @param filename The filename
+	 */
+	private void removeEntry(String filename) {
+
+		Entry removed = index.remove(filename);
+		if (removed != null) liveBytes -= removed.length;
+
+	}
+
+	/**
+	 * Helper method that appends a record to the segment
+	 * @param filename The filename
+	 * @param version The version of the contents
+	 * @param lastModified The modification time of the original file
+	 * @param contents The contents, or null for a tombstone
+	 * @return The position of the contents in the segment
+	 * @throws IOException If the record could not be written
+	 */
+	private long append(String filename, long version, long lastModified, byte[] contents) throws IOException {
+
+		byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream(32 + name.length);
+		DataOutputStream out = new DataOutputStream(header);
+		out.writeInt(RECORD_MAGIC);
+		out.writeInt(name.length);
+		out.write(name);
+		out.writeLong(version);
+		out.writeLong(lastModified);
+		out.writeInt(contents == null ? TOMBSTONE : contents.length);
+
+		long position = channel.size();
+		long contentsOffset = position + header.size();
+
+		ByteBuffer[] record = (contents == null)
+				? new ByteBuffer[] { ByteBuffer.wrap(header.toByteArray()) }
+				: new ByteBuffer[] { ByteBuffer.wrap(header.toByteArray()), ByteBuffer.wrap(contents) };
+
+		channel.position(position);
+		long remaining = header.size() + (contents == null ? 0 : contents.length);
+		while (remaining > 0) remaining -= channel.write(record);
+
+		return contentsOffset;
+
+	}
+
+	/**
+	 * Helper method that rebuilds the index from the segment, ignoring a torn last record
+	 * @throws IOException If the segment could not be read
+	 */
+	private void scan() throws IOException {
+
+		long position = 0;
+		long validEnd = 0;
+		channel.position(0);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+
+		try {
+
+			while (true) {
+
+				if (in.readInt() != RECORD_MAGIC) break;
+				byte[] name = new byte[in.readInt()];
+				in.readFully(name);
+				long version = in.readLong();
+				long lastModified = in.readLong();
+				int length = in.readInt();
+
+				String filename = new String(name, StandardCharsets.UTF_8);
+				long contentsOffset = position + 4 + 4 + name.length + 8 + 8 + 4;
+
+				removeEntry(filename);
+				if (length != TOMBSTONE) {
+					in.readFully(new byte[length]);
+					index.put(filename, new Entry(filename, version, lastModified, length, contentsOffset));
+					liveBytes += length;
+				}
+
+				position = contentsOffset + Math.max(0, length);
+				validEnd = position;
+
+			}
+
+		} catch (EOFException e) {
+
+			// the end of the segment, possibly mid-record after a crash
+
+		}
+
+		// later records are appended after the last complete one
+		channel.truncate(validEnd);
+
+	}
+
+	/**
+	 * Helper method that copies the live records to a new segment once most of the
+	 * segment is dead records
+	 * @throws IOException If the new segment could not be written
+	 */
+	private void compactIfSparse() throws IOException {
+
+		long segmentBytes = channel.size();
+		if (segmentBytes < COMPACT_MIN_BYTES || liveBytes * 2 > segmentBytes) return;
+
+		if (FileServer.DEBUG_MODE) System.out.println("Compacting spill tier: " + liveBytes + " live of " + segmentBytes + " bytes");
+
+		Path compacted = segment.resolveSibling(segment.getFileName() + ".tmp");
+		FileChannel previous = channel;
+		List<Entry> live = new ArrayList<Entry>(index.values());
+
+		channel = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+
+			for (Entry entry : live) {
+
+				ByteBuffer contents = ByteBuffer.allocate(entry.length);
+				while (contents.hasRemaining()) {
+					if (previous.read(contents, entry.offset + contents.position()) < 0) throw new EOFException("Spill segment truncated");
+				}
+
+				entry.offset = append(entry.filename, entry.version, entry.lastModified, contents.array());
+
+			}
+
+			channel.force(false);
+
+		} finally {
+			previous.close();
+		}
+
+		Files.move(compacted, segment, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+	}
+
+}
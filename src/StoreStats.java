@@ -0,0 +1,113 @@
+import java.io.Serializable;
+
+/**
+ * StoreStats describes the block store of a server: how many bytes the stored file
+ * versions reference, how many are actually held, and what deduplication saves. It is
+ * passed via RMI calls, therefore must be serializable.
+ *
+ */
+@SuppressWarnings("serial")
+public class StoreStats implements Serializable {
+
+	// number of distinct blocks held
+	private int blocks;
+
+	// bytes referenced by all stored file versions, counting every reference
+	private long logicalBytes;
+
+	// bytes actually held, counting each block once
+	private long storedBytes;
+
+	// off-heap bytes used by blocks, 0 if blocks are kept on the heap
+	private long offHeapUsedBytes;
+
+	// off-heap bytes reserved, 0 if blocks are kept on the heap
+	private long offHeapReservedBytes;
+
+	/**
+	 * Construct a description of a block store
+	 * @param blocks Number of distinct blocks held
+	 * @param logicalBytes Bytes referenced by all stored file versions
+	 * @param storedBytes Bytes actually held, counting each block once
+	 * @param offHeapUsedBytes Off-heap bytes used by blocks, 0 if blocks are kept on the heap
+	 * @param offHeapReservedBytes Off-heap bytes reserved, 0 if blocks are kept on the heap
+	 */
+	public StoreStats(int blocks, long logicalBytes, long storedBytes, long offHeapUsedBytes, long offHeapReservedBytes) {
+		this.blocks = blocks;
+		this.logicalBytes = logicalBytes;
+		this.storedBytes = storedBytes;
+		this.offHeapUsedBytes = offHeapUsedBytes;
+		this.offHeapReservedBytes = offHeapReservedBytes;
+	}
+
+	/**
+	 * Get the number of distinct blocks held
+	 * @return The number of blocks
+	 */
+	public int getBlocks() {
+		return blocks;
+	}
+
+	/**
+	 * Get the number of bytes referenced by all stored file versions
+	 * @return The logical size of the stored contents
+	 */
+	public long getLogicalBytes() {
+		return logicalBytes;
+	}
+
+	/**
+	 * Get the number of bytes actually held, with each block counted once
+	 * @return The stored size of the contents
+	 */
+	public long getStoredBytes() {
+		return storedBytes;
+	}
+
+	/**
+	 * Get the number of bytes saved by deduplication
+	 * @return Logical bytes minus stored bytes
+	 */
+	public long getSavedBytes() {
+		return logicalBytes - storedBytes;
+	}
+
+	/**
+	 * Get the deduplication ratio
+	 * @return Logical bytes divided by stored bytes (1.0 when nothing is shared)
+	 */
+	public double getDedupRatio() {
+		return (storedBytes == 0) ? 1.0 : (double) logicalBytes / storedBytes;
+	}
+
+	/**
+	 * Get the off-heap memory used by blocks
+	 * @return The bytes used, 0 if blocks are kept on the heap
+	 */
+	public long getOffHeapUsedBytes() {
+		return offHeapUsedBytes;
+	}
+
+	/**
+	 * Get the off-heap memory reserved for blocks
+	 * @return The bytes reserved, 0 if blocks are kept on the heap
+	 */
+	public long getOffHeapReservedBytes() {
+		return offHeapReservedBytes;
+	}
+
+	@Override
+	public String toString() {
+
+		String summary = String.format("Block store: %d blocks, %d logical bytes stored in %d bytes (dedup ratio %.2f, %d bytes saved)",
+				blocks, logicalBytes, storedBytes, getDedupRatio(), getSavedBytes());
+
+		if (offHeapReservedBytes > 0) {
+			summary += String.format(", %d bytes off-heap in %d reserved", offHeapUsedBytes, offHeapReservedBytes);
+		}
+
+		return summary;
+
+	}
+
+}
@@ -0,0 +1,207 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * TraceEvent is one recorded server operation: a download or upload requested by
+ * a client, or a callback the server made to a client. Besides what was asked for
+ * and how it turned out, it holds how long each stage of the operation took.
+ *
+ * Download stages: releasing earlier registrations, finding the file, registering
+ * the client (including any writeback wait), preparing the reply.
+ * Upload stages: finding the file, checking the owner, committing, publishing.
+ * Callbacks have a single stage, the call itself.
+ *
+ */
+public class TraceEvent {
+
+	/**
+	 * The kinds of recorded operations
+	 */
+	public enum Type {
+		DOWNLOAD,
+		UPLOAD,
+		INVALIDATE,
+		WRITEBACK
+	}
+
+	// the kind of operation
+	private final Type type;
+
+	// when the operation started, in microseconds since tracing started
+	private final long startMicros;
+
+	// the client that made (or received) the call
+	private final String clientIPName;
+
+	// the file operated on
+	private final String filename;
+
+	// requested mode for downloads, otherwise empty
+	private final String mode;
+
+	// bytes transferred
+	private final long size;
+
+	// whether the operation succeeded
+	private final boolean success;
+
+	// duration of each stage, in microseconds
+	private final long[] stageMicros;
+
+	/**
+	 * Construct an event
+	 * @param type The kind of operation
+	 * @param startMicros When the operation started, in microseconds since tracing started
+	 * @param clientIPName The client that made (or received) the call
+	 * @param filename The file operated on
+	 * @param mode The requested mode for downloads, otherwise null
+	 * @param size Bytes transferred
+	 * @param success Whether the operation succeeded
+	 * @param stageMicros Duration of each stage, in microseconds
+	 */
+	public TraceEvent(Type type, long startMicros, String clientIPName, String filename, String mode, long size, boolean success, long[] stageMicros) {
+		this.type = type;
+		this.startMicros = startMicros;
+		this.clientIPName = clientIPName;
+		this.filename = filename;
+		this.mode = (mode == null) ? "" : mode;
+		this.size = size;
+		this.success = success;
+		this.stageMicros = stageMicros;
+	}
+
+	/**
+	 * Get the kind of operation
+	 * @return The operation type
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Get when the operation started
+	 * @return Microseconds since tracing started
+	 */
+	public long getStartMicros() {
+		return startMicros;
+	}
+
+	/**
+	 * Get the client that made (or received) the call
+	 * @return The hostname/IP address of the client
+	 */
+	public String getClientIPName() {
+		return clientIPName;
+	}
+
+	/**
+	 * Get the file operated on
+	 * @return The filename, as requested by the client
+	 */
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * Get the requested mode of a download
+	 * @return The mode, or empty for other operations
+	 */
+	public String getMode() {
+		return mode;
+	}
+
+	/**
+	 * Get the number of bytes transferred
+	 * @return The size in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Check whether the operation succeeded
+	 * @return TRUE if it succeeded
+	 */
+	public boolean isSuccess() {
+		return success;
+	}
+
+	/**
+	 * Get how long each stage of the operation took
+	 * @return The stage durations, in microseconds
+	 */
+	public long[] getStageMicros() {
+		return stageMicros;
+	}
+
+	/**
+	 * Get the duration of the whole operation
+	 * @return The sum of the stage durations, in microseconds
+	 */
+	public long getTotalMicros() {
+
+		long total = 0;
+		for (long stage : stageMicros) total += stage;
+
+		return total;
+
+	}
+
+	/**
+	 * Write the event in the trace file format
+	 * @param out The trace file
+	 * @throws IOException If the event could not be written
+	 */
+	public void writeTo(DataOutputStream out) throws IOException {
+
+		out.writeByte(type.ordinal());
+		out.writeLong(startMicros);
+		out.writeUTF(clientIPName);
+		out.writeUTF(filename);
+		out.writeUTF(mode);
+		out.writeLong(size);
+		out.writeBoolean(success);
+
+		out.writeByte(stageMicros.length);
+		for (long stage : stageMicros) out.writeLong(stage);
+
+	}
+
+	/**
+	 * Read the next event from a trace file
+	 * @param in The trace file, positioned at an event
+	 * @return The event, or null at the end of the trace
+	 * @throws IOException If the event could not be read
+	 */
+	public static TraceEvent readFrom(DataInputStream in) throws IOException {
+
+		int typeOrdinal;
+		try {
+			typeOrdinal = in.readByte();
+		} catch (EOFException e) {
+			return null;
+		}
+
+		Type type = Type.values()[typeOrdinal];
+		long startMicros = in.readLong();
+		String clientIPName = in.readUTF();
+		String filename = in.readUTF();
+		String mode = in.readUTF();
+		long size = in.readLong();
+		boolean success = in.readBoolean();
+
+		long[] stageMicros = new long[in.readByte()];
+		for (int i = 0; i < stageMicros.length; i++) stageMicros[i] = in.readLong();
+
+		return new TraceEvent(type, startMicros, clientIPName, filename, mode, size, success, stageMicros);
+
+	}
+
+	@Override
+	public String toString() {
+		return startMicros + " " + type + " " + clientIPName + " " + filename + (mode.isEmpty() ? "" : " " + mode) + " " + size + " bytes " + (success ? "ok" : "failed") + " " + getTotalMicros() + " us";
+	}
+
+}
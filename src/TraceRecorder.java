@@ -0,0 +1,201 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TraceRecorder writes a binary trace of the operations a FileServer handles, so
+ * that production workloads can be inspected and replayed later (see TraceReplay).
+ *
+ * Tracing is off unless the system property fileserver.traceFile names the trace
+ * file. Server threads only queue events; a background thread writes them. If the
+ * writer falls behind, events are dropped (and counted) rather than slowing
+ * down the server.
+ *
+ */
+public class TraceRecorder {
+
+	// system property naming the trace file
+	public static final String TRACE_FILE_PROPERTY = "fileserver.traceFile";
+
+	// identifies a trace file ("FSTR")
+	private static final int MAGIC = 0x46535452;
+
+	// version of the binary format
+	private static final int FORMAT_VERSION = 1;
+
+	// events waiting to be written, at most
+	private static final int QUEUE_CAPACITY = 65536;
+
+	// how long the writer waits for events before flushing
+	private static final int FLUSH_MILLISECONDS = 1000;
+
+	// the process-wide recorder, or null if tracing is off
+	private static final TraceRecorder SHARED = open(System.getProperty(TRACE_FILE_PROPERTY));
+
+	/**
+	 * Record an operation in the process-wide trace, if tracing is on
+	 * @param type The kind of operation
+	 * @param clientIPName The client that made (or received) the call
+	 * @param filename The file operated on
+	 * @param mode The requested mode for downloads, otherwise null
+	 * @param size Bytes transferred
+	 * @param success Whether the operation succeeded
+	 * @param timer The timer of the operation's stages
+	 */
+	public static void record(TraceEvent.Type type, String clientIPName, String filename, String mode, long size, boolean success, TraceTimer timer) {
+
+		if (SHARED == null) return;
+
+		long startMicros = (timer.getStartNanos() - SHARED.startNanos) / 1000;
+		SHARED.add(new TraceEvent(type, startMicros, String.valueOf(clientIPName), String.valueOf(filename), mode, size, success, timer.getStageMicros()));
+
+	}
+
+	/**
+	 * Read a whole trace file
+	 * @param path The trace file
+	 * @return The recorded events, in the order they were recorded
+	 * @throws IOException If the file is not a trace or could not be read
+	 */
+	public static List<TraceEvent> read(Path path) throws IOException {
+
+		List<TraceEvent> events = new ArrayList<TraceEvent>();
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+
+			if (in.readInt() != MAGIC) throw new IOException(path + " is not a FileServer trace file");
+			int format = in.readInt();
+			if (format != FORMAT_VERSION) throw new IOException("Unsupported trace file format " + format);
+
+			TraceEvent event;
+			while ((event = TraceEvent.readFrom(in)) != null) events.add(event);
+
+		}
+
+		return events;
+
+	}
+
+	/**
+	 * Helper method that opens the process-wide trace
+	 * @param path The trace file, or null if tracing is off
+	 * @return The recorder, or null if tracing is off or the file could not be created
+	 */
+	private static TraceRecorder open(String path) {
+
+		if (path == null) return null;
+
+		try {
+
+			TraceRecorder recorder = new TraceRecorder(Paths.get(path));
+			if (FileServer.DEBUG_MODE) System.out.println("Recording trace to " + path);
+			return recorder;
+
+		} catch (IOException e) {
+
+			System.err.println("Unable to create trace file " + path + ", tracing is off: " + e.getMessage());
+			return null;
+
+		}
+
+	}
+
+	// when tracing started, event times are relative to this
+	private final long startNanos = System.nanoTime();
+
+	// events waiting to be written
+	private final BlockingQueue<TraceEvent> queue = new ArrayBlockingQueue<TraceEvent>(QUEUE_CAPACITY);
+
+	// events dropped because the queue was full
+	private final AtomicLong dropped = new AtomicLong();
+
+	// the trace file
+	private final DataOutputStream out;
+
+	/**
+	 * Create a trace file and start the thread writing to it
+	 * @param path The trace file
+	 * @throws IOException If the file could not be created
+	 */
+	private TraceRecorder(Path path) throws IOException {
+
+		out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						TraceEvent event = queue.poll(FLUSH_MILLISECONDS, TimeUnit.MILLISECONDS);
+						write(event);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "trace-writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		// write whatever is still queued on shutdown
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				TraceEvent event;
+				while ((event = queue.poll()) != null) write(event);
+				write(null);
+				if (dropped.get() > 0) System.err.println("Trace dropped " + dropped.get() + " events");
+			}
+		}, "trace-shutdown"));
+
+	}
+
+	/**
+	 * Helper method that queues an event for writing
+	 * @param event The event
+	 */
+	private void add(TraceEvent event) {
+		if (!queue.offer(event)) dropped.incrementAndGet();
+	}
+
+	/**
+	 * Helper method that writes an event, or flushes the file
+	 * @param event The event, or null to flush
+	 */
+	private void write(TraceEvent event) {
+
+		synchronized (out) {
+
+			try {
+
+				if (event == null) {
+					out.flush();
+				} else {
+					event.writeTo(out);
+				}
+
+			} catch (IOException e) {
+
+				// a broken trace must not take the server down
+				if (FileServer.DEBUG_MODE) System.out.println("Unable to write trace: " + e.getMessage());
+
+			}
+
+		}
+
+	}
+
+}
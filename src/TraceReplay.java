@@ -0,0 +1,354 @@
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TraceReplay drives a local FileServer with the downloads and uploads of a recorded
+ * trace (see TraceRecorder), and reports the latencies it observed next to the ones
+ * recorded, so that the performance of different builds can be compared on a real
+ * workload.
+ *
+ * The server is started in this process, on the given port, and every call goes
+ * through RMI as a client's would - or, with -Dfileserver.transport=inprocess, is a
+ * plain method call, leaving out network and serialization costs. Files are replaced
+ * by synthetic files of the recorded sizes, created in the directory "replay-<port>",
+ * and every traced client becomes a distinct loopback address (127.x.y.z) served by
+ * one replay client that accepts every callback. Calls are issued at their recorded times, divided by the
+ * speed factor (0 replays as fast as possible). Each client's calls are issued one
+ * after the other, as the client made them, while different clients' calls overlap.
+ * Callbacks in the trace are not replayed - the server makes its own.
+ *
+ * Downloads redirected to a peer are counted as successful, the replay does not
+ * fetch from the peer. Calls the server refused as busy, and calls that timed out,
+ * are counted separately from other failures and left out of the replayed latencies.
+ * The replay does not install CallbackSocketFactory: its read timeout would cut off
+ * write-mode downloads that wait for the traced owner's upload.
+ *
+ * usage: java TraceReplay tracefile port [speed]
+ *
+ */
+public class TraceReplay {
+
+	public static void main(String[] args) {
+
+		if (args.length < 2 || args.length > 3) {
+
+			System.out.println("usage: java TraceReplay tracefile port [speed]");
+			System.exit(-1);
+
+		}
+
+		try {
+
+			List<TraceEvent> trace = TraceRecorder.read(Paths.get(args[0]));
+			int port = Integer.parseInt(args[1]);
+			double speed = (args.length == 3) ? Double.parseDouble(args[2]) : 1.0;
+
+			new TraceReplay(trace, port).replay(speed);
+			System.exit(0);
+
+		}
+		catch (Exception e) {
+
+			System.err.println("Exception in main(): " + e.getMessage());
+			System.exit(-1);
+
+		}
+
+	}
+
+	/**
+	 * The client every traced client is mapped to: accepts every callback
+	 */
+	@SuppressWarnings("serial")
+	private static class ReplayClient extends UnicastRemoteObject implements ClientInterface {
+
+		private ReplayClient() throws RemoteException {}
+
+		@Override
+		public boolean[] invalidate(List<Invalidation> invalidations) {
+
+			boolean[] results = new boolean[invalidations.size()];
+			Arrays.fill(results, true);
+
+			return results;
+
+		}
+
+		@Override
+		public boolean writeback() {
+			return true;
+		}
+
+		@Override
+		public FileContents fetch(String filename, long version) {
+			return null;
+		}
+
+		@Override
+		public boolean ping() {
+			return true;
+		}
+
+	}
+
+	// the recorded events
+	private final List<TraceEvent> trace;
+
+	// the port the local server listens on
+	private final int port;
+
+	// synthetic file, by traced filename
+	private final Map<String, String> files = new HashMap<String, String>();
+
+	// loopback address, by traced client
+	private final Map<String, String> clients = new HashMap<String, String>();
+
+	// replayed latencies in microseconds, by operation ("DOWNLOAD r", "UPLOAD", ...)
+	private final Map<String, List<Long>> replayed = new TreeMap<String, List<Long>>();
+
+	// recorded latencies in microseconds, by operation
+	private final Map<String, List<Long>> recorded = new TreeMap<String, List<Long>>();
+
+	// replayed calls that failed, by operation
+	private final Map<String, Integer> failures = new TreeMap<String, Integer>();
+
+	// replayed calls the server refused as busy, by operation
+	private final Map<String, Integer> refusals = new TreeMap<String, Integer>();
+
+	// replayed calls that timed out, by operation
+	private final Map<String, Integer> timeouts = new TreeMap<String, Integer>();
+
+	// how a replayed call ended
+	private enum Outcome {
+		SUCCEEDED,
+		FAILED,
+		BUSY,
+		TIMED_OUT
+	}
+
+	/**
+	 * Prepare a replay of a trace
+	 * @param trace The recorded events
+	 * @param port The port for the local server
+	 */
+	public TraceReplay(List<TraceEvent> trace, int port) {
+		this.trace = trace;
+		this.port = port;
+	}
+
+	/**
+	 * Start the local server, issue the traced calls and print the latencies
+	 * @param speed How many times faster than recorded to issue calls, or 0 for as fast as possible
+	 * @throws Exception If the server could not be started or the files created
+	 */
+	public void replay(double speed) throws Exception {
+
+		createFiles();
+
+		// start the server and the replay client in this process, bound at every traced client's address
+		// (with RMI's own socket factory, so no call is cut off by a read timeout)
+		Transport transport = Transport.getShared();
+		transport.bind("localhost", port, ServerInterface.RMI_SERVICE_NAME, new FileServer(port));
+		ReplayClient replayClient = new ReplayClient();
+		for (String client : clients.values()) transport.bind(client, port, FileServer.CLIENT_RMI_SERVICE_NAME, replayClient);
+		final ServerInterface server = (ServerInterface) transport.lookup("localhost:" + port, ServerInterface.RMI_SERVICE_NAME);
+
+		System.out.println("Replaying " + trace.size() + " events on " + files.size() + " files from " + clients.size() + " clients at speed " + speed);
+
+		// one thread per client, so that its calls stay in order
+		Map<String, ExecutorService> callers = new HashMap<String, ExecutorService>();
+		for (String client : clients.values()) callers.put(client, Executors.newSingleThreadExecutor());
+		
+		long replayStart = System.nanoTime();
+		Random random = new Random(0);
+
+		for (final TraceEvent event : trace) {
+
+			if (event.getType() != TraceEvent.Type.DOWNLOAD && event.getType() != TraceEvent.Type.UPLOAD) continue;
+
+			// wait until the event is due
+			if (speed > 0) {
+				long dueNanos = replayStart + (long) (event.getStartMicros() * 1000 / speed);
+				long waitNanos = dueNanos - System.nanoTime();
+				if (waitNanos > 0) TimeUnit.NANOSECONDS.sleep(waitNanos);
+			}
+
+			final String client = clients.get(event.getClientIPName());
+			final String file = files.get(event.getFilename());
+			final byte[] uploadContents = (event.getType() == TraceEvent.Type.UPLOAD) ? synthesize(random, event.getSize()) : null;
+
+			callers.get(client).execute(new Runnable() {
+				@Override
+				public void run() {
+
+					long start = System.nanoTime();
+					boolean success;
+					Outcome outcome;
+					try {
+						if (uploadContents == null) {
+							success = server.download(client, file, event.getMode()) != null;
+						} else {
+							success = server.upload(client, file, new FileContents(uploadContents));
+						}
+						outcome = success ? Outcome.SUCCEEDED : Outcome.FAILED;
+					} catch (ServerBusyException e) {
+						// calls the server refused as busy are not retried
+						outcome = Outcome.BUSY;
+					} catch (RemoteException e) {
+						outcome = (e.getCause() instanceof SocketTimeoutException) ? Outcome.TIMED_OUT : Outcome.FAILED;
+					}
+
+					addResult(event, (System.nanoTime() - start) / 1000, outcome);
+
+				}
+			});
+
+		}
+
+		for (ExecutorService caller : callers.values()) caller.shutdown();
+		for (ExecutorService caller : callers.values()) caller.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+		printReport((System.nanoTime() - replayStart) / 1000000);
+
+	}
+
+	/**
+	 * Helper method that maps the traced files and clients, and creates a synthetic
+	 * file of the recorded size for every traced file
+	 * @throws Exception If a file could not be created
+	 */
+	private void createFiles() throws Exception {
+
+		Path directory = Paths.get("replay-" + port);
+		Files.createDirectories(directory);
+
+		Map<String, Long> sizes = new HashMap<String, Long>();
+		for (TraceEvent event : trace) {
+
+			// the first transfer of a file shows its size before the trace started
+			if (!sizes.containsKey(event.getFilename()) && (event.getType() == TraceEvent.Type.DOWNLOAD || event.getType() == TraceEvent.Type.UPLOAD)) {
+				sizes.put(event.getFilename(), event.getSize());
+			}
+
+			if (!clients.containsKey(event.getClientIPName())) {
+				int n = clients.size() + 2;
+				clients.put(event.getClientIPName(), "127." + ((n >> 16) & 0xff) + "." + ((n >> 8) & 0xff) + "." + (n & 0xff));
+			}
+
+		}
+
+		Random random = new Random(0);
+		for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+
+			Path file = directory.resolve("file-" + files.size());
+			Files.write(file, synthesize(random, entry.getValue()));
+			files.put(entry.getKey(), file.toString());
+
+		}
+
+	}
+
+	/**
+	 * Helper method that generates synthetic file contents
+	 * @param random The source of the contents
+	 * @param size The number of bytes
+	 * @return The contents
+	 */
+	private static byte[] synthesize(Random random, long size) {
+
+		byte[] contents = new byte[(int) Math.min(size, Integer.MAX_VALUE)];
+		random.nextBytes(contents);
+
+		return contents;
+
+	}
+
+	/**
+	 * Helper method that records the outcome of a replayed call
+	 * @param event The traced call
+	 * @param latencyMicros How long the replayed call took
+	 * @param outcome How the replayed call ended
+	 */
+	private synchronized void addResult(TraceEvent event, long latencyMicros, Outcome outcome) {
+
+		String operation = event.getType() + (event.getMode().isEmpty() ? "" : " " + event.getMode());
+
+		if (!replayed.containsKey(operation)) {
+			replayed.put(operation, new ArrayList<Long>());
+			recorded.put(operation, new ArrayList<Long>());
+			failures.put(operation, 0);
+			refusals.put(operation, 0);
+			timeouts.put(operation, 0);
+		}
+
+		recorded.get(operation).add(event.getTotalMicros());
+
+		// refused and timed-out calls did not run their course, so their latency says nothing
+		if (outcome == Outcome.BUSY) {
+			refusals.put(operation, refusals.get(operation) + 1);
+		} else if (outcome == Outcome.TIMED_OUT) {
+			timeouts.put(operation, timeouts.get(operation) + 1);
+		} else {
+			replayed.get(operation).add(latencyMicros);
+			if (outcome == Outcome.FAILED) failures.put(operation, failures.get(operation) + 1);
+		}
+
+	}
+
+	/**
+	 * Helper method that prints the replayed and recorded latencies of each operation
+	 * @param elapsedMillis How long the replay took
+	 */
+	private synchronized void printReport(long elapsedMillis) {
+
+		System.out.println("Replay finished in " + elapsedMillis + " ms (latencies in microseconds)");
+		System.out.println(String.format("%-12s %8s %8s %8s %8s   %-38s %-38s", "operation", "calls", "failed", "busy", "timeout", "replayed p50/p90/p99/max", "recorded p50/p90/p99/max"));
+
+		for (String operation : replayed.keySet()) {
+			System.out.println(String.format("%-12s %8d %8d %8d %8d   %-38s %-38s", operation, recorded.get(operation).size(), failures.get(operation), refusals.get(operation), timeouts.get(operation), percentiles(replayed.get(operation)), percentiles(recorded.get(operation))));
+		}
+
+	}
+
+	/**
+	 * Helper method that summarizes latencies
+	 * @param latencies The latencies, in microseconds
+	 * @return The 50th, 90th and 99th percentiles and the maximum
+	 */
+	private static String percentiles(List<Long> latencies) {
+
+		if (latencies.isEmpty()) return "-";
+
+		List<Long> sorted = new ArrayList<Long>(latencies);
+		Collections.sort(sorted);
+
+		return percentile(sorted, 50) + "/" + percentile(sorted, 90) + "/" + percentile(sorted, 99) + "/" + sorted.get(sorted.size() - 1);
+
+	}
+
+	/**
+	 * Helper method that finds a percentile of sorted latencies
+	 * @param sorted The latencies, in ascending order
+	 * @param percent The percentile
+	 * @return The latency below which that percentage of calls finished
+	 */
+	private static long percentile(List<Long> sorted, int percent) {
+		return sorted.get(Math.min(sorted.size() - 1, sorted.size() * percent / 100));
+	}
+
+}
@@ -0,0 +1,65 @@
+/**
+ * TraceTimer measures the stages of one server operation for the trace. Each
+ * call to lap() ends the current stage and starts the next one. Timing costs a
+ * few nanoseconds per stage, so operations are timed whether or not a trace is
+ * being recorded.
+ *
+ */
+public class TraceTimer {
+
+	// most stages an operation is split into
+	private static final int MAX_STAGES = 8;
+
+	// when the operation started
+	private final long startNanos;
+
+	// when the current stage started
+	private long lapStartNanos;
+
+	// duration of each finished stage, in nanoseconds
+	private final long[] stageNanos = new long[MAX_STAGES];
+
+	// number of finished stages
+	private int stages = 0;
+
+	/**
+	 * Start timing an operation
+	 */
+	public TraceTimer() {
+		startNanos = System.nanoTime();
+		lapStartNanos = startNanos;
+	}
+
+	/**
+	 * End the current stage and start the next one
+	 */
+	public void lap() {
+
+		long now = System.nanoTime();
+		if (stages < MAX_STAGES) stageNanos[stages++] = now - lapStartNanos;
+		lapStartNanos = now;
+
+	}
+
+	/**
+	 * Get when the operation started
+	 * @return The System.nanoTime() at which timing started
+	 */
+	public long getStartNanos() {
+		return startNanos;
+	}
+
+	/**
+	 * Get the durations of the finished stages
+	 * @return The duration of each stage, in microseconds
+	 */
+	public long[] getStageMicros() {
+
+		long[] stageMicros = new long[stages];
+		for (int i = 0; i < stages; i++) stageMicros[i] = stageNanos[i] / 1000;
+
+		return stageMicros;
+
+	}
+
+}
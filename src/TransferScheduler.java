@@ -0,0 +1,379 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * TransferScheduler shares the server's outgoing bandwidth between the file
+ * contents it is sending, so that a few very large downloads cannot hold up the
+ * small ones queued behind them.
+ *
+ * Contents larger than one slice are written in slices, and only a few slices (one
+ * per send slot) are written at any moment. The next free slot goes to the waiting
+ * transfer with the earliest start tag of start-time fair queuing: each slice
+ * advances its transfer's tag by the slice size divided by the client's share,
+ * while a newly started transfer begins at the current virtual time. A small
+ * download that arrives while bulk transfers are running is therefore sent in the
+ * next free slot, and bulk transfers share the rest by weight. Between equal tags
+ * the transfer with fewer bytes remaining goes first. Contents of one slice or
+ * less are written at once.
+ *
+ * A client that stops reading must not keep the slots from everyone else: no
+ * client holds more than its share of the slots at once (half of them, by default),
+ * and a slice that is not written by its deadline loses its slot, which the next
+ * waiting transfer takes, and its transfer fails once the write returns.
+ *
+ * The number of slots is taken from the system property fileserver.transfer.slots,
+ * client shares from fileserver.transfer.shares ("host=weight,host=weight", other
+ * clients have weight 1), the slots one client may hold from
+ * fileserver.transfer.clientSlots and the slice deadline from
+ * fileserver.transfer.sliceTimeoutMillis.
+ *
+ */
+public class TransferScheduler {
+
+	// size of the slices large contents are written in
+	public static final int SLICE_BYTES = 64 * 1024;
+
+	// system property for the number of slices written at once
+	public static final String SLOTS_PROPERTY = "fileserver.transfer.slots";
+
+	// system property for the clients' bandwidth shares
+	public static final String SHARES_PROPERTY = "fileserver.transfer.shares";
+
+	// system property for the number of slices one client may have written at once
+	public static final String CLIENT_SLOTS_PROPERTY = "fileserver.transfer.clientSlots";
+
+	// system property for the time allowed to write a slice
+	public static final String SLICE_TIMEOUT_PROPERTY = "fileserver.transfer.sliceTimeoutMillis";
+
+	// default number of slices written at once
+	private static final int DEFAULT_SLOTS = 4;
+
+	// default time allowed to write a slice
+	private static final long DEFAULT_SLICE_TIMEOUT_MILLISECONDS = 10000;
+
+	// the scheduler shared by the whole process
+	private static final TransferScheduler SHARED = new TransferScheduler(
+			Integer.getInteger(SLOTS_PROPERTY, DEFAULT_SLOTS),
+			parseShares(System.getProperty(SHARES_PROPERTY)),
+			Integer.getInteger(CLIENT_SLOTS_PROPERTY, Math.max(1, Integer.getInteger(SLOTS_PROPERTY, DEFAULT_SLOTS) / 2)),
+			Long.getLong(SLICE_TIMEOUT_PROPERTY, DEFAULT_SLICE_TIMEOUT_MILLISECONDS));
+
+	/**
+	 * Get the scheduler shared by the whole process
+	 * @return The shared scheduler
+	 */
+	public static TransferScheduler getShared() {
+		return SHARED;
+	}
+
+	/**
+	 * A stream sending one transfer's bytes, a slice at a time, when the scheduler allows.
+	 * Closing it ends the transfer, but does not close the underlying stream.
+	 */
+	public class Transfer extends FilterOutputStream implements Comparable<Transfer> {
+
+		// the client receiving the transfer
+		private final String client;
+
+		// the client's share of the bandwidth
+		private final double weight;
+
+		// bytes not yet written
+		private long remaining;
+
+		// virtual start time of the next slice
+		private double startTag;
+
+		// virtual finish time of the last slice
+		private double finishTag;
+
+		// bytes that may still be written in the slot held, 0 if no slot is held
+		private int granted = 0;
+
+		// when the slot held was granted, in nanoseconds
+		private long grantedAt;
+
+		// whether the slot was taken back because the slice missed its deadline
+		private volatile boolean dropped = false;
+
+		// order of arrival, to break ties
+		private final long sequence;
+
+		private Transfer(OutputStream out, String client, long size, double weight, long sequence) {
+			super(out);
+			this.client = client;
+			this.remaining = size;
+			this.weight = weight;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+
+			while (length > 0) {
+
+				if (granted == 0) acquire(this);
+
+				int chunk = Math.min(length, granted);
+				out.write(bytes, offset, chunk);
+				if (dropped) throw new IOException("Slice to " + client + " not written within " + sliceTimeoutMillis + " ms, transfer dropped");
+
+				offset += chunk;
+				length -= chunk;
+				remaining -= chunk;
+				granted -= chunk;
+
+				// the slice is written, let the next transfer have the slot
+				if (granted == 0) release(this);
+
+			}
+
+		}
+
+		@Override
+		public void close() {
+
+			if (granted > 0) {
+				granted = 0;
+				release(this);
+			}
+
+		}
+
+		@Override
+		public int compareTo(Transfer other) {
+
+			if (startTag != other.startTag) return startTag < other.startTag ? -1 : 1;
+			if (remaining != other.remaining) return remaining < other.remaining ? -1 : 1;
+
+			return Long.compare(sequence, other.sequence);
+
+		}
+
+	}
+
+	// slices that may be written at once
+	private int freeSlots;
+
+	// bandwidth share by client, clients not listed have weight 1
+	private final Map<String, Double> shares;
+
+	// slices one client may have written at once
+	private final int clientSlots;
+
+	// time allowed to write a slice
+	private final long sliceTimeoutMillis;
+
+	// transfers holding a slot
+	private final List<Transfer> holding = new ArrayList<Transfer>();
+
+	// slots held, by client
+	private final Map<String, Integer> heldByClient = new HashMap<String, Integer>();
+
+	// transfers waiting for a slot, earliest start tag first
+	private final PriorityQueue<Transfer> waiting = new PriorityQueue<Transfer>();
+
+	// virtual time: the start tag of the slice most recently given a slot
+	private double virtualTime = 0;
+
+	// transfers started so far
+	private long transfers = 0;
+
+	/**
+	 * Create a scheduler letting each client hold half of the slots, with the default slice deadline
+	 * @param slots The number of slices written at once
+	 * @param shares Bandwidth share by client
+	 */
+	public TransferScheduler(int slots, Map<String, Double> shares) {
+		this(slots, shares, Math.max(1, slots / 2), DEFAULT_SLICE_TIMEOUT_MILLISECONDS);
+	}
+
+	/**
+	 * Create a scheduler
+	 * @param slots The number of slices written at once
+	 * @param shares Bandwidth share by client
+	 * @param clientSlots The number of slices one client may have written at once
+	 * @param sliceTimeoutMillis Time allowed to write a slice before its slot is taken back
+	 */
+	public TransferScheduler(int slots, Map<String, Double> shares, int clientSlots, long sliceTimeoutMillis) {
+		this.freeSlots = Math.max(1, slots);
+		this.shares = shares;
+		this.clientSlots = Math.max(1, clientSlots);
+		this.sliceTimeoutMillis = sliceTimeoutMillis;
+	}
+
+	/**
+	 * Start sending contents to a client. Small contents are not scheduled.
+	 * @param out The stream to the client
+	 * @param clientIPName The hostname/IP address of the client
+	 * @param size The number of bytes that will be written
+	 * @return The stream to write the contents to, which must be closed afterwards
+	 */
+	public synchronized OutputStream open(OutputStream out, String clientIPName, long size) {
+
+		if (size <= SLICE_BYTES) return out;
+
+		Double share = shares.get(clientIPName);
+		Transfer transfer = new Transfer(out, clientIPName, size, share == null ? 1 : share, transfers++);
+		transfer.finishTag = virtualTime;
+
+		return transfer;
+
+	}
+
+	/**
+	 * Helper method that waits until a transfer may write its next slice
+	 * @param transfer The transfer
+	 * @throws InterruptedIOException If the thread was interrupted while waiting
+	 */
+	private synchronized void acquire(Transfer transfer) throws InterruptedIOException {
+
+		int slice = (int) Math.min(SLICE_BYTES, Math.max(1, transfer.remaining));
+		transfer.startTag = Math.max(virtualTime, transfer.finishTag);
+		transfer.finishTag = transfer.startTag + slice / transfer.weight;
+
+		waiting.add(transfer);
+		while (true) {
+
+			// slices past their deadline give their slots up
+			long waitMillis = reclaimExpired();
+			if (freeSlots > 0 && nextEligible() == transfer) break;
+
+			try {
+				wait(waitMillis);
+			} catch (InterruptedException e) {
+				waiting.remove(transfer);
+				notifyAll();
+				throw new InterruptedIOException("Interrupted waiting to send");
+			}
+
+		}
+
+		waiting.remove(transfer);
+		freeSlots--;
+		holding.add(transfer);
+		heldByClient.put(transfer.client, slotsHeld(transfer.client) + 1);
+		virtualTime = transfer.startTag;
+		transfer.granted = slice;
+		transfer.grantedAt = System.nanoTime();
+
+		// another slot may be free for the next transfer in line
+		notifyAll();
+
+	}
+
+	/**
+	 * Helper method that frees the slot of a written slice, unless it was taken back already
+	 * @param transfer The transfer holding the slot
+	 */
+	private synchronized void release(Transfer transfer) {
+
+		if (!holding.remove(transfer)) return;
+
+		freeSlots++;
+		heldByClient.put(transfer.client, slotsHeld(transfer.client) - 1);
+		notifyAll();
+
+	}
+
+	/**
+	 * Helper method that takes back the slots of slices not written by their deadline
+	 * @return How long until the next slot held reaches its deadline, in milliseconds (0 if no slot is held)
+	 */
+	private long reclaimExpired() {
+
+		long now = System.nanoTime();
+		long deadlineNanos = sliceTimeoutMillis * 1000000L;
+		long nextExpiry = Long.MAX_VALUE;
+
+		Iterator<Transfer> held = holding.iterator();
+		while (held.hasNext()) {
+
+			Transfer transfer = held.next();
+			long age = now - transfer.grantedAt;
+
+			if (age >= deadlineNanos) {
+				if (FileServer.DEBUG_MODE) System.out.println("Slice to " + transfer.client + " missed its deadline, dropping the transfer");
+				transfer.dropped = true;
+				held.remove();
+				freeSlots++;
+				heldByClient.put(transfer.client, slotsHeld(transfer.client) - 1);
+			} else {
+				nextExpiry = Math.min(nextExpiry, deadlineNanos - age);
+			}
+
+		}
+
+		return (nextExpiry == Long.MAX_VALUE) ? 0 : Math.max(1, nextExpiry / 1000000L + 1);
+
+	}
+
+	/**
+	 * Helper method that finds the waiting transfer due the next free slot: the earliest
+	 * one whose client holds fewer than its limit of slots
+	 * @return The transfer, or null if every waiting transfer's client is at its limit
+	 */
+	private Transfer nextEligible() {
+
+		Transfer next = null;
+		for (Transfer transfer : waiting) {
+			if (slotsHeld(transfer.client) >= clientSlots) continue;
+			if (next == null || transfer.compareTo(next) < 0) next = transfer;
+		}
+
+		return next;
+
+	}
+
+	/**
+	 * Helper method that counts the slots a client holds
+	 * @param client The hostname/IP address of the client
+	 * @return The number of slots held
+	 */
+	private int slotsHeld(String client) {
+
+		Integer held = heldByClient.get(client);
+
+		return (held == null) ? 0 : held;
+
+	}
+
+	/**
+	 * Helper method that reads the clients' bandwidth shares
+	 * @param property The shares, as "host=weight,host=weight", or null
+	 * @return Share by client
+	 */
+	private static Map<String, Double> parseShares(String property) {
+
+		Map<String, Double> shares = new HashMap<String, Double>();
+		if (property == null || property.trim().isEmpty()) return shares;
+
+		for (String entry : property.split(",")) {
+
+			String[] parts = entry.trim().split("=");
+			try {
+				if (parts.length == 2) shares.put(parts[0].trim(), Math.max(0.01, Double.parseDouble(parts[1].trim())));
+			} catch (NumberFormatException e) {
+				System.err.println("Ignoring invalid transfer share " + entry);
+			}
+
+		}
+
+		return shares;
+
+	}
+
+}
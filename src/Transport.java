@@ -0,0 +1,83 @@
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Transport is how servers and clients reach each other: it makes a server or client
+ * reachable at an address under a name, and finds one from its address. Servers and
+ * clients only ever call each other through ServerInterface and ClientInterface, so
+ * the transport can be changed without changing them.
+ *
+ * RmiTransport, the default, binds objects in an RMI registry on their port.
+ * InProcessTransport connects servers and clients in the same process directly, for
+ * tests, benchmarks and embedding. The process-wide transport is chosen with the
+ * fileserver.transport property ("rmi" or "inprocess"), or set before any server or
+ * client is bound.
+ *
+ */
+public abstract class Transport {
+
+	// the transport used by the whole process
+	private static volatile Transport shared = forName(System.getProperty("fileserver.transport", "rmi"));
+
+	/**
+	 * Get the transport used by the whole process
+	 * @return The shared transport
+	 */
+	public static Transport getShared() {
+		return shared;
+	}
+
+	/**
+	 * Change the transport used by the whole process, before any server or client is bound
+	 * @param transport The transport to use
+	 */
+	public static void setShared(Transport transport) {
+		shared = transport;
+	}
+
+	/**
+	 * Create a transport from its name
+	 * @param name "rmi" or "inprocess"
+	 * @return A new transport
+	 */
+	public static Transport forName(String name) {
+
+		if (name.equalsIgnoreCase("inprocess")) return new InProcessTransport();
+		if (name.equalsIgnoreCase("rmi")) return new RmiTransport();
+
+		throw new IllegalArgumentException("Unknown transport: " + name);
+
+	}
+
+	/**
+	 * Make a server or client reachable, replacing anything bound under the same name
+	 * @param host The hostname/IP address the object is reached at
+	 * @param port The port the object is reached at
+	 * @param name The name to bind the object under
+	 * @param object The server or client
+	 * @throws RemoteException If the object could not be bound
+	 */
+	public abstract void bind(String host, int port, String name, Remote object) throws RemoteException;
+
+	/**
+	 * Stop a server or client being reachable
+	 * @param host The hostname/IP address the object was bound at
+	 * @param port The port the object was bound at
+	 * @param name The name the object was bound under
+	 * @throws RemoteException If the object could not be unbound
+	 * @throws NotBoundException If nothing is bound under the name
+	 */
+	public abstract void unbind(String host, int port, String name) throws RemoteException, NotBoundException;
+
+	/**
+	 * Find a server or client
+	 * @param address The "host:port" the object is reached at
+	 * @param name The name the object is bound under
+	 * @return The object (or a proxy for it)
+	 * @throws RemoteException If the address could not be reached
+	 * @throws NotBoundException If nothing is bound under the name
+	 */
+	public abstract Remote lookup(String address, String name) throws RemoteException, NotBoundException;
+
+}
@@ -0,0 +1,109 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * UpdatePolicy decides, for one file, whether a new version is pushed to the
+ * registered readers or they are only invalidated.
+ *
+ * Invalidating a reader that reads the file again costs a round trip plus the
+ * contents; pushing costs the contents whether or not the reader reads it again.
+ * Pushing pays off when the re-read rate r satisfies r * (size + round trip) > size,
+ * so files up to r / (1 - r) round trips' worth of bytes are pushed. The re-read
+ * rate is measured as the share of invalidated readers that download the file
+ * again within a short window, smoothed over updates. While pushing, every few
+ * updates still invalidate, so the rate keeps being measured.
+ *
+ */
+public class UpdatePolicy {
+
+	// cost of a re-download round trip, expressed in bytes of transfer
+	public static final int ROUND_TRIP_BYTES = 16 * 1024;
+
+	// largest contents ever pushed in a callback
+	public static final int MAX_PUSH_BYTES = 64 * 1024;
+
+	// how soon after being invalidated a download counts as a re-read
+	public static final long REREAD_WINDOW_MILLISECONDS = 10000;
+
+	// one in this many updates invalidates, to keep measuring the re-read rate
+	private static final int SAMPLE_INTERVAL = 8;
+
+	// weight of the newest measurement in the smoothed re-read rate
+	private static final double SMOOTHING = 0.25;
+
+	// smoothed share of invalidated readers that read the file again
+	private double rereadRate = 0;
+
+	// when each reader was invalidated by the current measurement
+	private final Map<String, Long> invalidatedAt = new HashMap<String, Long>();
+
+	// readers invalidated, and those that read again, in the current measurement
+	private int invalidated = 0;
+	private int rereads = 0;
+
+	// updates decided so far
+	private long updates = 0;
+
+	/**
+	 * Decide how to propagate a new version. Ends the measurement of the previous update.
+	 * @param size The size of the new contents in bytes
+	 * @return TRUE to push the contents to readers, FALSE to invalidate them
+	 */
+	public synchronized boolean shouldPush(long size) {
+
+		// fold the re-reads seen since the last invalidating update into the rate
+		if (invalidated > 0) {
+			rereadRate += SMOOTHING * ((double) rereads / invalidated - rereadRate);
+			invalidated = 0;
+			rereads = 0;
+			invalidatedAt.clear();
+		}
+
+		updates++;
+		if (updates % SAMPLE_INTERVAL == 0) return false;
+
+		return size <= getPushLimit();
+
+	}
+
+	/**
+	 * Record that a reader was invalidated rather than pushed the new version
+	 * @param clientIPName The hostname/IP address of the reader
+	 */
+	public synchronized void invalidated(String clientIPName) {
+		invalidatedAt.put(clientIPName, System.currentTimeMillis());
+		invalidated++;
+	}
+
+	/**
+	 * Record that a reader downloaded the file
+	 * @param clientIPName The hostname/IP address of the reader
+	 */
+	public synchronized void downloaded(String clientIPName) {
+
+		Long at = invalidatedAt.remove(clientIPName);
+		if (at != null && System.currentTimeMillis() - at <= REREAD_WINDOW_MILLISECONDS) rereads++;
+
+	}
+
+	/**
+	 * Get the largest contents currently worth pushing
+	 * @return The crossover size in bytes, given the measured re-read rate
+	 */
+	public synchronized long getPushLimit() {
+
+		if (rereadRate >= 1) return MAX_PUSH_BYTES;
+
+		return (long) Math.min(MAX_PUSH_BYTES, rereadRate / (1 - rereadRate) * ROUND_TRIP_BYTES);
+
+	}
+
+	/**
+	 * Get the measured re-read rate
+	 * @return The smoothed share of invalidated readers that read the file again
+	 */
+	public synchronized double getRereadRate() {
+		return rereadRate;
+	}
+
+}
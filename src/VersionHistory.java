@@ -0,0 +1,225 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * VersionHistory is a bounded ring of the most recently committed versions of
+ * a HostedFile. The contents of each version are kept in the shared BlockStore,
+ * so versions (and other files) that have blocks in common hold them only once.
+ *
+ * Old versions are evicted oldest-first once either the version count or the
+ * memory cap is exceeded, releasing their blocks. The newest version is always
+ * retained, even if it alone is larger than the memory cap.
+ *
+ */
+public class VersionHistory {
+
+	// default number of versions retained per file
+	public static final int DEFAULT_MAX_VERSIONS = 8;
+
+	// default memory cap for retained versions of a single file
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	// a retained version, and the blocks it holds in the block store
+	private static class Version {
+
+		private final FileSnapshot snapshot;
+		private final List<String> blockIds;
+
+		private Version(FileSnapshot snapshot, List<String> blockIds) {
+			this.snapshot = snapshot;
+			this.blockIds = blockIds;
+		}
+
+	}
+
+	// retained versions, oldest first
+	private final Deque<Version> versions = new ArrayDeque<Version>();
+
+	// where the contents of the versions are held
+	private final BlockStore store;
+
+	// maximum number of versions to retain
+	private final int maxVersions;
+
+	// maximum number of (distinct) bytes to retain
+	private final long maxBytes;
+
+	/**
+	 * Create a version history using the default limits
+	 */
+	public VersionHistory() {
+		this(BlockStore.getShared(), DEFAULT_MAX_VERSIONS, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * Create a version history with specific limits
+	 * @param store The block store holding the contents of the versions
+	 * @param maxVersions The maximum number of versions to retain (at least 1)
+	 * @param maxBytes The maximum number of distinct bytes to retain
+	 */
+	public VersionHistory(BlockStore store, int maxVersions, long maxBytes) {
+		this.store = store;
+		this.maxVersions = Math.max(1, maxVersions);
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Record a newly committed version, storing its contents as shared blocks
+	 * @param contents The committed bytes
+	 * @param version The version number assigned to the bytes
+	 * @return The snapshot representing the committed version
+	 */
+	public FileSnapshot add(byte[] contents, long version) {
+
+		// chunking and hashing happen outside this history's lock
+		List<String> blockIds = store.store(contents);
+		FileSnapshot committed = new FileSnapshot(FileContents.fromBlocks(store.getBlocks(blockIds), version), version, ContentDigest.of(contents));
+
+		synchronized (this) {
+			versions.addLast(new Version(committed, blockIds));
+			evict();
+		}
+
+		return committed;
+
+	}
+
+	/**
+	 * Record a version committed by appending to the newest retained version, reusing
+	 * its blocks and extending its digest so the cost grows with the appended bytes
+	 * @param base The newest retained version
+	 * @param appended The bytes appended to it
+	 * @return The snapshot representing the committed version (numbered one after the base),
+	 * or null if the base is not the newest retained version
+	 */
+	public FileSnapshot append(FileSnapshot base, byte[] appended) {
+
+		ContentDigest digest = base.getDigestIfComputed();
+
+		return derive(base, base.getContents().length(), appended, (digest == null) ? null : digest.extend(appended));
+
+	}
+
+	/**
+	 * Record a version committed by writing a range of bytes over the newest retained
+	 * version, re-chunking only the blocks around the range
+	 * @param base The newest retained version
+	 * @param offset The position of the first byte written (at most the base's length)
+	 * @param data The bytes written
+	 * @return The snapshot representing the committed version (numbered one after the base),
+	 * or null if the base is not the newest retained version
+	 */
+	public FileSnapshot update(FileSnapshot base, int offset, byte[] data) {
+		return derive(base, offset, data, null);
+	}
+
+	/**
+	 * Helper method that records a version differing from the newest retained version in a range of bytes
+	 * @param base The newest retained version
+	 * @param offset The position of the first byte changed
+	 * @param data The bytes now at that position
+	 * @param digest The digest of the new contents, or null to compute it when first needed
+	 * @return The committed snapshot, or null if the base is not the newest retained version
+	 */
+	private FileSnapshot derive(FileSnapshot base, int offset, byte[] data, ContentDigest digest) {
+
+		List<String> baseIds;
+		synchronized (this) {
+			Version newest = versions.peekLast();
+			if (newest == null || newest.snapshot != base) return null;
+			baseIds = newest.blockIds;
+		}
+
+		// chunking and hashing happen outside this history's lock
+		List<String> blockIds = store.storeUpdate(baseIds, offset, data);
+		if (blockIds == null) return null;
+
+		long version = base.getVersion() + 1;
+		FileSnapshot committed = new FileSnapshot(FileContents.fromBlocks(store.getBlocks(blockIds), version), version, digest);
+
+		synchronized (this) {
+			versions.addLast(new Version(committed, blockIds));
+			evict();
+		}
+
+		return committed;
+
+	}
+
+	/**
+	 * Drop all retained versions, releasing their blocks. Snapshots already handed out
+	 * remain readable (off-heap blocks for at least the allocator's quarantine period).
+	 */
+	public synchronized void clear() {
+
+		while (!versions.isEmpty()) {
+			store.release(versions.removeFirst().blockIds);
+		}
+
+	}
+
+	/**
+	 * Get the contents of a specific retained version
+	 * @param version The version number requested
+	 * @return The contents of that version, or null if it was never committed or has been evicted
+	 */
+	public synchronized FileContents get(long version) {
+
+		for (Version retained : versions) {
+			if (retained.snapshot.getVersion() == version) return retained.snapshot.getContents();
+		}
+
+		return null;
+
+	}
+
+	/**
+	 * Get the oldest version still retained
+	 * @return The oldest retained version number, or 0 if nothing is retained
+	 */
+	public synchronized long getOldestVersion() {
+		return versions.isEmpty() ? 0 : versions.peekFirst().snapshot.getVersion();
+	}
+
+	/**
+	 * Get the number of distinct bytes held by the retained versions
+	 * @return The retained byte count
+	 */
+	public synchronized long getRetainedBytes() {
+
+		Map<BlockData, Boolean> distinct = new IdentityHashMap<BlockData, Boolean>();
+		long total = 0;
+
+		for (Version retained : versions) {
+			for (BlockData block : retained.snapshot.getContents().getBlocks()) {
+				if (distinct.put(block, Boolean.TRUE) == null) total += block.length();
+			}
+		}
+
+		return total;
+
+	}
+
+	/**
+	 * Helper method that removes the oldest versions until the count and memory limits are met
+	 */
+	private void evict() {
+
+		while (versions.size() > maxVersions) {
+			Version evicted = versions.removeFirst();
+			store.release(evicted.blockIds);
+			if (FileServer.DEBUG_MODE) System.out.println("Evicting version " + evicted.snapshot.getVersion() + " (version limit)");
+		}
+
+		while (versions.size() > 1 && getRetainedBytes() > maxBytes) {
+			Version evicted = versions.removeFirst();
+			store.release(evicted.blockIds);
+			if (FileServer.DEBUG_MODE) System.out.println("Evicting version " + evicted.snapshot.getVersion() + " (memory limit)");
+		}
+
+	}
+
+}